@@ -20,6 +20,9 @@ package org.killbill.billing.plugin.bridge;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Hashtable;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.killbill.billing.client.KillBillClient;
 import org.killbill.billing.osgi.api.Healthcheck;
@@ -28,9 +31,16 @@ import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.bridge.api.BridgePaymentPluginApi;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverStore;
+import org.killbill.billing.plugin.bridge.core.AdmissionScheduler;
+import org.killbill.billing.plugin.bridge.core.BridgeExecutors;
 import org.killbill.billing.plugin.bridge.core.BridgeHealthcheck;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.KeyedSequencer;
+import org.killbill.billing.plugin.bridge.dao.BridgeIdMappingDao;
 import org.killbill.billing.plugin.core.config.PluginEnvironmentConfig;
 import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
 
 public class BridgeActivator extends KillbillActivatorBase {
 
@@ -38,8 +48,34 @@ public class BridgeActivator extends KillbillActivatorBase {
 
     public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bridge.";
 
+    private static final int DEFAULT_RESOLVER_THREADS = 16;
+    private static final int DEFAULT_RESOLVER_QUEUE_SIZE = 100;
+    private static final int DEFAULT_ASYNC_THREADS = 16;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_HEDGE_THREADS = 16;
+    private static final int DEFAULT_HEDGE_QUEUE_SIZE = 100;
+    private static final int DEFAULT_PROBE_THREADS = 2;
+    private static final int DEFAULT_BACKGROUND_THREADS = 4;
+    private static final int DEFAULT_BACKGROUND_QUEUE_SIZE = 100;
+    private static final int DEFAULT_VIRTUAL_THREADS_MAX_CONCURRENCY = 1000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MIN = 1;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX = 1000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MS = 2000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS = 1000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX_QUEUED = 1000;
+    private static final int DEFAULT_ADMISSION_MAX_WAIT_MS = 1000;
+    private static final int DEFAULT_MAPPING_STORE_BATCH_SIZE = 50;
+    private static final int DEFAULT_MAPPING_STORE_MAX_PENDING = 10000;
+    private static final int DEFAULT_MAPPING_STORE_FLUSH_INTERVAL_MS = 1000;
+
     private KillbillClientConfigurationHandler killbillClientConfigurationHandler;
     private PaymentConfigurationHandler paymentConfigurationHandler;
+    private ExecutorService resolverExecutor;
+    private ExecutorService asyncExecutor;
+    private ExecutorService hedgeExecutor;
+    private ScheduledExecutorService probeExecutor;
+    private ExecutorService backgroundExecutor;
+    private RemoteResolverStore remoteResolverStore;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -47,14 +83,92 @@ public class BridgeActivator extends KillbillActivatorBase {
 
         final String region = PluginEnvironmentConfig.getRegion(configProperties.getProperties());
 
-        killbillClientConfigurationHandler = new KillbillClientConfigurationHandler(PLUGIN_NAME, killbillAPI, logService, region);
+        // Opt-in: run the operations and their resolutions on virtual threads (JDK 21+). Carrier pinning by the HTTP client isn't
+        // mitigated, see BridgeExecutors#newVirtualThreadExecutor
+        final boolean virtualThreads = Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "virtualThreads"));
+        if (virtualThreads && !BridgeExecutors.isVirtualThreadSupported()) {
+            logService.log(LogService.LOG_WARNING, "Virtual threads aren't supported by this JVM, falling back to platform threads");
+        }
+        final int virtualThreadsMaxConcurrency = getIntProperty("virtualThreadsMaxConcurrency", DEFAULT_VIRTUAL_THREADS_MAX_CONCURRENCY);
+
+        resolverExecutor = virtualThreads ? BridgeExecutors.newVirtualThreadExecutor("bridge-resolver", virtualThreadsMaxConcurrency) : null;
+        if (resolverExecutor == null) {
+            resolverExecutor = BridgeExecutors.newBoundedExecutor("bridge-resolver",
+                                                                  getIntProperty("resolverThreads", DEFAULT_RESOLVER_THREADS),
+                                                                  getIntProperty("resolverQueueSize", DEFAULT_RESOLVER_QUEUE_SIZE));
+        }
+
+        // Runs the hedged reads (and the requests they hedge), as well as the reads with an adaptive timeout
+        hedgeExecutor = virtualThreads ? BridgeExecutors.newVirtualThreadExecutor("bridge-hedge", virtualThreadsMaxConcurrency) : null;
+        if (hedgeExecutor == null) {
+            // Rejecting: a saturated pool must not run the request on the caller thread behind the hedger's (or the timeout's) back
+            hedgeExecutor = BridgeExecutors.newRejectingExecutor("bridge-hedge",
+                                                                 getIntProperty("hedgeThreads", DEFAULT_HEDGE_THREADS),
+                                                                 getIntProperty("hedgeQueueSize", DEFAULT_HEDGE_QUEUE_SIZE));
+        }
+
+        // Health probes of the KB-P nodes, when several are configured for a tenant
+        probeExecutor = BridgeExecutors.newScheduledExecutor("bridge-probe", getIntProperty("probeThreads", DEFAULT_PROBE_THREADS));
+
+        final boolean sharedTransport = Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "sharedTransport"));
+        // Node-wide admission slots (unbounded by default), the per-tenant rates and weights are configured along with the client
+        final int admissionMaxConcurrent = getIntProperty("admissionMaxConcurrent", 0);
+        killbillClientConfigurationHandler = new KillbillClientConfigurationHandler(PLUGIN_NAME, killbillAPI, logService, region, hedgeExecutor, probeExecutor, sharedTransport, getIntProperty("clientIdleTimeoutMs", 0), admissionMaxConcurrent);
 
         final KillBillClientOnOff globalKillBillClient = getGlobalKillBillClient();
         killbillClientConfigurationHandler.setDefaultConfigurable(globalKillBillClient);
 
         paymentConfigurationHandler = new PaymentConfigurationHandler(PLUGIN_NAME, killbillAPI, logService, region);
 
-        final PaymentPluginApi api = new BridgePaymentPluginApi(killbillAPI, logService, killbillClientConfigurationHandler, paymentConfigurationHandler);
+        // Requires the bridge_id_mappings table (see ddl.sql)
+        if (Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "mappingStoreEnabled"))) {
+            remoteResolverStore = new RemoteResolverStore(new BridgeIdMappingDao(dataSource.getDataSource()),
+                                                          getIntProperty("mappingStoreBatchSize", DEFAULT_MAPPING_STORE_BATCH_SIZE),
+                                                          getIntProperty("mappingStoreMaxPending", DEFAULT_MAPPING_STORE_MAX_PENDING),
+                                                          getIntProperty("mappingStoreFlushIntervalMs", DEFAULT_MAPPING_STORE_FLUSH_INTERVAL_MS));
+        }
+
+        asyncExecutor = virtualThreads ? BridgeExecutors.newVirtualThreadExecutor("bridge-async", virtualThreadsMaxConcurrency) : null;
+        if (asyncExecutor == null) {
+            asyncExecutor = BridgeExecutors.newBoundedExecutor("bridge-async",
+                                                               getIntProperty("asyncThreads", DEFAULT_ASYNC_THREADS),
+                                                               getIntProperty("asyncQueueSize", DEFAULT_ASYNC_QUEUE_SIZE));
+        }
+
+        // Node-wide limit on the concurrent KB-P calls, across all tenants (disabled by default)
+        final int concurrencyLimit = getIntProperty("concurrencyLimit", 0);
+        final ConcurrencyLimiter globalConcurrencyLimiter = concurrencyLimit > 0 ? new ConcurrencyLimiter("global",
+                                                                                                          concurrencyLimit,
+                                                                                                          getIntProperty("concurrencyLimitMin", DEFAULT_CONCURRENCY_LIMIT_MIN),
+                                                                                                          getIntProperty("concurrencyLimitMax", DEFAULT_CONCURRENCY_LIMIT_MAX),
+                                                                                                          getIntProperty("concurrencyLimitLatencyThresholdMs", DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MS),
+                                                                                                          getIntProperty("concurrencyLimitMaxWaitMs", DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS),
+                                                                                                          getIntProperty("concurrencyLimitMaxQueued", DEFAULT_CONCURRENCY_LIMIT_MAX_QUEUED)) : null;
+
+        // Opt-in: background reads (janitor, payment method refreshes) run on their own pool, and are rejected rather than run by the caller
+        // once it is saturated (disabled by default)
+        if (Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "backgroundLane"))) {
+            backgroundExecutor = BridgeExecutors.newRejectingExecutor("bridge-background",
+                                                                      getIntProperty("backgroundThreads", DEFAULT_BACKGROUND_THREADS),
+                                                                      getIntProperty("backgroundQueueSize", DEFAULT_BACKGROUND_QUEUE_SIZE));
+        }
+
+        final AdmissionScheduler admissionScheduler = new AdmissionScheduler(admissionMaxConcurrent, getIntProperty("admissionMaxWaitMs", DEFAULT_ADMISSION_MAX_WAIT_MS));
+
+        // Operations on the same account are run in arrival order, operations on different accounts in parallel (disabled by default)
+        final boolean accountOrdering = Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "accountOrdering"));
+
+        final PaymentPluginApi api = new BridgePaymentPluginApi(killbillAPI,
+                                                                logService,
+                                                                killbillClientConfigurationHandler,
+                                                                paymentConfigurationHandler,
+                                                                resolverExecutor,
+                                                                remoteResolverStore,
+                                                                asyncExecutor,
+                                                                globalConcurrencyLimiter,
+                                                                admissionScheduler,
+                                                                backgroundExecutor,
+                                                                accountOrdering ? new KeyedSequencer<UUID>() : null);
         registerPaymentPluginApi(context, api);
 
         registerEventHandlers();
@@ -63,6 +177,27 @@ public class BridgeActivator extends KillbillActivatorBase {
         registerHealthcheck(context, bridgeHealthcheck);
     }
 
+    @Override
+    public void stop(final BundleContext context) throws Exception {
+        if (killbillClientConfigurationHandler != null) {
+            killbillClientConfigurationHandler.closeAll();
+        }
+        BridgeExecutors.shutdown(resolverExecutor);
+        BridgeExecutors.shutdown(asyncExecutor);
+        BridgeExecutors.shutdown(hedgeExecutor);
+        BridgeExecutors.shutdown(probeExecutor);
+        BridgeExecutors.shutdown(backgroundExecutor);
+        if (remoteResolverStore != null) {
+            remoteResolverStore.close();
+        }
+        super.stop(context);
+    }
+
+    private int getIntProperty(final String name, final int defaultValue) {
+        final String value = configProperties.getString(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Integer.valueOf(value);
+    }
+
     private KillBillClientOnOff getGlobalKillBillClient() throws MalformedURLException {
         final BridgeConfig bridgeConfig = new BridgeConfig();
         bridgeConfig.killbillClientConfig = new KillbillClientConfig();
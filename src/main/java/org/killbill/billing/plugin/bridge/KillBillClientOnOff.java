@@ -17,25 +17,359 @@
 
 package org.killbill.billing.plugin.bridge;
 
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
 import org.killbill.billing.client.KillBillClient;
+import org.killbill.billing.client.KillBillClientException;
 import org.killbill.billing.client.KillBillHttpClient;
+import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.client.model.Account;
+import org.killbill.billing.client.model.Accounts;
+import org.killbill.billing.client.model.HostedPaymentPageFields;
+import org.killbill.billing.client.model.HostedPaymentPageFormDescriptor;
+import org.killbill.billing.client.model.Payment;
+import org.killbill.billing.client.model.PaymentMethod;
+import org.killbill.billing.client.model.PaymentMethods;
+import org.killbill.billing.client.model.PaymentTransaction;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverCache;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverSingleFlight;
+import org.killbill.billing.plugin.bridge.core.AdaptiveTimeouts;
+import org.killbill.billing.plugin.bridge.core.AdmissionScheduler;
+import org.killbill.billing.plugin.bridge.core.CircuitBreakerRegistry;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.LoadShedder;
+import org.killbill.billing.plugin.bridge.core.NodeBalancer;
+import org.killbill.billing.plugin.bridge.core.RequestHedger;
+import org.killbill.billing.util.api.AuditLevel;
+
+import com.ning.http.client.Response;
 
+//
+// Clients are long-lived (their connections are pooled) and owned by the KillbillClientConfigurationHandler.
+// Each call retains the client for its duration; once the client has been retired (tenant configuration replaced
+// or bundle stopped), it is closed when the last in-flight call releases it.
+// When several KB-P nodes are configured, the calls made by the plugin are spread over them (see NodeBalancer),
+// other calls go to the first node.
+// When the transport is shared with other tenants (see SharedTransports), the tenant credentials are set on each request.
+//
 public class KillBillClientOnOff extends KillBillClient {
 
     private final Boolean isActive;
+    // One reference for the configuration handler, plus one per in-flight call
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final String targetKey;
+    private final RemoteResolverCache remoteResolverCache;
+    private final RemoteResolverSingleFlight remoteResolverSingleFlight;
+    private final CircuitBreakerRegistry circuitBreakers;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final RequestHedger requestHedger;
+    private final NodeBalancer<KillBillClient> nodes;
+    private final TenantTransport tenantTransport;
+    private final AdmissionScheduler.Flow admissionFlow;
+    private final LoadShedder loadShedder;
+    private final AdaptiveTimeouts adaptiveTimeouts;
 
     public KillBillClientOnOff() {
         super(new KillBillHttpClient());
         this.isActive = true;
+        this.targetKey = null;
+        this.remoteResolverCache = null;
+        this.remoteResolverSingleFlight = new RemoteResolverSingleFlight();
+        this.circuitBreakers = null;
+        this.concurrencyLimiter = null;
+        this.requestHedger = null;
+        this.nodes = null;
+        this.tenantTransport = null;
+        this.admissionFlow = null;
+        this.loadShedder = null;
+        this.adaptiveTimeouts = null;
     }
 
     public KillBillClientOnOff(final KillBillHttpClient httpClient, final Boolean isActive) {
+        this(httpClient, isActive, null, null, null, null, null, null, null, null, null, null);
+    }
+
+    // The nodes own their http client, including the first one which must be httpClient
+    public KillBillClientOnOff(final KillBillHttpClient httpClient,
+                               final Boolean isActive,
+                               @Nullable final String targetKey,
+                               @Nullable final RemoteResolverCache remoteResolverCache,
+                               @Nullable final CircuitBreakerRegistry circuitBreakers,
+                               @Nullable final ConcurrencyLimiter concurrencyLimiter,
+                               @Nullable final RequestHedger requestHedger,
+                               @Nullable final NodeBalancer<KillBillClient> nodes,
+                               @Nullable final TenantTransport tenantTransport,
+                               @Nullable final AdmissionScheduler.Flow admissionFlow,
+                               @Nullable final LoadShedder loadShedder,
+                               @Nullable final AdaptiveTimeouts adaptiveTimeouts) {
         super(httpClient);
         this.isActive = isActive;
+        this.targetKey = targetKey;
+        this.remoteResolverCache = remoteResolverCache;
+        this.remoteResolverSingleFlight = new RemoteResolverSingleFlight();
+        this.circuitBreakers = circuitBreakers;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.requestHedger = requestHedger;
+        this.nodes = nodes;
+        this.tenantTransport = tenantTransport;
+        this.admissionFlow = admissionFlow;
+        this.loadShedder = loadShedder;
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+
+    // Returns false if the client has already been closed: the caller should fetch the current one again
+    public boolean retain() {
+        while (true) {
+            final int current = refCount.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (refCount.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    // Drops the configuration handler reference
+    public void retire() {
+        release();
+    }
+
+    public boolean isClosed() {
+        return refCount.get() <= 0;
     }
 
     public Boolean isActive() {
         return isActive != null ? isActive : false;
     }
-}
 
+    // Scopes the persisted mappings, see RemoteResolverStore#targetKey
+    @Nullable
+    public String getTargetKey() {
+        return targetKey;
+    }
+
+    @Nullable
+    public RemoteResolverCache getRemoteResolverCache() {
+        return remoteResolverCache;
+    }
+
+    public RemoteResolverSingleFlight getRemoteResolverSingleFlight() {
+        return remoteResolverSingleFlight;
+    }
+
+    @Nullable
+    public CircuitBreakerRegistry getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    @Nullable
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    @Nullable
+    public RequestHedger getRequestHedger() {
+        return requestHedger;
+    }
+
+    @Nullable
+    public AdmissionScheduler.Flow getAdmissionFlow() {
+        return admissionFlow;
+    }
+
+    @Nullable
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    @Nullable
+    public AdaptiveTimeouts getAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    @Override
+    public void close() {
+        // The closed client may still be referenced (e.g. by the configuration handler)
+        if (remoteResolverCache != null) {
+            remoteResolverCache.invalidateAll();
+        }
+        if (nodes == null) {
+            super.close();
+            return;
+        }
+        nodes.stopProbing();
+        // Our own http client is the first node's
+        for (final KillBillClient node : nodes.getTargets()) {
+            node.close();
+        }
+    }
+
+    @Nullable
+    public NodeBalancer<KillBillClient> getNodes() {
+        return nodes;
+    }
+
+    @Nullable
+    public TenantTransport getTenantTransport() {
+        return tenantTransport;
+    }
+
+    // Also used by the warm-up, which calls the nodes directly
+    public RequestOptions withCredentials(final RequestOptions inputOptions) {
+        return tenantTransport != null ? tenantTransport.withCredentials(inputOptions) : inputOptions;
+    }
+
+    private <R> R call(final LocalCall<R> local, final NodeBalancer.Call<KillBillClient, R> routed) throws KillBillClientException {
+        if (tenantTransport != null) {
+            tenantTransport.acquireConnection();
+        }
+        try {
+            return nodes == null ? local.call() : nodes.call(routed);
+        } finally {
+            if (tenantTransport != null) {
+                tenantTransport.releaseConnection();
+            }
+        }
+    }
+
+    private interface LocalCall<R> {
+
+        R call() throws KillBillClientException;
+    }
+
+    @Override
+    public Account getAccount(final String externalKey, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getAccount(externalKey, options),
+                    node -> node.getAccount(externalKey, options));
+    }
+
+    @Override
+    public Account createAccount(final Account account, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.createAccount(account, options),
+                    node -> node.createAccount(account, options));
+    }
+
+    @Override
+    public Accounts getAccounts(final Long offset, final Long limit, final AuditLevel auditLevel, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getAccounts(offset, limit, auditLevel, options),
+                    node -> node.getAccounts(offset, limit, auditLevel, options));
+    }
+
+    @Override
+    public PaymentMethod getPaymentMethodByKey(final String externalKey, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getPaymentMethodByKey(externalKey, options),
+                    node -> node.getPaymentMethodByKey(externalKey, options));
+    }
+
+    @Override
+    public PaymentMethod getPaymentMethodByKey(final String externalKey, final boolean withPluginInfo, final AuditLevel auditLevel, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getPaymentMethodByKey(externalKey, withPluginInfo, auditLevel, options),
+                    node -> node.getPaymentMethodByKey(externalKey, withPluginInfo, auditLevel, options));
+    }
+
+    @Override
+    public PaymentMethods getPaymentMethodsForAccount(final UUID accountId, final Map<String, String> pluginProperties, final boolean withPluginInfo, final AuditLevel auditLevel, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getPaymentMethodsForAccount(accountId, pluginProperties, withPluginInfo, auditLevel, options),
+                    node -> node.getPaymentMethodsForAccount(accountId, pluginProperties, withPluginInfo, auditLevel, options));
+    }
+
+    @Override
+    public void deletePaymentMethod(final UUID paymentMethodId, final boolean deleteDefault, final boolean forceDefaultDeletion, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        call(() -> {
+                 super.deletePaymentMethod(paymentMethodId, deleteDefault, forceDefaultDeletion, options);
+                 return null;
+             },
+             node -> {
+                 node.deletePaymentMethod(paymentMethodId, deleteDefault, forceDefaultDeletion, options);
+                 return null;
+             });
+    }
+
+    @Override
+    public void updateDefaultPaymentMethod(final UUID accountId, final UUID paymentMethodId, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        call(() -> {
+                 super.updateDefaultPaymentMethod(accountId, paymentMethodId, options);
+                 return null;
+             },
+             node -> {
+                 node.updateDefaultPaymentMethod(accountId, paymentMethodId, options);
+                 return null;
+             });
+    }
+
+    @Override
+    public Payment getPaymentByExternalKey(final String externalKey, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getPaymentByExternalKey(externalKey, options),
+                    node -> node.getPaymentByExternalKey(externalKey, options));
+    }
+
+    @Override
+    public Payment getPaymentByExternalKey(final String externalKey, final boolean withPluginInfo, final Map<String, String> pluginProperties, final AuditLevel auditLevel, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.getPaymentByExternalKey(externalKey, withPluginInfo, pluginProperties, auditLevel, options),
+                    node -> node.getPaymentByExternalKey(externalKey, withPluginInfo, pluginProperties, auditLevel, options));
+    }
+
+    @Override
+    public Payment createPayment(final UUID accountId, final UUID paymentMethodId, final PaymentTransaction paymentTransaction, final List<String> controlPluginNames, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.createPayment(accountId, paymentMethodId, paymentTransaction, controlPluginNames, pluginProperties, options),
+                    node -> node.createPayment(accountId, paymentMethodId, paymentTransaction, controlPluginNames, pluginProperties, options));
+    }
+
+    @Override
+    public Payment captureAuthorization(final PaymentTransaction paymentTransaction, final List<String> controlPluginNames, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.captureAuthorization(paymentTransaction, controlPluginNames, pluginProperties, options),
+                    node -> node.captureAuthorization(paymentTransaction, controlPluginNames, pluginProperties, options));
+    }
+
+    @Override
+    public Payment refundPayment(final PaymentTransaction paymentTransaction, final List<String> controlPluginNames, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.refundPayment(paymentTransaction, controlPluginNames, pluginProperties, options),
+                    node -> node.refundPayment(paymentTransaction, controlPluginNames, pluginProperties, options));
+    }
+
+    @Override
+    public Payment voidPayment(final UUID paymentId, final String paymentExternalKey, final String transactionExternalKey, final List<String> controlPluginNames, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.voidPayment(paymentId, paymentExternalKey, transactionExternalKey, controlPluginNames, pluginProperties, options),
+                    node -> node.voidPayment(paymentId, paymentExternalKey, transactionExternalKey, controlPluginNames, pluginProperties, options));
+    }
+
+    @Override
+    public HostedPaymentPageFormDescriptor buildFormDescriptor(final HostedPaymentPageFields fields, final UUID kbAccountId, final UUID kbPaymentMethodId, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.buildFormDescriptor(fields, kbAccountId, kbPaymentMethodId, pluginProperties, options),
+                    node -> node.buildFormDescriptor(fields, kbAccountId, kbPaymentMethodId, pluginProperties, options));
+    }
+
+    @Override
+    public Response processNotification(final String notification, final String pluginName, final Map<String, String> pluginProperties, final RequestOptions inputOptions) throws KillBillClientException {
+        final RequestOptions options = withCredentials(inputOptions);
+        return call(() -> super.processNotification(notification, pluginName, pluginProperties, options),
+                    node -> node.processNotification(notification, pluginName, pluginProperties, options));
+    }
+}
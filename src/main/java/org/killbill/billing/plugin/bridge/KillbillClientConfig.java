@@ -18,10 +18,13 @@
 package org.killbill.billing.plugin.bridge;
 
 import java.net.URL;
+import java.util.List;
 
 public class KillbillClientConfig {
 
     public URL serverUrl;
+    // Additional KB-P nodes, the calls are balanced across all of them
+    public List<URL> serverUrls;
     public String username;
     public String password;
     public String apiKey;
@@ -33,5 +36,45 @@ public class KillbillClientConfig {
     public Boolean strictSSL;
     public String SSLProtocol;
     public Boolean isActive;
+    public Integer mappingCacheMaxSize;
+    public Integer mappingCacheTtlSec;
+    public Integer mappingCacheNegativeTtlSec;
+    public Integer circuitBreakerFailureRateThreshold;
+    public Integer circuitBreakerSlowCallRateThreshold;
+    public Integer circuitBreakerSlowCallDurationMs;
+    public Integer circuitBreakerWindowSize;
+    public Integer circuitBreakerMinimumCalls;
+    public Integer circuitBreakerOpenDurationMs;
+    public Integer circuitBreakerHalfOpenProbes;
+    public Integer concurrencyLimit;
+    public Integer concurrencyLimitMin;
+    public Integer concurrencyLimitMax;
+    public Integer concurrencyLimitLatencyThresholdMs;
+    public Integer concurrencyLimitMaxWaitMs;
+    public Integer concurrencyLimitMaxQueued;
+    public Integer hedgingPercentile;
+    public Integer hedgingMinDelayMs;
+    public Integer hedgingBudgetPercent;
+    public Integer hedgingWindowSize;
+    public Integer nodeProbeIntervalMs;
+    public Integer nodeEjectionConnectFailures;
+    public Integer nodeEjectionDurationMs;
+    public Integer warmUpConnections;
+    public Integer warmUpTimeoutMs;
+    // Only used when the transport is shared across tenants: caps the connections used by this tenant
+    public Integer sharedTransportMaxConnections;
+    public Integer sharedTransportMaxWaitMs;
+    public Integer admissionRatePerSec;
+    public Integer admissionBurst;
+    public Integer admissionWeight;
+    public Integer admissionMaxQueued;
+    public Boolean loadShedding;
+    public Integer loadSheddingSampleTtlMs;
+    // Timeouts of the KB-P reads, e.g. 99.9 (percentile) x 3 (factor): the writes keep the static requestTimeout
+    public Double adaptiveTimeoutPercentile;
+    public Double adaptiveTimeoutFactor;
+    public Integer adaptiveTimeoutMinMs;
+    public Integer adaptiveTimeoutMaxMs;
+    public Integer adaptiveTimeoutWindowSize;
 
 }
@@ -17,21 +17,388 @@
 
 package org.killbill.billing.plugin.bridge;
 
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
 import org.killbill.billing.client.KillBillClient;
 import org.killbill.billing.client.KillBillHttpClient;
+import org.killbill.billing.client.RequestOptions;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.plugin.bridge.SharedTransports.SharedHttpClient;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverCache;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverStore;
+import org.killbill.billing.plugin.bridge.core.AdaptiveTimeouts;
+import org.killbill.billing.plugin.bridge.core.AdmissionScheduler;
+import org.killbill.billing.plugin.bridge.core.CircuitBreakerRegistry;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.ConnectionWarmer;
+import org.killbill.billing.plugin.bridge.core.LoadShedder;
+import org.killbill.billing.plugin.bridge.core.NodeBalancer;
+import org.killbill.billing.plugin.bridge.core.RequestHedger;
+import org.killbill.billing.plugin.bridge.core.TokenBucket;
 import org.killbill.billing.plugin.core.config.YAMLPluginTenantConfigurationHandler;
+import org.killbill.billing.util.api.AuditLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 public class KillbillClientConfigurationHandler extends YAMLPluginTenantConfigurationHandler<BridgeConfig, KillBillClientOnOff> {
 
+    private static final Logger logger = LoggerFactory.getLogger(KillbillClientConfigurationHandler.class);
+
+    private static final int DEFAULT_MAPPING_CACHE_TTL_SEC = 3600;
+    private static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS = 5000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 100;
+    private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 20;
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS = 30000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 5;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MIN = 1;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX = 200;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MS = 2000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS = 1000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX_QUEUED = 100;
+    private static final int DEFAULT_HEDGING_MIN_DELAY_MS = 10;
+    private static final int DEFAULT_HEDGING_BUDGET_PERCENT = 10;
+    private static final int DEFAULT_HEDGING_WINDOW_SIZE = 1000;
+    private static final int DEFAULT_NODE_PROBE_INTERVAL_MS = 5000;
+    private static final int DEFAULT_NODE_EJECTION_CONNECT_FAILURES = 3;
+    private static final int DEFAULT_NODE_EJECTION_DURATION_MS = 30000;
+    private static final int DEFAULT_WARM_UP_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_SHARED_TRANSPORT_MAX_WAIT_MS = 1000;
+    private static final int DEFAULT_ADMISSION_WEIGHT = 1;
+    private static final int DEFAULT_ADMISSION_MAX_QUEUED = 100;
+    private static final int DEFAULT_LOAD_SHEDDING_SAMPLE_TTL_MS = 5000;
+    private static final double DEFAULT_ADAPTIVE_TIMEOUT_FACTOR = 2;
+    private static final int DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS = 100;
+    private static final int DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS = 10000;
+    private static final int DEFAULT_ADAPTIVE_TIMEOUT_WINDOW_SIZE = 1000;
+    private static final int MAX_ACQUIRE_ATTEMPTS = 10;
+    private static final long MAX_EVICTION_INTERVAL_MS = 60000;
+
+    private static final RequestOptions WARM_UP_OPTIONS = RequestOptions.builder()
+                                                                        .withCreatedBy("BridgeWarmUp")
+                                                                        .build();
+    private static final RequestOptions NODE_PROBE_OPTIONS = RequestOptions.builder()
+                                                                           .withCreatedBy("BridgeNodeProbe")
+                                                                           .build();
+
+    private final Executor hedgeExecutor;
+    private final ScheduledExecutorService probeExecutor;
+    private final SharedTransports sharedTransports;
+    private final long clientIdleTimeoutMs;
+    private final int admissionMaxConcurrent;
+    private final ScheduledFuture<?> evictionTask;
+
+    // Current snapshot of each tenant, swapped as a whole on configuration changes (the replaced client is closed once drained)
+    private final ConcurrentMap<UUID, TenantSnapshot> tenantSnapshots = new ConcurrentHashMap<UUID, TenantSnapshot>();
+    // Tenants configured at least once, with or without a (valid) configuration
+    private final Set<UUID> configuredTenants = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastVersion = new AtomicLong();
+    // Clients are built and warmed up under the lock of their tenant only: the global lock just guards the snapshot swaps
+    private final ConcurrentMap<UUID, ReentrantLock> tenantLocks = new ConcurrentHashMap<UUID, ReentrantLock>();
+    private final ReentrantLock configureLock = new ReentrantLock();
+    private volatile TenantSnapshot defaultSnapshot;
+    // Tenants whose idle client was closed, re-created on their next call
+    private final Set<UUID> evictedTenants = ConcurrentHashMap.newKeySet();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong recreationCount = new AtomicLong();
+
     public KillbillClientConfigurationHandler(final String pluginName,
                                               final OSGIKillbillAPI osgiKillbillAPI,
                                               final OSGIKillbillLogService osgiKillbillLogService,
                                               final String region) {
+        this(pluginName, osgiKillbillAPI, osgiKillbillLogService, region, null, null, false, 0, 0);
+    }
+
+    // Hedged requests, and reads with an adaptive timeout, run on the hedgeExecutor (both are disabled without it).
+    // The health of the KB-P nodes is probed on the probeExecutor (nodes are only ejected on connection failures without it).
+    // With sharedTransport, tenants pointing to the same KB-P server(s) with the same transport settings share their http clients (see SharedTransports).
+    // Tenant clients unused for clientIdleTimeoutMs are closed, the idle ones being looked for on the probeExecutor (0 to disable).
+    // admissionMaxConcurrent is the number of node-wide admission slots (see AdmissionScheduler): when unbounded, tenants without an
+    // admission rate skip the admission altogether.
+    public KillbillClientConfigurationHandler(final String pluginName,
+                                              final OSGIKillbillAPI osgiKillbillAPI,
+                                              final OSGIKillbillLogService osgiKillbillLogService,
+                                              final String region,
+                                              @Nullable final Executor hedgeExecutor,
+                                              @Nullable final ScheduledExecutorService probeExecutor,
+                                              final boolean sharedTransport,
+                                              final long clientIdleTimeoutMs,
+                                              final int admissionMaxConcurrent) {
         super(pluginName, osgiKillbillAPI, osgiKillbillLogService,region);
+        this.hedgeExecutor = hedgeExecutor;
+        this.probeExecutor = probeExecutor;
+        this.sharedTransports = sharedTransport ? new SharedTransports() : null;
+        this.clientIdleTimeoutMs = clientIdleTimeoutMs;
+        this.admissionMaxConcurrent = admissionMaxConcurrent;
+        if (probeExecutor != null && clientIdleTimeoutMs > 0) {
+            final long intervalMs = Math.min(clientIdleTimeoutMs, MAX_EVICTION_INTERVAL_MS);
+            this.evictionTask = probeExecutor.scheduleWithFixedDelay(this::evictIdleClients, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictionTask = null;
+        }
+    }
+
+    // Returns the current client for that tenant, retained for the duration of the call (see KillBillClientOnOff#release)
+    public KillBillClientOnOff acquireConfigurable(@Nullable final UUID kbTenantId) {
+        final TenantSnapshot snapshot = acquireSnapshot(kbTenantId);
+        return snapshot != null ? snapshot.getClient() : null;
+    }
+
+    // Returns the current snapshot for that tenant (or the default one), retained for the duration of the call (see TenantSnapshot#release)
+    public TenantSnapshot acquireSnapshot(@Nullable final UUID kbTenantId) {
+        for (int i = 0; i < MAX_ACQUIRE_ATTEMPTS; i++) {
+            final TenantSnapshot snapshot = getSnapshot(kbTenantId);
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.retain()) {
+                snapshot.touch();
+                return snapshot;
+            }
+            // The snapshot was replaced (or evicted) and drained in the meantime
+        }
+        throw new IllegalStateException("Unable to acquire KillBillClient for tenant " + kbTenantId);
+    }
+
+    // Same as acquireConfigurable, for monitoring: the call doesn't count as a use (idle clients stay evictable), and neither
+    // configures the tenant nor re-creates its evicted client. Returns null if the tenant has no resident client.
+    @Nullable
+    public KillBillClientOnOff retainResidentConfigurable(@Nullable final UUID kbTenantId) {
+        for (int i = 0; i < MAX_ACQUIRE_ATTEMPTS; i++) {
+            final TenantSnapshot snapshot = getResidentSnapshot(kbTenantId);
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.retain()) {
+                return snapshot.getClient();
+            }
+        }
+        // Replaced (or evicted) over and over in the meantime
+        return null;
+    }
+
+    // Not retained: see acquireConfigurable
+    @Override
+    public KillBillClientOnOff getConfigurable(@Nullable final UUID kbTenantId) {
+        final TenantSnapshot snapshot = getSnapshot(kbTenantId);
+        return snapshot != null ? snapshot.getClient() : null;
+    }
+
+    @Nullable
+    private TenantSnapshot getSnapshot(@Nullable final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return defaultSnapshot;
+        }
+
+        TenantSnapshot tenantSnapshot = tenantSnapshots.get(kbTenantId);
+        // Configures the tenant on first use, or re-creates its evicted client
+        if (tenantSnapshot == null && (!configuredTenants.contains(kbTenantId) || evictedTenants.contains(kbTenantId))) {
+            configureOnDemand(kbTenantId);
+            tenantSnapshot = tenantSnapshots.get(kbTenantId);
+        }
+        return tenantSnapshot != null ? tenantSnapshot : defaultSnapshot;
+    }
+
+    @Nullable
+    private TenantSnapshot getResidentSnapshot(@Nullable final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return defaultSnapshot;
+        }
+
+        final TenantSnapshot tenantSnapshot = tenantSnapshots.get(kbTenantId);
+        if (tenantSnapshot != null) {
+            return tenantSnapshot;
+        }
+        // Configured without a (valid) configuration: the tenant uses the default client
+        return configuredTenants.contains(kbTenantId) && !evictedTenants.contains(kbTenantId) ? defaultSnapshot : null;
+    }
+
+    private void configureOnDemand(final UUID kbTenantId) {
+        final ReentrantLock tenantLock = getTenantLock(kbTenantId);
+        tenantLock.lock();
+        try {
+            // Already configured (or re-created) by a concurrent call
+            final boolean evicted = evictedTenants.contains(kbTenantId);
+            if (evicted || !configuredTenants.contains(kbTenantId)) {
+                configure(kbTenantId);
+                if (evicted) {
+                    recreationCount.incrementAndGet();
+                }
+            }
+        } finally {
+            tenantLock.unlock();
+        }
+    }
+
+    private ReentrantLock getTenantLock(final UUID kbTenantId) {
+        return tenantLocks.computeIfAbsent(kbTenantId, k -> new ReentrantLock());
+    }
+
+    // Closes the clients of the tenants without any call for clientIdleTimeoutMs (in-flight calls complete first), returns the number of evicted clients
+    public int evictIdleClients() {
+        if (clientIdleTimeoutMs <= 0) {
+            return 0;
+        }
+
+        int evicted = 0;
+        configureLock.lock();
+        try {
+            final long now = System.nanoTime();
+            for (final Map.Entry<UUID, TenantSnapshot> entry : tenantSnapshots.entrySet()) {
+                if (now - entry.getValue().getLastAccessNanos() < TimeUnit.MILLISECONDS.toNanos(clientIdleTimeoutMs)) {
+                    continue;
+                }
+                // Marked first, so that a concurrent call never falls back to the default client
+                evictedTenants.add(entry.getKey());
+                tenantSnapshots.remove(entry.getKey());
+                entry.getValue().getClient().retire();
+                evicted++;
+            }
+        } catch (final RuntimeException e) {
+            // Don't cancel the next runs
+            logger.warn("Failed to evict idle clients", e);
+        } finally {
+            configureLock.unlock();
+        }
+
+        if (evicted > 0) {
+            evictionCount.addAndGet(evicted);
+            logger.info("Evicted {} idle KillBillClient(s), residentTenants='{}', evictedTenants='{}'", evicted, getResidentTenants(), getEvictedTenants());
+        }
+        return evicted;
+    }
+
+    // Tenants with an open client (the default client excluded)
+    public int getResidentTenants() {
+        return tenantSnapshots.size();
+    }
+
+    public int getEvictedTenants() {
+        return evictedTenants.size();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getRecreationCount() {
+        return recreationCount.get();
+    }
+
+    // Per-tenant admission metrics (queue depth, wait times), for the resident tenants
+    public Map<UUID, AdmissionScheduler.Flow> getAdmissionFlows() {
+        final Map<UUID, AdmissionScheduler.Flow> admissionFlows = new HashMap<UUID, AdmissionScheduler.Flow>();
+        for (final Map.Entry<UUID, TenantSnapshot> entry : tenantSnapshots.entrySet()) {
+            if (entry.getValue().getClient().getAdmissionFlow() != null) {
+                admissionFlows.put(entry.getKey(), entry.getValue().getClient().getAdmissionFlow());
+            }
+        }
+        return admissionFlows;
+    }
+
+    @Override
+    public void configure(@Nullable final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            super.configure(null);
+            return;
+        }
+
+        final ReentrantLock tenantLock = getTenantLock(kbTenantId);
+        tenantLock.lock();
+        try {
+            // Slow (warm-up): the other tenants keep being served, and configured, in the meantime
+            final TenantSnapshot created = createSnapshot(kbTenantId);
+
+            final TenantSnapshot previous;
+            configureLock.lock();
+            try {
+                // No (valid) configuration anymore: the tenant falls back to the default client
+                previous = created != null ? tenantSnapshots.put(kbTenantId, created) : tenantSnapshots.remove(kbTenantId);
+                configuredTenants.add(kbTenantId);
+                evictedTenants.remove(kbTenantId);
+            } finally {
+                configureLock.unlock();
+            }
+            if (previous != null && previous != created) {
+                previous.getClient().retire();
+            }
+        } finally {
+            tenantLock.unlock();
+        }
+    }
+
+    @Nullable
+    private TenantSnapshot createSnapshot(final UUID kbTenantId) {
+        final String rawConfiguration = getTenantConfigurationAsString(kbTenantId);
+        final BridgeConfig config = rawConfiguration != null ? parseRawConfiguration(rawConfiguration) : null;
+        if (config == null) {
+            return null;
+        }
+        return new TenantSnapshot(lastVersion.incrementAndGet(), createConfigurable(config), config.paymentConfig);
+    }
+
+    @Override
+    public void setDefaultConfigurable(final KillBillClientOnOff defaultConfigurable) {
+        configureLock.lock();
+        try {
+            super.setDefaultConfigurable(defaultConfigurable);
+            final TenantSnapshot previous = defaultSnapshot;
+            if (previous != null && previous.getClient() != defaultConfigurable) {
+                previous.getClient().retire();
+            }
+            defaultSnapshot = defaultConfigurable != null ? new TenantSnapshot(lastVersion.incrementAndGet(), defaultConfigurable, null) : null;
+        } finally {
+            configureLock.unlock();
+        }
+    }
+
+    @Nullable
+    public SharedTransports getSharedTransports() {
+        return sharedTransports;
+    }
+
+    // Called when the bundle stops
+    public void closeAll() {
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+        }
+        configureLock.lock();
+        try {
+            for (final TenantSnapshot snapshot : tenantSnapshots.values()) {
+                snapshot.getClient().retire();
+            }
+            tenantSnapshots.clear();
+            configuredTenants.clear();
+            evictedTenants.clear();
+            if (defaultSnapshot != null) {
+                defaultSnapshot.getClient().retire();
+                defaultSnapshot = null;
+            }
+        } finally {
+            configureLock.unlock();
+        }
     }
 
     @Override
@@ -54,19 +421,229 @@ public class KillbillClientConfigurationHandler extends YAMLPluginTenantConfigur
         final Boolean strictSSL = killbillClientConfig.strictSSL;
         final String SSLProtocol = killbillClientConfig.SSLProtocol;
         final Boolean isActive = killbillClientConfig.isActive;
+        final Integer finalProxyPort = proxyPort;
+
+        final Set<String> serverUrls = getServerUrls(killbillClientConfig);
+        Preconditions.checkArgument(!serverUrls.isEmpty(), "Plugin misconfigured: killbillClientConfig.serverUrl == null");
+
+        final Function<String, KillBillHttpClient> httpClientFactory;
+        final TenantTransport tenantTransport;
+        if (sharedTransports == null) {
+            httpClientFactory = serverUrl -> new KillBillHttpClient(serverUrl,
+                                                                    username,
+                                                                    password,
+                                                                    apiKey,
+                                                                    apiSecret,
+                                                                    proxyHost,
+                                                                    finalProxyPort,
+                                                                    connectTimeOut,
+                                                                    readTimeOut,
+                                                                    requestTimeout,
+                                                                    strictSSL,
+                                                                    SSLProtocol);
+            tenantTransport = null;
+        } else {
+            // The credentials are sent with each request instead
+            httpClientFactory = serverUrl -> sharedTransports.acquire(getTransportKey(killbillClientConfig, serverUrl, proxyHost, finalProxyPort),
+                                                                      key -> new SharedHttpClient(sharedTransports,
+                                                                                                  key,
+                                                                                                  serverUrl,
+                                                                                                  proxyHost,
+                                                                                                  finalProxyPort,
+                                                                                                  connectTimeOut,
+                                                                                                  readTimeOut,
+                                                                                                  requestTimeout,
+                                                                                                  strictSSL,
+                                                                                                  SSLProtocol));
+            tenantTransport = new TenantTransport(username,
+                                                  password,
+                                                  apiKey,
+                                                  apiSecret,
+                                                  valueOrDefault(killbillClientConfig.sharedTransportMaxConnections, 0),
+                                                  valueOrDefault(killbillClientConfig.sharedTransportMaxWaitMs, DEFAULT_SHARED_TRANSPORT_MAX_WAIT_MS));
+        }
+        final KillBillHttpClient httpClient = httpClientFactory.apply(serverUrls.iterator().next());
+        final NodeBalancer<KillBillClient> nodes = createNodeBalancer(killbillClientConfig, serverUrls, httpClient, httpClientFactory, tenantTransport);
+        final KillBillClientOnOff client = new KillBillClientOnOff(httpClient,
+                                                                   isActive,
+                                                                   RemoteResolverStore.targetKey(serverUrls, apiKey, apiSecret),
+                                                                   createRemoteResolverCache(killbillClientConfig),
+                                                                   createCircuitBreakerRegistry(killbillClientConfig),
+                                                                   createConcurrencyLimiter(killbillClientConfig),
+                                                                   createRequestHedger(killbillClientConfig),
+                                                                   nodes,
+                                                                   tenantTransport,
+                                                                   createAdmissionFlow(killbillClientConfig),
+                                                                   createLoadShedder(killbillClientConfig),
+                                                                   createAdaptiveTimeouts(killbillClientConfig));
+        // Before the client is handed out: traffic only moves to it once warm (as the previous one keeps serving in the meantime)
+        warmUp(client, killbillClientConfig);
+        return client;
+    }
+
+    // All the settings the http client is built from, except for the credentials
+    private static String getTransportKey(final KillbillClientConfig killbillClientConfig,
+                                          final String serverUrl,
+                                          @Nullable final String proxyHost,
+                                          @Nullable final Integer proxyPort) {
+        return Joiner.on('|').useForNull("").join(serverUrl,
+                                                   proxyHost,
+                                                   proxyPort,
+                                                   killbillClientConfig.connectTimeOut,
+                                                   killbillClientConfig.readTimeOut,
+                                                   killbillClientConfig.requestTimeout,
+                                                   killbillClientConfig.strictSSL,
+                                                   killbillClientConfig.SSLProtocol);
+    }
+
+    private RemoteResolverCache createRemoteResolverCache(final KillbillClientConfig killbillClientConfig) {
+        if (killbillClientConfig.mappingCacheMaxSize == null || killbillClientConfig.mappingCacheMaxSize <= 0) {
+            return null;
+        }
+
+        final int ttlSec = killbillClientConfig.mappingCacheTtlSec != null ? killbillClientConfig.mappingCacheTtlSec : DEFAULT_MAPPING_CACHE_TTL_SEC;
+        final int negativeTtlSec = killbillClientConfig.mappingCacheNegativeTtlSec != null ? killbillClientConfig.mappingCacheNegativeTtlSec : 0;
+        return new RemoteResolverCache(killbillClientConfig.mappingCacheMaxSize, ttlSec, negativeTtlSec);
+    }
+
+    private static CircuitBreakerRegistry createCircuitBreakerRegistry(final KillbillClientConfig killbillClientConfig) {
+        final int failureRateThreshold = killbillClientConfig.circuitBreakerFailureRateThreshold != null ? killbillClientConfig.circuitBreakerFailureRateThreshold : 0;
+        final int slowCallRateThreshold = killbillClientConfig.circuitBreakerSlowCallRateThreshold != null ? killbillClientConfig.circuitBreakerSlowCallRateThreshold : 0;
+        if (failureRateThreshold <= 0 && slowCallRateThreshold <= 0) {
+            return null;
+        }
+
+        return new CircuitBreakerRegistry(failureRateThreshold,
+                                          slowCallRateThreshold,
+                                          valueOrDefault(killbillClientConfig.circuitBreakerSlowCallDurationMs, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS),
+                                          valueOrDefault(killbillClientConfig.circuitBreakerWindowSize, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE),
+                                          valueOrDefault(killbillClientConfig.circuitBreakerMinimumCalls, DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS),
+                                          valueOrDefault(killbillClientConfig.circuitBreakerOpenDurationMs, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS),
+                                          valueOrDefault(killbillClientConfig.circuitBreakerHalfOpenProbes, DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES));
+    }
+
+    private static ConcurrencyLimiter createConcurrencyLimiter(final KillbillClientConfig killbillClientConfig) {
+        if (killbillClientConfig.concurrencyLimit == null || killbillClientConfig.concurrencyLimit <= 0) {
+            return null;
+        }
+
+        return new ConcurrencyLimiter("tenant",
+                                      killbillClientConfig.concurrencyLimit,
+                                      valueOrDefault(killbillClientConfig.concurrencyLimitMin, DEFAULT_CONCURRENCY_LIMIT_MIN),
+                                      valueOrDefault(killbillClientConfig.concurrencyLimitMax, DEFAULT_CONCURRENCY_LIMIT_MAX),
+                                      valueOrDefault(killbillClientConfig.concurrencyLimitLatencyThresholdMs, DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MS),
+                                      valueOrDefault(killbillClientConfig.concurrencyLimitMaxWaitMs, DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS),
+                                      valueOrDefault(killbillClientConfig.concurrencyLimitMaxQueued, DEFAULT_CONCURRENCY_LIMIT_MAX_QUEUED));
+    }
+
+    private RequestHedger createRequestHedger(final KillbillClientConfig killbillClientConfig) {
+        if (hedgeExecutor == null || killbillClientConfig.hedgingPercentile == null || killbillClientConfig.hedgingPercentile <= 0) {
+            return null;
+        }
+
+        return new RequestHedger(killbillClientConfig.hedgingPercentile,
+                                 valueOrDefault(killbillClientConfig.hedgingMinDelayMs, DEFAULT_HEDGING_MIN_DELAY_MS),
+                                 valueOrDefault(killbillClientConfig.hedgingBudgetPercent, DEFAULT_HEDGING_BUDGET_PERCENT),
+                                 valueOrDefault(killbillClientConfig.hedgingWindowSize, DEFAULT_HEDGING_WINDOW_SIZE),
+                                 hedgeExecutor);
+    }
+
+    // Created whenever there is something to admit against: the tenant rate, or its share of the node-wide admission slots
+    private AdmissionScheduler.Flow createAdmissionFlow(final KillbillClientConfig killbillClientConfig) {
+        final TokenBucket tokenBucket;
+        if (killbillClientConfig.admissionRatePerSec != null && killbillClientConfig.admissionRatePerSec > 0) {
+            tokenBucket = new TokenBucket(killbillClientConfig.admissionRatePerSec, valueOrDefault(killbillClientConfig.admissionBurst, killbillClientConfig.admissionRatePerSec));
+        } else if (admissionMaxConcurrent <= 0) {
+            return null;
+        } else {
+            tokenBucket = null;
+        }
+
+        return new AdmissionScheduler.Flow("tenant",
+                                           valueOrDefault(killbillClientConfig.admissionWeight, DEFAULT_ADMISSION_WEIGHT),
+                                           tokenBucket,
+                                           valueOrDefault(killbillClientConfig.admissionMaxQueued, DEFAULT_ADMISSION_MAX_QUEUED));
+    }
+
+    private static LoadShedder createLoadShedder(final KillbillClientConfig killbillClientConfig) {
+        if (killbillClientConfig.loadShedding == null || !killbillClientConfig.loadShedding) {
+            return null;
+        }
+
+        return new LoadShedder(valueOrDefault(killbillClientConfig.loadSheddingSampleTtlMs, DEFAULT_LOAD_SHEDDING_SAMPLE_TTL_MS));
+    }
+
+    private AdaptiveTimeouts createAdaptiveTimeouts(final KillbillClientConfig killbillClientConfig) {
+        if (hedgeExecutor == null || killbillClientConfig.adaptiveTimeoutPercentile == null || killbillClientConfig.adaptiveTimeoutPercentile <= 0) {
+            return null;
+        }
+
+        return new AdaptiveTimeouts(killbillClientConfig.adaptiveTimeoutPercentile,
+                                    valueOrDefault(killbillClientConfig.adaptiveTimeoutFactor, DEFAULT_ADAPTIVE_TIMEOUT_FACTOR),
+                                    valueOrDefault(killbillClientConfig.adaptiveTimeoutMinMs, DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS),
+                                    valueOrDefault(killbillClientConfig.adaptiveTimeoutMaxMs, DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS),
+                                    valueOrDefault(killbillClientConfig.adaptiveTimeoutWindowSize, DEFAULT_ADAPTIVE_TIMEOUT_WINDOW_SIZE),
+                                    hedgeExecutor);
+    }
+
+    private static Set<String> getServerUrls(final KillbillClientConfig killbillClientConfig) {
+        final Set<String> serverUrls = new LinkedHashSet<String>();
+        if (killbillClientConfig.serverUrl != null) {
+            serverUrls.add(killbillClientConfig.serverUrl.toString());
+        }
+        if (killbillClientConfig.serverUrls != null) {
+            for (final URL serverUrl : killbillClientConfig.serverUrls) {
+                serverUrls.add(serverUrl.toString());
+            }
+        }
+        return serverUrls;
+    }
+
+    // The first node reuses the client's own http client
+    private NodeBalancer<KillBillClient> createNodeBalancer(final KillbillClientConfig killbillClientConfig,
+                                                            final Set<String> serverUrls,
+                                                            final KillBillHttpClient httpClient,
+                                                            final Function<String, KillBillHttpClient> httpClientFactory,
+                                                            @Nullable final TenantTransport tenantTransport) {
+        if (serverUrls.size() < 2) {
+            return null;
+        }
+
+        final Map<String, KillBillClient> targets = new LinkedHashMap<String, KillBillClient>();
+        for (final String serverUrl : serverUrls) {
+            targets.put(serverUrl, new KillBillClient(targets.isEmpty() ? httpClient : httpClientFactory.apply(serverUrl)));
+        }
+        final NodeBalancer<KillBillClient> nodes = new NodeBalancer<KillBillClient>(targets,
+                                                                                    valueOrDefault(killbillClientConfig.nodeEjectionConnectFailures, DEFAULT_NODE_EJECTION_CONNECT_FAILURES),
+                                                                                    valueOrDefault(killbillClientConfig.nodeEjectionDurationMs, DEFAULT_NODE_EJECTION_DURATION_MS));
+
+        final int probeIntervalMs = valueOrDefault(killbillClientConfig.nodeProbeIntervalMs, DEFAULT_NODE_PROBE_INTERVAL_MS);
+        if (probeExecutor != null && probeIntervalMs > 0) {
+            // Same call as the healthcheck
+            final RequestOptions probeOptions = tenantTransport != null ? tenantTransport.withCredentials(NODE_PROBE_OPTIONS) : NODE_PROBE_OPTIONS;
+            nodes.startProbing(probeExecutor, probeIntervalMs, node -> node.getAccounts(0L, 1L, AuditLevel.NONE, probeOptions));
+        }
+        return nodes;
+    }
+
+    private static void warmUp(final KillBillClientOnOff client, final KillbillClientConfig killbillClientConfig) {
+        if (!client.isActive() || killbillClientConfig.warmUpConnections == null || killbillClientConfig.warmUpConnections <= 0) {
+            return;
+        }
+
+        final List<KillBillClient> targets = client.getNodes() != null ? client.getNodes().getTargets() : ImmutableList.<KillBillClient>of(client);
+        final RequestOptions warmUpOptions = client.withCredentials(WARM_UP_OPTIONS);
+        ConnectionWarmer.warmUp(targets,
+                                killbillClientConfig.warmUpConnections,
+                                valueOrDefault(killbillClientConfig.warmUpTimeoutMs, DEFAULT_WARM_UP_TIMEOUT_MS),
+                                target -> target.getAccounts(0L, 1L, AuditLevel.NONE, warmUpOptions));
+    }
+
+    private static int valueOrDefault(@Nullable final Integer value, final int defaultValue) {
+        return value != null ? value : defaultValue;
+    }
 
-        final KillBillHttpClient httpClient = new KillBillHttpClient(killbillClientConfig.serverUrl.toString(),
-                                                                     username,
-                                                                     password,
-                                                                     apiKey,
-                                                                     apiSecret,
-                                                                     proxyHost,
-                                                                     proxyPort,
-                                                                     connectTimeOut,
-                                                                     readTimeOut,
-                                                                     requestTimeout,
-                                                                     strictSSL,
-                                                                     SSLProtocol);
-        return new KillBillClientOnOff(httpClient, isActive);
+    private static double valueOrDefault(@Nullable final Double value, final double defaultValue) {
+        return value != null ? value : defaultValue;
     }
 }
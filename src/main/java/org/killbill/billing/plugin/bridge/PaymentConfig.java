@@ -20,15 +20,31 @@ package org.killbill.billing.plugin.bridge;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.bridge.core.Deadline;
+import org.killbill.billing.plugin.bridge.core.RetryPolicy;
 
 public class PaymentConfig {
 
+    private static final int DEFAULT_WRITE_RETRY_INITIAL_BACKOFF_MS = 100;
+    private static final int DEFAULT_WRITE_RETRY_MAX_BACKOFF_MS = 2000;
+
     public PaymentProxyModel proxyModel;
     public String internalPaymentMethodIdName;
     public List<String> controlPlugins;
     public Map pluginProperties;
+    public Boolean parallelResolution;
+    public Boolean parallelLocalResolution;
+    public Boolean asyncExecution;
+    // Transaction type -> max number of retries
+    public Map writeRetries;
+    public Integer writeRetryInitialBackoffMs;
+    public Integer writeRetryMaxBackoffMs;
+    public Integer operationTimeoutMs;
 
     public PaymentProxyModel getProxyModel() {
         return proxyModel;
@@ -45,4 +61,34 @@ public class PaymentConfig {
     public List<PluginProperty> getPluginProperties() {
         return PluginProperties.buildPluginProperties(pluginProperties);
     }
+
+    public boolean isParallelResolution() {
+        return parallelResolution != null && parallelResolution;
+    }
+
+    public boolean isParallelLocalResolution() {
+        return parallelLocalResolution != null && parallelLocalResolution;
+    }
+
+    public boolean isAsyncExecution() {
+        return asyncExecution != null && asyncExecution;
+    }
+
+    // Starts the time budget of a payment transaction (unbounded by default)
+    @Nullable
+    public Deadline newOperationDeadline() {
+        return operationTimeoutMs != null && operationTimeoutMs > 0 ? Deadline.after(operationTimeoutMs) : null;
+    }
+
+    // KB-P payment writes aren't retried by default
+    public RetryPolicy getWriteRetryPolicy(final TransactionType transactionType) {
+        final Object maxRetries = writeRetries != null ? writeRetries.get(transactionType.name()) : null;
+        if (maxRetries == null) {
+            return RetryPolicy.NO_RETRY;
+        }
+
+        return new RetryPolicy(Integer.valueOf(maxRetries.toString()),
+                               writeRetryInitialBackoffMs != null ? writeRetryInitialBackoffMs : DEFAULT_WRITE_RETRY_INITIAL_BACKOFF_MS,
+                               writeRetryMaxBackoffMs != null ? writeRetryMaxBackoffMs : DEFAULT_WRITE_RETRY_MAX_BACKOFF_MS);
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.killbill.billing.client.KillBillHttpClient;
+
+//
+// Http clients shared by the tenants using the same KB-P server with the same transport settings: each KillBillHttpClient
+// comes with its own event loop, timer and connection pool, which would otherwise be duplicated for every tenant.
+// The shared clients carry no credentials (see TenantTransport) and are closed once the last tenant client using them is.
+//
+public class SharedTransports {
+
+    private final Map<String, SharedHttpClient> httpClients = new HashMap<String, SharedHttpClient>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // The factory is only called if there is no client for that key yet
+    public KillBillHttpClient acquire(final String key, final Function<String, SharedHttpClient> factory) {
+        lock.lock();
+        try {
+            SharedHttpClient httpClient = httpClients.get(key);
+            if (httpClient == null) {
+                httpClient = factory.apply(key);
+                httpClients.put(key, httpClient);
+            }
+            httpClient.leases++;
+            return httpClient;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return httpClients.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final SharedHttpClient httpClient) {
+        lock.lock();
+        try {
+            if (--httpClient.leases > 0) {
+                return;
+            }
+            httpClients.remove(httpClient.key, httpClient);
+        } finally {
+            lock.unlock();
+        }
+        httpClient.closeTransport();
+    }
+
+    public static class SharedHttpClient extends KillBillHttpClient {
+
+        private final SharedTransports owner;
+        private final String key;
+        // Guarded by the owner's lock
+        private int leases;
+
+        public SharedHttpClient(final SharedTransports owner,
+                                final String key,
+                                final String serverUrl,
+                                final String proxyHost,
+                                final Integer proxyPort,
+                                final Integer connectTimeOut,
+                                final Integer readTimeOut,
+                                final Integer requestTimeout,
+                                final Boolean strictSSL,
+                                final String SSLProtocol) {
+            super(serverUrl, null, null, null, null, proxyHost, proxyPort, connectTimeOut, readTimeOut, requestTimeout, strictSSL, SSLProtocol);
+            this.owner = owner;
+            this.key = key;
+        }
+
+        // Called by each KillBillClient using it
+        @Override
+        public void close() {
+            owner.release(this);
+        }
+
+        private void closeTransport() {
+            super.close();
+        }
+    }
+}
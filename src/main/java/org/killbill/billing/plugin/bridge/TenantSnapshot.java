@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge;
+
+import javax.annotation.Nullable;
+
+//
+// Immutable view of a tenant configuration: the client and the payment configuration parsed from the same BridgeConfig.
+// An operation takes a snapshot once and uses it throughout, so that a configuration change in the meantime doesn't mix
+// settings from two versions. Newer configurations get a higher version, the previous snapshot being drained (see KillBillClientOnOff).
+//
+public class TenantSnapshot {
+
+    private final long version;
+    private final KillBillClientOnOff client;
+    private final PaymentConfig paymentConfig;
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    public TenantSnapshot(final long version, final KillBillClientOnOff client, @Nullable final PaymentConfig paymentConfig) {
+        this.version = version;
+        this.client = client;
+        this.paymentConfig = paymentConfig;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public KillBillClientOnOff getClient() {
+        return client;
+    }
+
+    // Null for the default client, which isn't configured through a BridgeConfig
+    @Nullable
+    public PaymentConfig getPaymentConfig() {
+        return paymentConfig;
+    }
+
+    // Returns false if the snapshot has already been drained: the caller should fetch the current one again
+    public boolean retain() {
+        return client.retain();
+    }
+
+    public void release() {
+        client.release();
+    }
+
+    public void touch() {
+        lastAccessNanos = System.nanoTime();
+    }
+
+    public long getLastAccessNanos() {
+        return lastAccessNanos;
+    }
+}
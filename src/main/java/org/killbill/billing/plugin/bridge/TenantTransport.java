@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.RequestOptions;
+
+//
+// Tenant settings applied on top of a transport shared with other tenants (see SharedTransports): the credentials are sent
+// with each request, and the number of concurrent requests (each holding a pooled connection) can be capped, so that
+// one tenant can't exhaust the shared pool.
+//
+public class TenantTransport {
+
+    private final String username;
+    private final String password;
+    private final String apiKey;
+    private final String apiSecret;
+    private final int maxConnections;
+    private final Semaphore connections;
+    private final long maxWaitMs;
+    // Requests made from within another request of this tenant (client methods delegating to each other) use the same connection slot
+    private final ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+    public TenantTransport(final String username, final String password, final String apiKey, final String apiSecret, final int maxConnections, final long maxWaitMs) {
+        this.username = username;
+        this.password = password;
+        this.apiKey = apiKey;
+        this.apiSecret = apiSecret;
+        this.maxConnections = maxConnections;
+        this.connections = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    // Only the options set by the plugin are carried over
+    public RequestOptions withCredentials(final RequestOptions inputOptions) {
+        return RequestOptions.builder()
+                             .withCreatedBy(inputOptions.getCreatedBy())
+                             .withReason(inputOptions.getReason())
+                             .withComment(inputOptions.getComment())
+                             .withRequestId(inputOptions.getRequestId())
+                             .withUser(inputOptions.getUser() != null ? inputOptions.getUser() : username)
+                             .withPassword(inputOptions.getPassword() != null ? inputOptions.getPassword() : password)
+                             .withTenantApiKey(inputOptions.getTenantApiKey() != null ? inputOptions.getTenantApiKey() : apiKey)
+                             .withTenantApiSecret(inputOptions.getTenantApiSecret() != null ? inputOptions.getTenantApiSecret() : apiSecret)
+                             .build();
+    }
+
+    // As the http client does once its own pool is exhausted, fails with an IOException after the wait
+    public void acquireConnection() throws KillBillClientException {
+        final int[] current = depth.get();
+        if (connections != null && current[0] == 0) {
+            try {
+                if (!connections.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                    throw new KillBillClientException(new IOException(String.format("Too many connections for tenant, maxConnections='%s'", maxConnections)));
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KillBillClientException(e);
+            }
+        }
+        current[0]++;
+    }
+
+    public void releaseConnection() {
+        final int[] current = depth.get();
+        current[0]--;
+        if (connections != null && current[0] == 0) {
+            connections.release();
+        }
+    }
+
+    // Null when uncapped
+    @Nullable
+    public Integer getAvailableConnections() {
+        return connections != null ? connections.availablePermits() : null;
+    }
+}
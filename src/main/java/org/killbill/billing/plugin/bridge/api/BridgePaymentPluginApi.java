@@ -21,6 +21,10 @@ import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nullable;
 
@@ -50,6 +54,7 @@ import org.killbill.billing.plugin.bridge.KillbillClientConfigurationHandler;
 import org.killbill.billing.plugin.bridge.PaymentConfig;
 import org.killbill.billing.plugin.bridge.PaymentConfigurationHandler;
 import org.killbill.billing.plugin.bridge.PaymentProxyModel;
+import org.killbill.billing.plugin.bridge.TenantSnapshot;
 import org.killbill.billing.plugin.bridge.api.converter.ConverterHelper;
 import org.killbill.billing.plugin.bridge.api.converter.HostedPaymentPageFormDescriptorResultConverter;
 import org.killbill.billing.plugin.bridge.api.converter.PaymentMethodInfoPluginResultConverter;
@@ -59,11 +64,24 @@ import org.killbill.billing.plugin.bridge.api.converter.PaymentTransactionInfoPl
 import org.killbill.billing.plugin.bridge.api.converter.ResultConverter;
 import org.killbill.billing.plugin.bridge.api.resolver.local.LocalResolver;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverStore;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedKillBillClientException;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedUnresolvedException;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverResponse;
+import org.killbill.billing.plugin.bridge.core.AdmissionScheduler;
+import org.killbill.billing.plugin.bridge.core.CircuitBreaker;
+import org.killbill.billing.plugin.bridge.core.CircuitBreakerOpenException;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.Deadline;
+import org.killbill.billing.plugin.bridge.core.DeadlineExceededException;
+import org.killbill.billing.plugin.bridge.core.EndpointClass;
+import org.killbill.billing.plugin.bridge.core.KeyedSequencer;
+import org.killbill.billing.plugin.bridge.core.LoadShedder;
+import org.killbill.billing.plugin.bridge.core.LoadSheddingException;
+import org.killbill.billing.plugin.bridge.core.PriorityLane;
+import org.killbill.billing.plugin.bridge.core.RetryPolicy;
 import org.killbill.billing.util.api.AuditLevel;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -93,12 +111,44 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
     private final OSGIKillbillLogService logService;
     private final KillbillClientConfigurationHandler configurationHandler;
     private final PaymentConfigurationHandler paymentConfigurationHandler;
+    private final Executor resolverExecutor;
+    private final RemoteResolverStore remoteResolverStore;
+    private final Executor asyncExecutor;
+    private final ConcurrencyLimiter globalConcurrencyLimiter;
+    private final AdmissionScheduler admissionScheduler;
+    private final Executor backgroundExecutor;
+    private final KeyedSequencer<UUID> accountSequencer;
 
     public BridgePaymentPluginApi(final OSGIKillbillAPI killbillAPI, final OSGIKillbillLogService logService, final KillbillClientConfigurationHandler configurationHandler, final PaymentConfigurationHandler paymentConfigurationHandler) {
+        this(killbillAPI, logService, configurationHandler, paymentConfigurationHandler, null, null, null, null, null, null, null);
+    }
+
+    // The global limiter bounds the concurrent KB-P calls across all tenants, in addition to the per-tenant limiters.
+    // The operations of all tenants go through the admission scheduler first, each tenant with its own rate and weight.
+    // Background reads (see PriorityLane) run on the backgroundExecutor, if any, whatever the tenant configuration.
+    // Interactive operations on the same KB-S account reach KB-P one at a time, in arrival order, when an accountSequencer is specified.
+    public BridgePaymentPluginApi(final OSGIKillbillAPI killbillAPI,
+                                  final OSGIKillbillLogService logService,
+                                  final KillbillClientConfigurationHandler configurationHandler,
+                                  final PaymentConfigurationHandler paymentConfigurationHandler,
+                                  @Nullable final Executor resolverExecutor,
+                                  @Nullable final RemoteResolverStore remoteResolverStore,
+                                  @Nullable final Executor asyncExecutor,
+                                  @Nullable final ConcurrencyLimiter globalConcurrencyLimiter,
+                                  @Nullable final AdmissionScheduler admissionScheduler,
+                                  @Nullable final Executor backgroundExecutor,
+                                  @Nullable final KeyedSequencer<UUID> accountSequencer) {
         this.configurationHandler = configurationHandler;
         this.paymentConfigurationHandler = paymentConfigurationHandler;
         this.killbillAPI = killbillAPI;
         this.logService = logService;
+        this.resolverExecutor = resolverExecutor;
+        this.remoteResolverStore = remoteResolverStore;
+        this.asyncExecutor = asyncExecutor;
+        this.globalConcurrencyLimiter = globalConcurrencyLimiter;
+        this.admissionScheduler = admissionScheduler;
+        this.backgroundExecutor = backgroundExecutor;
+        this.accountSequencer = accountSequencer;
     }
 
     @Override
@@ -137,11 +187,11 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
         final LocalResolver localResolver = new LocalResolver(killbillAPI, context);
         final Payment payment = localResolver.getPayment(kbPaymentId);
 
-        final PaymentTransactionInfoPluginListResultConverter converter = new PaymentTransactionInfoPluginListResultConverter(killbillAPI, kbPaymentId, context);
-        return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.Payment>(null, null, null, "GET") {
+        final PaymentTransactionInfoPluginListResultConverter converter = new PaymentTransactionInfoPluginListResultConverter(localResolver, kbPaymentId);
+        return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.Payment>(null, null, null, "GET", EndpointClass.PAYMENT_READ) {
                                                               @Override
-                                                              public org.killbill.billing.client.model.Payment doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException {
-                                                                  return client.getPaymentByExternalKey(payment.getExternalKey(), true, ConverterHelper.convertToClientMapPluginProperties(properties), AuditLevel.NONE, requestOptions);
+                                                              public org.killbill.billing.client.model.Payment doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
+                                                                  return resolver.read(EndpointClass.PAYMENT_READ, () -> client.getPaymentByExternalKey(payment.getExternalKey(), true, ConverterHelper.convertToClientMapPluginProperties(properties), AuditLevel.NONE, requestOptions));
                                                               }
                                                           },
                                                           converter,
@@ -162,7 +212,7 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             /*
             internalGenericPaymentTransactionOperation(new ClientOperation<Void>(null, null, null, "ADD_PAYMENT_METHOD") {
                                              @Override
-                                             public Void doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException {
+                                             public Void doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException {
                                                  final org.killbill.billing.client.model.PaymentMethod paymentMethod = new org.killbill.billing.client.model.PaymentMethod();
                                                  paymentMethod.setAccountId(kbAccountId);
                                                  // TODO Required by client: Defaut tenant config or fancy way based on control plugin setting a plugin property
@@ -186,14 +236,16 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             final LocalResolver localResolver = new LocalResolver(killbillAPI, context);
             final String pmExternalKey = localResolver.getPaymentMethodExternalKey(kbPaymentMethodId);
 
-            internalGenericPaymentTransactionOperation(new ClientOperation<Void>(null, null, null, "DELETE_PAYMENT_METHOD") {
+            internalGenericPaymentTransactionOperation(new ClientOperation<Void>(kbAccountId, null, kbPaymentMethodId, "DELETE_PAYMENT_METHOD", EndpointClass.PAYMENT_METHOD) {
                                                            @Override
-                                                           public Void doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, UnresolvedException {
+                                                           public Void doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
 
-                                                               final RemoteResolver resolver = new RemoteResolver(client, requestOptions);
                                                                final RemoteResolverResponse resolverResp = resolver.resolve(new RemoteResolverRequest()
                                                                                                                                     .resolvePM(pmExternalKey));
-                                                               client.deletePaymentMethod(resolverResp.getPaymentMethodIdMapping(), true, true, requestOptions);
+                                                               resolver.write(EndpointClass.PAYMENT_METHOD, () -> {
+                                                                   client.deletePaymentMethod(resolverResp.getPaymentMethodIdMapping(), true, true, requestOptions);
+                                                                   return null;
+                                                               });
                                                                return null;
                                                            }
                                                        },
@@ -212,10 +264,10 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             final LocalResolver localResolver = new LocalResolver(killbillAPI, context);
             final String paymentExternalKey = localResolver.getPaymentMethodExternalKey(kbPaymentMethodId);
             final PaymentMethodPluginResultConverter converter = new PaymentMethodPluginResultConverter();
-            return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.PaymentMethod>(kbAccountId, null, kbPaymentMethodId, "GET_PAYMENT_METHOD") {
+            return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.PaymentMethod>(kbAccountId, null, kbPaymentMethodId, "GET_PAYMENT_METHOD", EndpointClass.PAYMENT_METHOD) {
                                                                   @Override
-                                                                  public org.killbill.billing.client.model.PaymentMethod doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException {
-                                                                      return client.getPaymentMethodByKey(paymentExternalKey, true, AuditLevel.NONE, requestOptions);
+                                                                  public org.killbill.billing.client.model.PaymentMethod doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
+                                                                      return resolver.read(EndpointClass.PAYMENT_METHOD, () -> client.getPaymentMethodByKey(paymentExternalKey, true, AuditLevel.NONE, requestOptions));
                                                                   }
                                                               },
                                                               converter,
@@ -235,15 +287,17 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             final Account account = localResolver.getAccount(kbAccountId);
             final String pmExternalKey = localResolver.getPaymentMethodExternalKey(kbPaymentMethodId);
 
-            internalGenericPaymentTransactionOperation(new ClientOperation<Void>(null, null, null, "SET_DEFAULT_PAYMENT_METHOD") {
+            internalGenericPaymentTransactionOperation(new ClientOperation<Void>(kbAccountId, null, kbPaymentMethodId, "SET_DEFAULT_PAYMENT_METHOD", EndpointClass.PAYMENT_METHOD) {
                                                            @Override
-                                                           public Void doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, UnresolvedException {
+                                                           public Void doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
 
-                                                               final RemoteResolver resolver = new RemoteResolver(client, requestOptions);
                                                                final RemoteResolverResponse resolverResp = resolver.resolve(new RemoteResolverRequest()
                                                                                                                                     .resolveAccount(account, true)
                                                                                                                                     .resolvePM(pmExternalKey));
-                                                               client.updateDefaultPaymentMethod(resolverResp.getAccountIdMapping(), resolverResp.getPaymentMethodIdMapping(), requestOptions);
+                                                               resolver.write(EndpointClass.PAYMENT_METHOD, () -> {
+                                                                   client.updateDefaultPaymentMethod(resolverResp.getAccountIdMapping(), resolverResp.getPaymentMethodIdMapping(), requestOptions);
+                                                                   return null;
+                                                               });
                                                                return null;
                                                            }
                                                        },
@@ -262,14 +316,13 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             final Account account = localResolver.getAccount(kbAccountId);
 
             final PaymentMethodInfoPluginResultConverter converter = new PaymentMethodInfoPluginResultConverter();
-            return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.PaymentMethods>(kbAccountId, null, null, "GET_ACCOUNT_PAYMENT_METHODS") {
+            return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.PaymentMethods>(kbAccountId, null, null, "GET_ACCOUNT_PAYMENT_METHODS", EndpointClass.PAYMENT_METHOD) {
                                                                   @Override
-                                                                  public org.killbill.billing.client.model.PaymentMethods doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, UnresolvedException {
+                                                                  public org.killbill.billing.client.model.PaymentMethods doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
 
-                                                                      final RemoteResolver resolver = new RemoteResolver(client, requestOptions);
                                                                       final RemoteResolverResponse resolverResp = resolver.resolve(new RemoteResolverRequest()
                                                                                                                                            .resolveAccount(account, true));
-                                                                      return client.getPaymentMethodsForAccount(resolverResp.getAccountIdMapping(), ConverterHelper.convertToClientMapPluginProperties(properties), true, AuditLevel.NONE, requestOptions);
+                                                                      return resolver.read(EndpointClass.PAYMENT_METHOD, () -> client.getPaymentMethodsForAccount(resolverResp.getAccountIdMapping(), ConverterHelper.convertToClientMapPluginProperties(properties), true, AuditLevel.NONE, requestOptions));
                                                                   }
                                                               },
                                                               converter,
@@ -297,15 +350,14 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
         final Account account = localResolver.getAccount(kbAccountId);
 
         final HostedPaymentPageFormDescriptorResultConverter converter = new HostedPaymentPageFormDescriptorResultConverter();
-        return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.HostedPaymentPageFormDescriptor>(kbAccountId, null, null, "BUILD_FORM_DESC") {
+        return internalGenericPaymentTransactionOperation(new ClientOperation<org.killbill.billing.client.model.HostedPaymentPageFormDescriptor>(kbAccountId, null, null, "BUILD_FORM_DESC", EndpointClass.PAYMENT_WRITE) {
                                                               @Override
-                                                              public org.killbill.billing.client.model.HostedPaymentPageFormDescriptor doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, UnresolvedException {
-                                                                  final RemoteResolver resolver = new RemoteResolver(client, requestOptions);
+                                                              public org.killbill.billing.client.model.HostedPaymentPageFormDescriptor doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, UnresolvedException {
                                                                   final RemoteResolverResponse resolverResp = resolver.resolve(new RemoteResolverRequest()
                                                                                                                                        .resolveAccount(account, true));
 
                                                                   final org.killbill.billing.client.model.HostedPaymentPageFields fields = new org.killbill.billing.client.model.HostedPaymentPageFields(ConverterHelper.convertToClientListPluginProperties(customFields));
-                                                                  return client.buildFormDescriptor(fields, resolverResp.getAccountIdMapping(), null /* TODO ??? */, ConverterHelper.convertToClientMapPluginProperties(properties), requestOptions);
+                                                                  return resolver.write(EndpointClass.PAYMENT_WRITE, () -> client.buildFormDescriptor(fields, resolverResp.getAccountIdMapping(), null /* TODO ??? */, ConverterHelper.convertToClientMapPluginProperties(properties), requestOptions));
                                                               }
                                                           },
                                                           converter,
@@ -318,7 +370,7 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
 
         KillBillClientOnOff client = null;
         try {
-            client = configurationHandler.getConfigurable(context.getTenantId());
+            client = configurationHandler.acquireConfigurable(context.getTenantId());
             if (!client.isActive()) {
                 logService.log(LogService.LOG_DEBUG, "Skipping deactivated KillBillClient...");
                 return null;
@@ -330,24 +382,141 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             throw new PaymentPluginApiException(String.format("Failed to processNotification for %s", notification), e);
         } finally {
             if (client != null) {
-                client.close();
+                client.release();
             }
         }
     }
 
-    private Iterable<PluginProperty> buildProperties(final Iterable<PluginProperty> originalProperties, final TenantContext context) {
-        final PaymentConfig paymentConfig = paymentConfigurationHandler.getConfigurable(context.getTenantId());
+    // The tenant limiter is acquired first, so that a saturated tenant doesn't hold global slots while waiting.
+    // Returns the limiter which rejected the call, if any
+    @Nullable
+    private ConcurrencyLimiter acquireConcurrencyLimiters(@Nullable final ConcurrencyLimiter tenantConcurrencyLimiter, @Nullable final Deadline deadline) {
+        if (tenantConcurrencyLimiter != null && !tryAcquire(tenantConcurrencyLimiter, deadline)) {
+            return tenantConcurrencyLimiter;
+        }
+        if (globalConcurrencyLimiter != null && !tryAcquire(globalConcurrencyLimiter, deadline)) {
+            if (tenantConcurrencyLimiter != null) {
+                tenantConcurrencyLimiter.cancel();
+            }
+            return globalConcurrencyLimiter;
+        }
+        return null;
+    }
+
+    private static boolean tryAcquire(final ConcurrencyLimiter concurrencyLimiter, @Nullable final Deadline deadline) {
+        return deadline != null ? concurrencyLimiter.tryAcquire(deadline.getRemainingNanos()) : concurrencyLimiter.tryAcquire();
+    }
+
+    private boolean tryAdmit(final AdmissionScheduler.Flow admissionFlow, @Nullable final Deadline deadline) {
+        return deadline != null ? admissionScheduler.tryAcquire(admissionFlow, deadline.getRemainingNanos()) : admissionScheduler.tryAcquire(admissionFlow);
+    }
+
+    // Failed operations too: timeouts are what the deadlines have to account for
+    private void onOperationCompleted(@Nullable final ConcurrencyLimiter tenantConcurrencyLimiter,
+                                      @Nullable final LoadShedder loadShedder,
+                                      final EndpointClass endpointClass,
+                                      final long startNanos) {
+        if (loadShedder != null) {
+            loadShedder.onCompleted(endpointClass, System.nanoTime() - startNanos);
+        }
+        releaseConcurrencyLimiters(tenantConcurrencyLimiter);
+    }
+
+    // The circuit breaker and the limits were fed by the individual KB-P calls (see RemoteResolver#read and RemoteResolver#write)
+    private void releaseConcurrencyLimiters(@Nullable final ConcurrencyLimiter tenantConcurrencyLimiter) {
+        if (tenantConcurrencyLimiter != null) {
+            tenantConcurrencyLimiter.cancel();
+        }
+        if (globalConcurrencyLimiter != null) {
+            globalConcurrencyLimiter.cancel();
+        }
+    }
+
+    @Nullable
+    private Executor getAsyncExecutor(@Nullable final PaymentConfig paymentConfig) {
+        if (asyncExecutor == null) {
+            return null;
+        }
+        return paymentConfig != null && paymentConfig.isAsyncExecution() ? asyncExecutor : null;
+    }
+
+    // Background reads are kept off the interactive threads: their own bounded pool caps how many are in progress, hence the KB-P connections they hold
+    @Nullable
+    private Executor getExecutor(final PriorityLane lane, @Nullable final PaymentConfig paymentConfig) {
+        if (lane == PriorityLane.BACKGROUND && backgroundExecutor != null) {
+            return backgroundExecutor;
+        }
+        return getAsyncExecutor(paymentConfig);
+    }
+
+    // The payment configuration parsed along with the client, so that both come from the same tenant configuration version
+    private PaymentConfig getPaymentConfig(@Nullable final TenantSnapshot snapshot, final UUID tenantId) {
+        return snapshot != null && snapshot.getPaymentConfig() != null ? snapshot.getPaymentConfig() : paymentConfigurationHandler.getConfigurable(tenantId);
+    }
+
+    // Unwrap the exceptions thrown by the stages, so that they are handled as on the synchronous path
+    private static <T> T awaitOperation(final CompletableFuture<T> future) throws KillBillClientException, PaymentPluginApiException, UnresolvedException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof KillBillClientException) {
+                throw (KillBillClientException) cause;
+            } else if (cause instanceof PaymentPluginApiException) {
+                throw (PaymentPluginApiException) cause;
+            } else if (cause instanceof UnresolvedException) {
+                throw (UnresolvedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private RemoteResolver buildRemoteResolver(final KillBillClientOnOff client, final RequestOptions requestOptions, final UUID tenantId, @Nullable final PaymentConfig paymentConfig, @Nullable final Deadline deadline) {
+        final boolean parallelResolution = paymentConfig != null && paymentConfig.isParallelResolution();
+        return RemoteResolver.builder(client, requestOptions)
+                             .withExecutor(parallelResolution ? resolverExecutor : null)
+                             .withCache(client.getRemoteResolverCache())
+                             .withStore(tenantId, client.getTargetKey(), remoteResolverStore)
+                             .withSingleFlight(client.getRemoteResolverSingleFlight())
+                             .withCircuitBreakers(client.getCircuitBreakers())
+                             .withHedger(client.getRequestHedger())
+                             .withDeadline(deadline)
+                             .withTimeouts(client.getAdaptiveTimeouts())
+                             .withConcurrencyLimiters(client.getConcurrencyLimiter(), globalConcurrencyLimiter)
+                             .build();
+    }
+
+    private static Iterable<PluginProperty> buildProperties(final Iterable<PluginProperty> originalProperties, final PaymentConfig paymentConfig) {
         return PluginProperties.merge(paymentConfig.getPluginProperties(), originalProperties);
     }
 
     private PaymentTransactionInfoPlugin internalPaymentTransactionOperation(final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, @Nullable final BigDecimal amount, @Nullable final Currency currency, final Iterable<PluginProperty> originalProperties, final CallContext context) throws PaymentPluginApiException {
+        // The whole transaction runs against the tenant configuration current at this point
+        final TenantSnapshot snapshot = configurationHandler.acquireSnapshot(context.getTenantId());
+        try {
+            return internalPaymentTransactionOperation(snapshot, transactionType, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, originalProperties, context);
+        } finally {
+            if (snapshot != null) {
+                snapshot.release();
+            }
+        }
+    }
+
+    private PaymentTransactionInfoPlugin internalPaymentTransactionOperation(@Nullable final TenantSnapshot snapshot, final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, @Nullable final BigDecimal amount, @Nullable final Currency currency, final Iterable<PluginProperty> originalProperties, final CallContext context) throws PaymentPluginApiException {
 
         logService.log(LogService.LOG_INFO, String.format("Bridge Payment ENTERING: transactionType='%s', kbAccountId='%s', kbPaymentId='%s', kbPaymentMethodId='%s', amount='%s', currency='%s'",
                                                           transactionType, kbAccountId, kbPaymentId, kbPaymentMethodId, amount, currency));
 
-        final PaymentConfig paymentConfig = paymentConfigurationHandler.getConfigurable(context.getTenantId());
+        final PaymentConfig paymentConfig = getPaymentConfig(snapshot, context.getTenantId());
+        // Covers all the steps below, KB-S lookups included
+        final Deadline deadline = paymentConfig.newOperationDeadline();
 
-        final LocalResolver localResolver = new LocalResolver(killbillAPI, context);
+        // The account, payment and payment method lookups are independent: start them together
+        final LocalResolver localResolver = new LocalResolver(killbillAPI, context, paymentConfig.isParallelLocalResolution() ? resolverExecutor : null)
+                .prefetch(kbAccountId, kbPaymentId, kbPaymentMethodId);
 
         final Payment payment = localResolver.getPayment(kbPaymentId);
         final PaymentTransaction paymentTransaction = payment.getTransactions()
@@ -359,9 +528,9 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
 
         final PluginProperty internalPaymentMethodIdProperty = new PluginProperty(paymentConfig.getInternalPaymentMethodIdName(), localResolver.getPaymentMethodExternalKey(kbPaymentMethodId), true);
 
-        final ClientOperation<org.killbill.billing.client.model.PaymentTransaction> op = new ClientOperation<org.killbill.billing.client.model.PaymentTransaction>(kbAccountId, kbPaymentId, kbPaymentMethodId, transactionType.name()) {
+        final ClientOperation<org.killbill.billing.client.model.PaymentTransaction> op = new ClientOperation<org.killbill.billing.client.model.PaymentTransaction>(kbAccountId, kbPaymentId, kbPaymentMethodId, transactionType.name(), EndpointClass.PAYMENT_WRITE, deadline) {
             @Override
-            public org.killbill.billing.client.model.PaymentTransaction doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, PaymentPluginApiException, UnresolvedException {
+            public org.killbill.billing.client.model.PaymentTransaction doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, PaymentPluginApiException, UnresolvedException {
 
                 final Account account = localResolver.getAccount(kbAccountId);
 
@@ -372,47 +541,176 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
                     transactionType == TransactionType.CAPTURE) {
                     remoteResolverRequest.resolvePayment(payment.getExternalKey());
                 }
-                final RemoteResolver resolver = new RemoteResolver(client, requestOptions);
                 final RemoteResolverResponse resolverResp = resolver.resolve(remoteResolverRequest);
 
+                return doTransaction(client, requestOptions, resolver, resolverResp);
+            }
+
+            @Override
+            public CompletableFuture<org.killbill.billing.client.model.PaymentTransaction> doOperationAsync(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver, final Executor executor) {
+                // The KB-P account is resolved as soon as the KB-S account is loaded, while the KB-P payment (if needed) is resolved
+                final CompletableFuture<RemoteResolverResponse> accountMapping = localResolver.getAccountAsync(kbAccountId)
+                                                                                              .thenApplyAsync(account -> resolveAsync(resolver, account, null), executor);
+                final CompletableFuture<RemoteResolverResponse> paymentMapping;
+                if (transactionType == TransactionType.REFUND ||
+                    transactionType == TransactionType.VOID ||
+                    transactionType == TransactionType.CAPTURE) {
+                    paymentMapping = CompletableFuture.supplyAsync(() -> resolveAsync(resolver, null, payment.getExternalKey()), executor);
+                } else {
+                    paymentMapping = CompletableFuture.completedFuture(null);
+                }
+
+                return accountMapping.thenCombine(paymentMapping, (accountResp, paymentResp) -> new RemoteResolverResponse(accountResp.getAccountIdMapping(),
+                                                                                                                          null,
+                                                                                                                          paymentResp != null ? paymentResp.getPaymentIdMapping() : null))
+                                     .thenApplyAsync(resolverResp -> {
+                                         try {
+                                             return doTransaction(client, requestOptions, resolver, resolverResp);
+                                         } catch (final KillBillClientException e) {
+                                             throw new CompletionException(e);
+                                         }
+                                     }, executor);
+            }
+
+            private RemoteResolverResponse resolveAsync(final RemoteResolver resolver, @Nullable final Account account, @Nullable final String paymentExternalKey) {
+                try {
+                    final RemoteResolverRequest remoteResolverRequest = new RemoteResolverRequest();
+                    if (account != null) {
+                        remoteResolverRequest.resolveAccount(account, true);
+                    }
+                    return resolver.resolve(remoteResolverRequest.resolvePayment(paymentExternalKey));
+                } catch (final KillBillClientException | UnresolvedException e) {
+                    throw new CompletionException(e);
+                }
+            }
+
+            // Same outcome as an aborted payment: nothing was attempted on KB-P (once an attempt was sent, its error is thrown instead)
+            @Override
+            public org.killbill.billing.client.model.PaymentTransaction getFastFailureResult() {
+                return buildPluginFailureTransaction(buildTransaction(null));
+            }
+
+            private org.killbill.billing.client.model.PaymentTransaction buildTransaction(@Nullable final UUID paymentIdMapping) {
                 final org.killbill.billing.client.model.PaymentTransaction transaction = new org.killbill.billing.client.model.PaymentTransaction();
                 transaction.setTransactionType(transactionType.name());
                 transaction.setPaymentExternalKey(payment.getExternalKey());
                 transaction.setTransactionExternalKey(paymentTransaction.getExternalKey());
-                transaction.setPaymentId(resolverResp.getPaymentIdMapping());
+                transaction.setPaymentId(paymentIdMapping);
                 if (amount != null) {
                     transaction.setAmount(amount);
                 }
                 if (currency != null) {
                     transaction.setCurrency(currency.toString());
                 }
+                return transaction;
+            }
 
-                final Iterable<PluginProperty> properties = buildProperties(originalProperties, context);
-                final org.killbill.billing.client.model.Payment result;
+            private org.killbill.billing.client.model.PaymentTransaction doTransaction(final KillBillClient client,
+                                                                                       final RequestOptions requestOptions,
+                                                                                       final RemoteResolver resolver,
+                                                                                       final RemoteResolverResponse resolverResp) throws KillBillClientException {
+                final org.killbill.billing.client.model.PaymentTransaction transaction = buildTransaction(resolverResp.getPaymentIdMapping());
+
+                if (deadline != null) {
+                    deadline.check(transactionType.name());
+                }
 
+                final RetryPolicy retryPolicy = paymentConfig.getWriteRetryPolicy(transactionType);
+                int retry = 0;
+                KillBillClientException lastError = null;
+                while (true) {
+                    try {
+                        return doTransactionAttempt(client, requestOptions, resolver, resolverResp, transaction);
+                    } catch (final CircuitBreakerOpenException e) {
+                        if (lastError == null) {
+                            throw e;
+                        }
+                        // A previous attempt was sent and may have gone through: its outcome stays unknown, it isn't a plugin failure
+                        logService.log(LogService.LOG_WARNING, String.format("Not retrying transactionType='%s', kbPaymentId='%s': %s", transactionType, kbPaymentId, e.getMessage()));
+                        throw lastError;
+                    } catch (final KillBillClientException e) {
+                        lastError = e;
+                        // No retry either if it can't be attempted before the deadline
+                        if (retry >= retryPolicy.getMaxRetries() || !CircuitBreaker.isFailure(e) || !retryPolicy.backoff(retry, deadline)) {
+                            throw e;
+                        }
+                        retry++;
+
+                        // The failed attempt may have gone through on KB-P: never send it twice
+                        final org.killbill.billing.client.model.PaymentTransaction existingTransaction = findExistingTransaction(client, requestOptions, resolver, e);
+                        if (existingTransaction != null) {
+                            logService.log(LogService.LOG_INFO, String.format("Found transactionExternalKey='%s' on KB-P after failed attempt, transactionType='%s', kbPaymentId='%s'",
+                                                                              paymentTransaction.getExternalKey(), transactionType, kbPaymentId));
+                            return existingTransaction;
+                        }
+                        logService.log(LogService.LOG_WARNING, String.format("Retrying transactionType='%s', kbPaymentId='%s', retry='%s'", transactionType, kbPaymentId, retry), e);
+                    }
+                }
+            }
+
+            // Throws the original error if KB-P can't tell whether the failed attempt went through
+            @Nullable
+            private org.killbill.billing.client.model.PaymentTransaction findExistingTransaction(final KillBillClient client,
+                                                                                                 final RequestOptions requestOptions,
+                                                                                                 final RemoteResolver resolver,
+                                                                                                 final KillBillClientException originalError) throws KillBillClientException {
+                final org.killbill.billing.client.model.Payment existingPayment;
                 try {
-                    switch (transactionType) {
-                        case AUTHORIZE:
-                        case PURCHASE:
-                        case CREDIT:
-                            result = client.createPayment(resolverResp.getAccountIdMapping(), resolverResp.getPaymentMethodIdMapping(), transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
-                            break;
-
-                        case REFUND:
-                            result = client.refundPayment(transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
-                            break;
-
-                        case VOID:
-                            result = client.voidPayment(resolverResp.getPaymentMethodIdMapping(), payment.getExternalKey(), paymentTransaction.getExternalKey(), paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
-                            break;
-
-                        case CAPTURE:
-                            result = client.captureAuthorization(transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
-                            break;
-
-                        default:
-                            throw new IllegalStateException("Unexpected transaction type " + transactionType);
+                    existingPayment = resolver.read(EndpointClass.PAYMENT_READ, () -> client.getPaymentByExternalKey(payment.getExternalKey(), requestOptions));
+                } catch (final KillBillClientException e) {
+                    if (RemoteResolver.isNotFound(e)) {
+                        return null;
                     }
+                    logService.log(LogService.LOG_WARNING, String.format("Unable to check transactionExternalKey='%s' on KB-P, giving up", paymentTransaction.getExternalKey()), e);
+                    throw originalError;
+                } catch (final CircuitBreakerOpenException | DeadlineExceededException e) {
+                    logService.log(LogService.LOG_WARNING, String.format("Unable to check transactionExternalKey='%s' on KB-P, giving up: %s", paymentTransaction.getExternalKey(), e.getMessage()));
+                    throw originalError;
+                } catch (final UnresolvedException e) {
+                    // Can't happen, nothing is resolved here
+                    throw new IllegalStateException(e);
+                }
+                if (existingPayment == null || existingPayment.getTransactions() == null) {
+                    return null;
+                }
+
+                return existingPayment.getTransactions()
+                                      .stream()
+                                      .filter(t -> paymentTransaction.getExternalKey().equals(t.getTransactionExternalKey()) && transactionType.name().equals(t.getTransactionType()))
+                                      .reduce((first, second) -> second)
+                                      .orElse(null);
+            }
+
+            // Each attempt is a separate KB-P call for the circuit breaker and the concurrency limiters (the backoff in between isn't)
+            private org.killbill.billing.client.model.PaymentTransaction doTransactionAttempt(final KillBillClient client,
+                                                                                              final RequestOptions requestOptions,
+                                                                                              final RemoteResolver resolver,
+                                                                                              final RemoteResolverResponse resolverResp,
+                                                                                              final org.killbill.billing.client.model.PaymentTransaction transaction) throws KillBillClientException {
+                final Iterable<PluginProperty> properties = buildProperties(originalProperties, paymentConfig);
+                final org.killbill.billing.client.model.Payment result;
+
+                try {
+                    result = resolver.write(EndpointClass.PAYMENT_WRITE, () -> {
+                        switch (transactionType) {
+                            case AUTHORIZE:
+                            case PURCHASE:
+                            case CREDIT:
+                                return client.createPayment(resolverResp.getAccountIdMapping(), resolverResp.getPaymentMethodIdMapping(), transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
+
+                            case REFUND:
+                                return client.refundPayment(transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
+
+                            case VOID:
+                                return client.voidPayment(resolverResp.getPaymentMethodIdMapping(), payment.getExternalKey(), paymentTransaction.getExternalKey(), paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
+
+                            case CAPTURE:
+                                return client.captureAuthorization(transaction, paymentConfig.getControlPlugins(), ConverterHelper.convertToClientMapPluginProperties(properties, internalPaymentMethodIdProperty), requestOptions);
+
+                            default:
+                                throw new IllegalStateException("Unexpected transaction type " + transactionType);
+                        }
+                    });
 
                     // Filter the transaction associated with this operation
                     final Optional<org.killbill.billing.client.model.PaymentTransaction> optionalTargetTransaction = ConverterHelper.getTransactionMatchOrLast(result.getTransactions(), paymentTransaction.getExternalKey());
@@ -420,24 +718,7 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
                     return optionalTargetTransaction.get();
                 } catch (final KillBillClientException e) {
                     if (e.getBillingException() != null && e.getBillingException().getCode() == ErrorCode.PAYMENT_PLUGIN_API_ABORTED.getCode()) {
-                        return new org.killbill.billing.client.model.PaymentTransaction(transaction.getTransactionId(),
-                                                                                        transaction.getTransactionExternalKey(),
-                                                                                        transaction.getPaymentId(),
-                                                                                        transaction.getPaymentExternalKey(),
-                                                                                        transaction.getTransactionType(),
-                                                                                        transaction.getAmount(),
-                                                                                        transaction.getCurrency(),
-                                                                                        null,
-                                                                                        BigDecimal.ZERO,
-                                                                                        transaction.getCurrency(),
-                                                                                        TransactionStatus.PLUGIN_FAILURE.name(),
-                                                                                        null,
-                                                                                        null,
-                                                                                        null,
-                                                                                        null,
-                                                                                        ImmutableList.<org.killbill.billing.client.model.PluginProperty>of(),
-
-                                                                                        ImmutableList.<org.killbill.billing.client.model.AuditLog>of());
+                        return buildPluginFailureTransaction(transaction);
                     } else {
                         throw e;
                     }
@@ -447,7 +728,7 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
 
         try {
             final PaymentTransactionInfoPluginResultConverter converter = new PaymentTransactionInfoPluginResultConverter(payment);
-            final PaymentTransactionInfoPlugin result = internalGenericPaymentTransactionOperation(op, converter, context.getTenantId(), converter.convertModelToApi(new org.killbill.billing.client.model.PaymentTransaction()));
+            final PaymentTransactionInfoPlugin result = internalGenericPaymentTransactionOperation(op, converter, snapshot, context.getTenantId(), converter.convertModelToApi(new org.killbill.billing.client.model.PaymentTransaction()));
 
             logService.log(LogService.LOG_INFO, String.format("Bridge Payment EXITING: Success running transactionType='%s', kbAccountId='%s', kbPaymentId='%s', kbPaymentMethodId='%s', amount='%s', currency='%s'",
                                                               transactionType, kbAccountId, kbPaymentId, kbPaymentMethodId, amount, currency));
@@ -460,19 +741,145 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
         }
     }
 
+    private static org.killbill.billing.client.model.PaymentTransaction buildPluginFailureTransaction(final org.killbill.billing.client.model.PaymentTransaction transaction) {
+        return new org.killbill.billing.client.model.PaymentTransaction(transaction.getTransactionId(),
+                                                                        transaction.getTransactionExternalKey(),
+                                                                        transaction.getPaymentId(),
+                                                                        transaction.getPaymentExternalKey(),
+                                                                        transaction.getTransactionType(),
+                                                                        transaction.getAmount(),
+                                                                        transaction.getCurrency(),
+                                                                        null,
+                                                                        BigDecimal.ZERO,
+                                                                        transaction.getCurrency(),
+                                                                        TransactionStatus.PLUGIN_FAILURE.name(),
+                                                                        null,
+                                                                        null,
+                                                                        null,
+                                                                        null,
+                                                                        ImmutableList.<org.killbill.billing.client.model.PluginProperty>of(),
+
+                                                                        ImmutableList.<org.killbill.billing.client.model.AuditLog>of());
+    }
+
     private <R, CR> CR internalGenericPaymentTransactionOperation(final ClientOperation<R> op, final ResultConverter<R, CR> converter, final UUID tenantId, final CR defaultValue) throws PaymentPluginApiException {
+        final TenantSnapshot snapshot = configurationHandler.acquireSnapshot(tenantId);
+        try {
+            return internalGenericPaymentTransactionOperation(op, converter, snapshot, tenantId, defaultValue);
+        } finally {
+            if (snapshot != null) {
+                snapshot.release();
+            }
+        }
+    }
 
-        KillBillClientOnOff client = null;
+    // The snapshot is retained by the caller
+    private <R, CR> CR internalGenericPaymentTransactionOperation(final ClientOperation<R> op, final ResultConverter<R, CR> converter, @Nullable final TenantSnapshot snapshot, final UUID tenantId, final CR defaultValue) throws PaymentPluginApiException {
+
+        KeyedSequencer<UUID>.Turn accountTurn = null;
+        AdmissionScheduler.Flow admittedFlow = null;
         try {
             // Handle (generic) case where client is not configured
-            client = configurationHandler.getConfigurable(tenantId);
+            final KillBillClientOnOff client = snapshot.getClient();
             if (!client.isActive()) {
                 logService.log(LogService.LOG_DEBUG, "Skipping deactivated KillBillClient...");
                 return defaultValue;
             }
-            final R result = op.doOperation(client, DEFAULT_OPTIONS);
-            return converter != null ? converter.convertModelToApi(result) : null;
 
+            // Before queueing for admission, so that an operation waiting for the previous ones on its account doesn't hold any slot
+            if (accountSequencer != null && op.getKbAccountId() != null && op.getLane() == PriorityLane.INTERACTIVE) {
+                accountTurn = accountSequencer.acquire(op.getKbAccountId(), op.getDeadline());
+            }
+
+            // Only operations with a deadline can be shed
+            final LoadShedder loadShedder = op.getDeadline() != null ? client.getLoadShedder() : null;
+            if (loadShedder != null) {
+                loadShedder.checkBeforeQueueing(op.getEndpointClass(), op.getDeadline());
+            }
+            final long queueStartNanos = System.nanoTime();
+
+            // Before the circuit breaker and the limiters, so that the tenant's excess operations queue up here rather than hold KB-P slots
+            final AdmissionScheduler.Flow admissionFlow = admissionScheduler != null ? client.getAdmissionFlow() : null;
+            if (admissionFlow != null) {
+                if (!tryAdmit(admissionFlow, op.getDeadline())) {
+                    if (op.getDeadline() != null) {
+                        op.getDeadline().check("ADMISSION");
+                    }
+                    throw new PaymentBridgePluginApiException(String.format("Tenant admission rate exceeded, queueDepth='%s'", admissionFlow.getQueueDepth()),
+                                                              op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
+                }
+                admittedFlow = admissionFlow;
+            }
+            if (loadShedder != null) {
+                loadShedder.checkBeforeCall(op.getEndpointClass(), op.getDeadline());
+            }
+            final PaymentConfig paymentConfig = getPaymentConfig(snapshot, tenantId);
+            final RemoteResolver resolver = buildRemoteResolver(client, DEFAULT_OPTIONS, tenantId, paymentConfig, op.getDeadline());
+            final Executor executor = getExecutor(op.getLane(), paymentConfig);
+
+            // Fail fast before taking any slot: the outcome itself is recorded around the KB-P call (see RemoteResolver)
+            final CircuitBreaker circuitBreaker = client.getCircuitBreakers() != null ? client.getCircuitBreakers().get(op.getEndpointClass()) : null;
+            if (circuitBreaker != null && circuitBreaker.isOpen()) {
+                throw new CircuitBreakerOpenException(op.getEndpointClass());
+            }
+
+            final ConcurrencyLimiter tenantConcurrencyLimiter = client.getConcurrencyLimiter();
+            final ConcurrencyLimiter rejectingConcurrencyLimiter = acquireConcurrencyLimiters(tenantConcurrencyLimiter, op.getDeadline());
+            if (rejectingConcurrencyLimiter != null) {
+                final PaymentPluginApiException e = new PaymentBridgePluginApiException(String.format("KB-P concurrency limit reached, limiter='%s', limit='%s'", rejectingConcurrencyLimiter.getName(), rejectingConcurrencyLimiter.getLimit()),
+                                                                                        op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
+                if (op.getDeadline() != null) {
+                    // The wait for a slot used up the budget
+                    op.getDeadline().check("CONCURRENCY_LIMIT");
+                }
+                throw e;
+            }
+
+            final long startNanos = System.nanoTime();
+            if (loadShedder != null) {
+                loadShedder.onQueued(startNanos - queueStartNanos);
+            }
+            final CR result;
+            try {
+                if (executor != null) {
+                    // Only this (outermost) thread blocks, the operation itself runs as a chain of stages
+                    result = awaitOperation(op.doOperationAsync(client, DEFAULT_OPTIONS, resolver, executor)
+                                              .thenApply(r -> converter != null ? converter.convertModelToApi(r) : null));
+                } else {
+                    final R r = op.doOperation(client, DEFAULT_OPTIONS, resolver);
+                    result = converter != null ? converter.convertModelToApi(r) : null;
+                }
+            } catch (final KillBillClientException e) {
+                if (RemoteResolver.isNotFound(e)) {
+                    resolver.invalidateCachedMappings();
+                }
+                onOperationCompleted(tenantConcurrencyLimiter, client.getLoadShedder(), op.getEndpointClass(), startNanos);
+                throw e;
+            } catch (final RejectedExecutionException e) {
+                // Saturated lane: the operation didn't run, so its latency says nothing about KB-P
+                releaseConcurrencyLimiters(tenantConcurrencyLimiter);
+                throw e;
+            } catch (final Throwable e) {
+                onOperationCompleted(tenantConcurrencyLimiter, client.getLoadShedder(), op.getEndpointClass(), startNanos);
+                throw e;
+            }
+            onOperationCompleted(tenantConcurrencyLimiter, client.getLoadShedder(), op.getEndpointClass(), startNanos);
+            return result;
+
+        } catch (final CircuitBreakerOpenException | LoadSheddingException e) {
+            logService.log(LogService.LOG_WARNING, String.format("Failing fast operation='%s', kbAccountId='%s', kbPaymentId='%s': %s",
+                                                                 op.getTransactionType(), op.getKbAccountId(), op.getKbPaymentId(), e.getMessage()));
+            final R fastFailureResult = op.getFastFailureResult();
+            if (fastFailureResult == null) {
+                throw new PaymentBridgePluginApiException(e.getMessage(), op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
+            }
+            return converter != null ? converter.convertModelToApi(fastFailureResult) : null;
+        } catch (final RejectedExecutionException e) {
+            throw new PaymentBridgePluginApiException(String.format("Too many %s operations in progress", op.getLane()), op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
+        } catch (final DeadlineExceededException e) {
+            logService.log(LogService.LOG_WARNING, String.format("Giving up operation='%s', kbAccountId='%s', kbPaymentId='%s': %s",
+                                                                 op.getTransactionType(), op.getKbAccountId(), op.getKbPaymentId(), e.getMessage()));
+            throw new PaymentBridgePluginApiException(e.getMessage(), op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
         } catch (final KillBillClientException e) { // When calling killbill client directly
             throw new PaymentBridgePluginApiException(e, op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
         } catch (final WrappedKillBillClientException e) { // When going through resolver where java 8 stream api mask checked exceptions
@@ -486,9 +893,12 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
             throw new PaymentBridgePluginApiException(e.getMessage(), op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
         } catch (UnresolvedException e) { // When calling killbill client directly
             throw new PaymentBridgePluginApiException(e.getMessage(), op.getKbAccountId(), op.getKbPaymentId(), op.getKbPaymentMethodId(), op.getTransactionType());
-        }  finally {
-            if (client != null) {
-                client.close();
+        } finally {
+            if (admittedFlow != null) {
+                admissionScheduler.release();
+            }
+            if (accountTurn != null) {
+                accountTurn.release();
             }
         }
     }
@@ -499,15 +909,40 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
         private final UUID kbPaymentId;
         private final UUID kbPaymentMethodId;
         private final String transactionType;
+        private final EndpointClass endpointClass;
+        private final Deadline deadline;
+
+        public ClientOperation(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final String transactionType, final EndpointClass endpointClass) {
+            this(kbAccountId, kbPaymentId, kbPaymentMethodId, transactionType, endpointClass, null);
+        }
 
-        public ClientOperation(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final String transactionType) {
+        public ClientOperation(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final String transactionType, final EndpointClass endpointClass, @Nullable final Deadline deadline) {
             this.kbAccountId = kbAccountId;
             this.kbPaymentId = kbPaymentId;
             this.kbPaymentMethodId = kbPaymentMethodId;
             this.transactionType = transactionType;
+            this.endpointClass = endpointClass;
+            this.deadline = deadline;
+        }
+
+        public abstract R doOperation(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver) throws KillBillClientException, PaymentPluginApiException, UnresolvedException;
+
+        // Operations can override this to split their work in independent stages
+        public CompletableFuture<R> doOperationAsync(final KillBillClient client, final RequestOptions requestOptions, final RemoteResolver resolver, final Executor executor) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return doOperation(client, requestOptions, resolver);
+                } catch (final KillBillClientException | PaymentPluginApiException | UnresolvedException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
         }
 
-        public abstract R doOperation(final KillBillClient client, final RequestOptions requestOptions) throws KillBillClientException, PaymentPluginApiException, UnresolvedException;
+        // Result returned instead of calling KB-P while its circuit breaker is open (null to fail the call)
+        @Nullable
+        public R getFastFailureResult() {
+            return null;
+        }
 
         public UUID getKbAccountId() {
             return kbAccountId;
@@ -524,5 +959,18 @@ public class BridgePaymentPluginApi implements PaymentPluginApi {
         public String getTransactionType() {
             return transactionType;
         }
+
+        public EndpointClass getEndpointClass() {
+            return endpointClass;
+        }
+
+        public PriorityLane getLane() {
+            return PriorityLane.forTransactionType(transactionType);
+        }
+
+        @Nullable
+        public Deadline getDeadline() {
+            return deadline;
+        }
     }
 }
@@ -40,14 +40,17 @@ public class PaymentTransactionInfoPluginListResultConverter implements ResultCo
 
     private static final Logger logger = LoggerFactory.getLogger(PaymentTransactionInfoPluginListResultConverter.class);
 
-    private final OSGIKillbillAPI killbillAPI;
+    private final LocalResolver localResolver;
     private final UUID kbPaymentId;
-    private final TenantContext context;
 
     public PaymentTransactionInfoPluginListResultConverter(final OSGIKillbillAPI killbillAPI, final UUID kbPaymentId, final TenantContext context) {
-        this.killbillAPI = killbillAPI;
+        this(new LocalResolver(killbillAPI, context), kbPaymentId);
+    }
+
+    // The caller's resolver is re-used, so the KB-S payment isn't fetched again if it was already loaded during this call
+    public PaymentTransactionInfoPluginListResultConverter(final LocalResolver localResolver, final UUID kbPaymentId) {
+        this.localResolver = localResolver;
         this.kbPaymentId = kbPaymentId;
-        this.context = context;
     }
 
     @Override
@@ -56,7 +59,6 @@ public class PaymentTransactionInfoPluginListResultConverter implements ResultCo
             return ImmutableList.<PaymentTransactionInfoPlugin>of();
         }
 
-        final LocalResolver localResolver = new LocalResolver(killbillAPI, context);
         final Payment kbSPayment;
         try {
             kbSPayment = localResolver.getPayment(kbPaymentId);
@@ -27,36 +27,88 @@ import org.killbill.billing.payment.api.PaymentMethod;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
 import org.killbill.billing.util.callcontext.TenantContext;
 
+import javax.annotation.Nullable;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 public class LocalResolver {
 
     private final TenantContext tenantContext;
     private final OSGIKillbillAPI killbillAPI;
+    private final Executor executor;
+
+    // Lookups are memoized: a resolver is scoped to a single plugin call, so each entity is fetched from KB-S at most once
+    private final ConcurrentMap<UUID, CompletableFuture<Account>> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, CompletableFuture<Payment>> payments = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, CompletableFuture<PaymentMethod>> paymentMethods = new ConcurrentHashMap<>();
 
     public LocalResolver(final OSGIKillbillAPI killbillAPI, final TenantContext tenantContext) {
+        this(killbillAPI, tenantContext, null);
+    }
+
+    // When an executor is specified, prefetch starts the KB-S lookups concurrently
+    public LocalResolver(final OSGIKillbillAPI killbillAPI, final TenantContext tenantContext, @Nullable final Executor executor) {
         this.tenantContext = tenantContext;
         this.killbillAPI = killbillAPI;
+        this.executor = executor;
     }
 
-    public String getPaymentMethodExternalKey(final UUID kbPaymentMethodId) throws PaymentPluginApiException {
-        try {
-            final PaymentMethod paymentMethod = killbillAPI.getPaymentApi().getPaymentMethodById(kbPaymentMethodId, false, false, ImmutableList.of(), tenantContext);
-            return paymentMethod.getExternalKey();
-        } catch (final PaymentApiException e) {
-            throw new PaymentPluginApiException(String.format("Failed to retrieve payment method %s", kbPaymentMethodId), e);
+    public LocalResolver prefetch(@Nullable final UUID kbAccountId, @Nullable final UUID kbPaymentId, @Nullable final UUID kbPaymentMethodId) {
+        if (executor == null) {
+            return this;
+        }
+
+        if (kbAccountId != null) {
+            prefetch(accounts, kbAccountId, this::fetchAccount);
+        }
+        if (kbPaymentId != null) {
+            prefetch(payments, kbPaymentId, this::fetchPayment);
         }
+        if (kbPaymentMethodId != null) {
+            prefetch(paymentMethods, kbPaymentMethodId, this::fetchPaymentMethod);
+        }
+        return this;
+    }
+
+    public String getPaymentMethodExternalKey(final UUID kbPaymentMethodId) throws PaymentPluginApiException {
+        final PaymentMethod paymentMethod = getPaymentMethod(kbPaymentMethodId);
+        return paymentMethod.getExternalKey();
+    }
+
+    public PaymentMethod getPaymentMethod(final UUID kbPaymentMethodId) throws PaymentPluginApiException {
+        return get(paymentMethods, kbPaymentMethodId, this::fetchPaymentMethod);
     }
 
     public Account getAccount(final UUID kbAccountId) throws PaymentPluginApiException {
-        try {
-            final Account account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, tenantContext);
-            return account;
-        } catch (final AccountApiException e) {
-            throw new PaymentPluginApiException(String.format("Failed to retrieve account %s", kbAccountId), e);
+        return get(accounts, kbAccountId, this::fetchAccount);
+    }
+
+
+    // Returns the prefetched lookup if any, otherwise loads the account synchronously
+    public CompletableFuture<Account> getAccountAsync(final UUID kbAccountId) {
+        final CompletableFuture<Account> memoized = accounts.get(kbAccountId);
+        if (memoized != null) {
+            // A failed prefetch is retried, as in getAccount
+            return memoized.handle((account, e) -> e == null ? CompletableFuture.completedFuture(account) : loadAccountAsync(kbAccountId))
+                           .thenCompose(Function.identity());
         }
+        return loadAccountAsync(kbAccountId);
     }
 
+    private CompletableFuture<Account> loadAccountAsync(final UUID kbAccountId) {
+        final CompletableFuture<Account> result = new CompletableFuture<>();
+        try {
+            result.complete(getAccount(kbAccountId));
+        } catch (final PaymentPluginApiException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
 
     public String getAccountExternalKey(final UUID kbAccountId) throws PaymentPluginApiException {
         final Account account = getAccount(kbAccountId);
@@ -64,11 +116,7 @@ public class LocalResolver {
     }
 
     public Payment getPayment(final UUID kbPaymentId) throws PaymentPluginApiException {
-        try {
-            return killbillAPI.getPaymentApi().getPayment(kbPaymentId, false, false, ImmutableList.of(), tenantContext);
-        } catch (PaymentApiException e) {
-            throw new PaymentPluginApiException(String.format("Failed to retrieve payment %s", kbPaymentId), e);
-        }
+        return get(payments, kbPaymentId, this::fetchPayment);
     }
 
 
@@ -76,7 +124,83 @@ public class LocalResolver {
         final Payment payment = getPayment(kbPaymentId);
         return payment.getExternalKey();
     }
-}
 
+    private <T> void prefetch(final ConcurrentMap<UUID, CompletableFuture<T>> memoized, final UUID id, final Fetcher<T> fetcher) {
+        final CompletableFuture<T> future = memoized.computeIfAbsent(id, key -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetch(key);
+            } catch (final PaymentPluginApiException e) {
+                throw new CompletionException(e);
+            }
+        }, executor));
+        // Failures aren't memoized
+        future.whenComplete((result, e) -> {
+            if (e != null) {
+                memoized.remove(id, future);
+            }
+        });
+    }
+
+    private <T> T get(final ConcurrentMap<UUID, CompletableFuture<T>> memoized, final UUID id, final Fetcher<T> fetcher) throws PaymentPluginApiException {
+        final CompletableFuture<T> future = memoized.get(id);
+        if (future != null) {
+            try {
+                return join(future);
+            } catch (final PaymentPluginApiException | RuntimeException e) {
+                // The prefetch failed: retry synchronously
+            }
+        }
+
+        final T value = fetcher.fetch(id);
+        final CompletableFuture<T> fetched = CompletableFuture.completedFuture(value);
+        // The failed prefetch may not have been removed yet
+        if (future == null || !memoized.replace(id, future, fetched)) {
+            memoized.putIfAbsent(id, fetched);
+        }
+        return value;
+    }
 
+    private PaymentMethod fetchPaymentMethod(final UUID kbPaymentMethodId) throws PaymentPluginApiException {
+        try {
+            return killbillAPI.getPaymentApi().getPaymentMethodById(kbPaymentMethodId, false, false, ImmutableList.of(), tenantContext);
+        } catch (final PaymentApiException e) {
+            throw new PaymentPluginApiException(String.format("Failed to retrieve payment method %s", kbPaymentMethodId), e);
+        }
+    }
 
+    private Account fetchAccount(final UUID kbAccountId) throws PaymentPluginApiException {
+        try {
+            return killbillAPI.getAccountUserApi().getAccountById(kbAccountId, tenantContext);
+        } catch (final AccountApiException e) {
+            throw new PaymentPluginApiException(String.format("Failed to retrieve account %s", kbAccountId), e);
+        }
+    }
+
+    private Payment fetchPayment(final UUID kbPaymentId) throws PaymentPluginApiException {
+        try {
+            return killbillAPI.getPaymentApi().getPayment(kbPaymentId, false, false, ImmutableList.of(), tenantContext);
+        } catch (PaymentApiException e) {
+            throw new PaymentPluginApiException(String.format("Failed to retrieve payment %s", kbPaymentId), e);
+        }
+    }
+
+    // Preserve the exceptions thrown by the synchronous lookups
+    private static <T> T join(final CompletableFuture<T> future) throws PaymentPluginApiException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof PaymentPluginApiException) {
+                throw (PaymentPluginApiException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private interface Fetcher<T> {
+
+        T fetch(UUID id) throws PaymentPluginApiException;
+    }
+}
@@ -17,52 +17,418 @@
 
 package org.killbill.billing.plugin.bridge.api.resolver.remote;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ErrorCode;
 import org.killbill.billing.client.KillBillClient;
 import org.killbill.billing.client.KillBillClientException;
 import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.Request;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.killbill.billing.plugin.bridge.core.AdaptiveTimeouts;
+import org.killbill.billing.plugin.bridge.core.CircuitBreaker;
+import org.killbill.billing.plugin.bridge.core.CircuitBreakerOpenException;
+import org.killbill.billing.plugin.bridge.core.CircuitBreakerRegistry;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.Deadline;
+import org.killbill.billing.plugin.bridge.core.EndpointClass;
+import org.killbill.billing.plugin.bridge.core.RequestHedger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
+
 public class RemoteResolver {
 
     private final Logger logger = LoggerFactory.getLogger(RemoteResolver.class);
 
     private final KillBillClient client;
     private final RequestOptions requestOptions;
-
+    private final Executor executor;
+    private final RemoteResolverCache cache;
+    private final UUID kbTenantId;
+    private final String targetKey;
+    private final RemoteResolverStore store;
+    private final RemoteResolverSingleFlight singleFlight;
+    private final CircuitBreakerRegistry circuitBreakers;
+    private final RequestHedger hedger;
+    private final Deadline deadline;
+    private final AdaptiveTimeouts timeouts;
+    private final List<ConcurrencyLimiter> concurrencyLimiters;
+    // Requests which have been served from the cache or the store
+    private final Queue<Request> cachedRequests = new ConcurrentLinkedQueue<>();
 
     public RemoteResolver(final KillBillClient client, final RequestOptions requestOptions) {
-        this.client = client;
-        this.requestOptions = requestOptions;
+        this(builder(client, requestOptions));
+    }
+
+    private RemoteResolver(final Builder builder) {
+        this.client = builder.client;
+        this.requestOptions = builder.requestOptions;
+        this.executor = builder.executor;
+        this.cache = builder.cache;
+        this.kbTenantId = builder.kbTenantId;
+        this.targetKey = builder.targetKey;
+        this.store = builder.kbTenantId != null && builder.targetKey != null ? builder.store : null;
+        this.singleFlight = builder.singleFlight;
+        this.circuitBreakers = builder.circuitBreakers;
+        this.hedger = builder.hedger;
+        this.deadline = builder.deadline;
+        this.timeouts = builder.timeouts;
+        this.concurrencyLimiters = builder.concurrencyLimiters;
+    }
+
+    public static Builder builder(final KillBillClient client, final RequestOptions requestOptions) {
+        return new Builder(client, requestOptions);
     }
 
-    // TODO We could execute some requests in parallel -- exercise for the reader...
     public RemoteResolverResponse resolve(final RemoteResolverRequest request) throws KillBillClientException {
         final RemoteResolverResponse.RemoteResolverResponseBuilder result = new RemoteResolverResponse.RemoteResolverResponseBuilder();
-        request.getRequests()
-               .stream()
-               .forEachOrdered(r -> {
-                   boolean resolved = false;
-                   try {
-                       r.resolve(client, requestOptions, result);
-                       resolved = true;
-                   } catch (final KillBillClientException e) {
-                       logger.warn("RemoteResolver {}: KillBillClientException...", request.getRequestId(), e);
-                       throw new  WrappedKillBillClientException(e);
-                   } catch (final UnresolvedException e) {
-                       logger.warn("RemoteResolver {}: UnresolvedException...", request.getRequestId(), e);
-                       throw new WrappedUnresolvedException(e.getMessage());
-                   } finally {
-                       if (resolved) {
-                           logger.info("RemoteResolver {}: type='{}', id='{}' -> resolvedId='{}'",
-                                                     request.getRequestId(), r.getType(), r.getSrcKey(), result.getMapping(r.getType()));
-                       }
-                   }
-               });
+        if (executor == null || request.getRequests().size() < 2) {
+            request.getRequests()
+                   .stream()
+                   .forEachOrdered(r -> resolve(request, r, result));
+        } else {
+            resolveConcurrently(request, result);
+        }
         return result.build();
     }
 
+    private void resolveConcurrently(final RemoteResolverRequest request, final RemoteResolverResponse.RemoteResolverResponseBuilder result) {
+        final Iterator<Request> iterator = request.getRequests().iterator();
+        final Request first = iterator.next();
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        while (iterator.hasNext()) {
+            final Request r = iterator.next();
+            futures.add(CompletableFuture.runAsync(() -> resolve(request, r, result), executor));
+        }
+
+        // The calling thread resolves one of the requests itself instead of sitting idle
+        RuntimeException failure = null;
+        try {
+            resolve(request, first, result);
+        } catch (final RuntimeException e) {
+            failure = e;
+        }
+
+        // Always wait for all lookups, so that nothing updates the builder once we return
+        for (final CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (final CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // For the side-effect free KB-P calls made by the operations themselves (never for writes)
+    public <T> T read(final EndpointClass endpointClass, final RequestHedger.Call<T> call) throws KillBillClientException, UnresolvedException {
+        checkDeadline(endpointClass.name());
+        return callAndRecord(endpointClass, () -> callIdempotent(endpointClass, call));
+    }
+
+    // For the KB-P calls with side effects made by the operations themselves: never hedged, nor abandoned.
+    // The deadline is left to the caller, which knows whether a write can still be (re)tried.
+    public <T> T write(final EndpointClass endpointClass, final WriteCall<T> call) throws KillBillClientException {
+        try {
+            return callAndRecord(endpointClass, call::call);
+        } catch (final UnresolvedException e) {
+            // Can't happen, writes don't resolve anything
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // To be called when KB-P doesn't know about one of the ids we passed along: mappings served from the cache or the store may be stale
+    public void invalidateCachedMappings() {
+        Request r;
+        while ((r = cachedRequests.poll()) != null) {
+            logger.info("RemoteResolver: invalidating type='{}', id='{}'", r.getType(), r.getSrcKey());
+            if (cache != null) {
+                cache.invalidate(r.getType(), r.getSrcKey());
+            }
+            if (store != null) {
+                store.invalidate(kbTenantId, targetKey, r.getType(), r.getSrcKey());
+            }
+        }
+    }
+
+    public static boolean isNotFound(final KillBillClientException e) {
+        if (e.getBillingException() == null || e.getBillingException().getCode() == null) {
+            return false;
+        }
+
+        final int code = e.getBillingException().getCode();
+        return code == ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID.getCode() ||
+               code == ErrorCode.PAYMENT_NO_SUCH_PAYMENT_METHOD.getCode() ||
+               code == ErrorCode.PAYMENT_NO_SUCH_PAYMENT.getCode();
+    }
+
+    private void resolve(final RemoteResolverRequest request, final Request r, final RemoteResolverResponse.RemoteResolverResponseBuilder result) {
+        boolean resolved = false;
+        boolean cached = false;
+        try {
+            cached = resolveMapping(r, result);
+            resolved = true;
+        } catch (final KillBillClientException e) {
+            logger.warn("RemoteResolver {}: KillBillClientException...", request.getRequestId(), e);
+            throw new WrappedKillBillClientException(e);
+        } catch (final UnresolvedException e) {
+            logger.warn("RemoteResolver {}: UnresolvedException...", request.getRequestId(), e);
+            throw new WrappedUnresolvedException(e.getMessage());
+        } finally {
+            if (resolved) {
+                logger.info("RemoteResolver {}: type='{}', id='{}' -> resolvedId='{}', cached='{}'",
+                            request.getRequestId(), r.getType(), r.getSrcKey(), result.getMapping(r.getType()), cached);
+            }
+        }
+    }
+
+    // Returns true if the mapping was served from the cache or the store
+    private boolean resolveMapping(final Request r, final RemoteResolverResponse.RemoteResolverResponseBuilder result) throws KillBillClientException, UnresolvedException {
+        if (cache == null && store == null && singleFlight == null) {
+            checkDeadline(r.getType().name());
+            fetch(r, result);
+            return false;
+        }
+
+        final UUID cachedMapping = cache != null ? cache.getMapping(r.getType(), r.getSrcKey()) : null;
+        if (cachedMapping != null) {
+            result.setMapping(r.getType(), cachedMapping);
+            cachedRequests.add(r);
+            return true;
+        }
+
+        // The store is a database round-trip
+        if (store != null) {
+            checkDeadline(r.getType().name());
+        }
+        final UUID storedMapping = store != null ? store.getMapping(kbTenantId, targetKey, r.getType(), r.getSrcKey()) : null;
+        if (storedMapping != null) {
+            if (cache != null) {
+                cache.putMapping(r.getType(), r.getSrcKey(), storedMapping);
+            }
+            result.setMapping(r.getType(), storedMapping);
+            cachedRequests.add(r);
+            return true;
+        }
+
+        // Checked before joining a single flight, so that our deadline doesn't fail the other callers
+        checkDeadline(r.getType().name());
+        final UUID mapping;
+        try {
+            mapping = singleFlight != null ? singleFlight.resolve(r, () -> fetchMapping(r)) : fetchMapping(r);
+        } catch (final UnresolvedException e) {
+            if (cache != null) {
+                cache.putUnresolved(r.getType(), r.getSrcKey(), e.getMessage());
+            }
+            throw e;
+        }
+
+        result.setMapping(r.getType(), mapping);
+        if (cache != null) {
+            cache.putMapping(r.getType(), r.getSrcKey(), mapping);
+        }
+        if (store != null) {
+            store.addMapping(kbTenantId, targetKey, r.getType(), r.getSrcKey(), mapping);
+        }
+        return false;
+    }
+
+    private UUID fetchMapping(final Request r) throws KillBillClientException, UnresolvedException {
+        final RemoteResolverResponse.RemoteResolverResponseBuilder mapping = new RemoteResolverResponse.RemoteResolverResponseBuilder();
+        fetch(r, mapping);
+        return mapping.getMapping(r.getType());
+    }
+
+    private void fetch(final Request r, final RemoteResolverResponse.RemoteResolverResponseBuilder result) throws KillBillClientException, UnresolvedException {
+        callAndRecord(toEndpointClass(r.getType()), () -> {
+            doFetch(r, result);
+            return null;
+        });
+    }
+
+    // Each KB-P call (hedged requests included) is a single outcome and latency sample for the circuit breaker and the concurrency limiters
+    private <T> T callAndRecord(final EndpointClass endpointClass, final RequestHedger.Call<T> call) throws KillBillClientException, UnresolvedException {
+        final CircuitBreaker circuitBreaker = circuitBreakers != null ? circuitBreakers.get(endpointClass) : null;
+        if (circuitBreaker == null && concurrencyLimiters.isEmpty()) {
+            return call.call();
+        }
+
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            throw new CircuitBreakerOpenException(circuitBreaker.getEndpointClass());
+        }
+        final long startNanos = System.nanoTime();
+        final T result;
+        try {
+            result = call.call();
+        } catch (final Throwable e) {
+            onCallCompleted(endpointClass, circuitBreaker, System.nanoTime() - startNanos, e);
+            throw e;
+        }
+        onCallCompleted(endpointClass, circuitBreaker, System.nanoTime() - startNanos, null);
+        return result;
+    }
+
+    private void onCallCompleted(final EndpointClass endpointClass, @Nullable final CircuitBreaker circuitBreaker, final long latencyNanos, @Nullable final Throwable error) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onResult(latencyNanos, error);
+        }
+        final boolean dropped = error != null && CircuitBreaker.isFailure(error);
+        for (final ConcurrencyLimiter concurrencyLimiter : concurrencyLimiters) {
+            concurrencyLimiter.onCall(endpointClass, latencyNanos, dropped);
+        }
+    }
+
+    private void checkDeadline(final String step) {
+        if (deadline != null) {
+            deadline.check(step);
+        }
+    }
+
+    private void doFetch(final Request r, final RemoteResolverResponse.RemoteResolverResponseBuilder result) throws KillBillClientException, UnresolvedException {
+        if ((hedger == null && timeouts == null) || !r.isIdempotent()) {
+            r.resolve(client, requestOptions, result);
+            return;
+        }
+
+        // Each attempt resolves into its own builder, only the winning one is kept
+        final RemoteResolverResponse.RemoteResolverResponseBuilder mapping = callIdempotent(toEndpointClass(r.getType()), () -> {
+            final RemoteResolverResponse.RemoteResolverResponseBuilder attempt = new RemoteResolverResponse.RemoteResolverResponseBuilder();
+            r.resolve(client, requestOptions, attempt);
+            return attempt;
+        });
+        result.setMapping(r.getType(), mapping.getMapping(r.getType()));
+    }
+
+    private <T> T callIdempotent(final EndpointClass endpointClass, final RequestHedger.Call<T> call) throws KillBillClientException, UnresolvedException {
+        if (timeouts != null) {
+            return timeouts.call(endpointClass, call, hedger);
+        }
+        return hedger != null ? hedger.call(endpointClass, call) : call.call();
+    }
+
+    private static EndpointClass toEndpointClass(final ResolvingType type) {
+        switch (type) {
+            case ACCOUNT:
+                return EndpointClass.ACCOUNT;
+            case PAYMENT_METHOD:
+                return EndpointClass.PAYMENT_METHOD;
+            case PAYMENT:
+            default:
+                return EndpointClass.PAYMENT_READ;
+        }
+    }
+
+    public static class Builder {
+
+        private final KillBillClient client;
+        private final RequestOptions requestOptions;
+        private Executor executor;
+        private RemoteResolverCache cache;
+        private UUID kbTenantId;
+        private String targetKey;
+        private RemoteResolverStore store;
+        private RemoteResolverSingleFlight singleFlight;
+        private CircuitBreakerRegistry circuitBreakers;
+        private RequestHedger hedger;
+        private Deadline deadline;
+        private AdaptiveTimeouts timeouts;
+        private List<ConcurrencyLimiter> concurrencyLimiters = ImmutableList.of();
+
+        private Builder(final KillBillClient client, final RequestOptions requestOptions) {
+            this.client = client;
+            this.requestOptions = requestOptions;
+        }
+
+        // The independent ACCOUNT, PAYMENT_METHOD and PAYMENT lookups are run concurrently
+        public Builder withExecutor(@Nullable final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // Lookups go through the cache, then the durable store (if any), and only then KB-P
+        public Builder withCache(@Nullable final RemoteResolverCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        // The store is only used for a given tenant and KB-P target (see RemoteResolverStore#targetKey)
+        public Builder withStore(@Nullable final UUID kbTenantId, @Nullable final String targetKey, @Nullable final RemoteResolverStore store) {
+            this.kbTenantId = kbTenantId;
+            this.targetKey = targetKey;
+            this.store = store;
+            return this;
+        }
+
+        // Concurrent KB-P lookups for the same key are coalesced
+        public Builder withSingleFlight(@Nullable final RemoteResolverSingleFlight singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        // KB-P calls (lookups, reads and writes) fail fast with a CircuitBreakerOpenException while the circuit breaker of their endpoint class is open
+        public Builder withCircuitBreakers(@Nullable final CircuitBreakerRegistry circuitBreakers) {
+            this.circuitBreakers = circuitBreakers;
+            return this;
+        }
+
+        // Idempotent KB-P lookups are hedged
+        public Builder withHedger(@Nullable final RequestHedger hedger) {
+            this.hedger = hedger;
+            return this;
+        }
+
+        // No KB-P lookup is started once the deadline has passed (a DeadlineExceededException is thrown instead)
+        public Builder withDeadline(@Nullable final Deadline deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        // Idempotent KB-P lookups give up after the adaptive timeout of their endpoint class
+        public Builder withTimeouts(@Nullable final AdaptiveTimeouts timeouts) {
+            this.timeouts = timeouts;
+            return this;
+        }
+
+        // The KB-P calls are reported to these limiters, whose slots are held by the caller for the whole operation
+        public Builder withConcurrencyLimiters(final ConcurrencyLimiter... concurrencyLimiters) {
+            final ImmutableList.Builder<ConcurrencyLimiter> limiters = ImmutableList.builder();
+            for (final ConcurrencyLimiter concurrencyLimiter : concurrencyLimiters) {
+                if (concurrencyLimiter != null) {
+                    limiters.add(concurrencyLimiter);
+                }
+            }
+            this.concurrencyLimiters = limiters.build();
+            return this;
+        }
+
+        public RemoteResolver build() {
+            return new RemoteResolver(this);
+        }
+    }
+
+    public interface WriteCall<T> {
+
+        T call() throws KillBillClientException;
+    }
 
     public static class WrappedKillBillClientException extends RuntimeException {
         public WrappedKillBillClientException(final Throwable cause) {
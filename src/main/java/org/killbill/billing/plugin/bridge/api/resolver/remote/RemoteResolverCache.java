@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+//
+// Cache of the KB-S externalKey -> KB-P id mappings. Once they exist, these mappings never change, so there is
+// no need to go back to KB-P for every payment. There is one instance per KillBillClient, i.e. per tenant configuration.
+//
+public class RemoteResolverCache {
+
+    private final Cache<Key, UUID> mappings;
+    // Optional negative caching of unresolved keys
+    private final Cache<Key, String> unresolved;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public RemoteResolverCache(final long maxSize, final long ttlSec, final long negativeTtlSec) {
+        this.mappings = CacheBuilder.newBuilder()
+                                    .maximumSize(maxSize)
+                                    .expireAfterWrite(ttlSec, TimeUnit.SECONDS)
+                                    .build();
+        this.unresolved = negativeTtlSec > 0 ? CacheBuilder.newBuilder()
+                                                           .maximumSize(maxSize)
+                                                           .expireAfterWrite(negativeTtlSec, TimeUnit.SECONDS)
+                                                           .<Key, String>build() : null;
+    }
+
+    // Returns null on a cache miss, throws UnresolvedException if the key is known not to exist on KB-P
+    @Nullable
+    public UUID getMapping(final ResolvingType type, final String srcKey) throws UnresolvedException {
+        final Key key = new Key(type, srcKey);
+
+        final UUID mapping = mappings.getIfPresent(key);
+        if (mapping != null) {
+            hitCount.incrementAndGet();
+            return mapping;
+        }
+
+        final String unresolvedMessage = unresolved != null ? unresolved.getIfPresent(key) : null;
+        if (unresolvedMessage != null) {
+            negativeHitCount.incrementAndGet();
+            throw new UnresolvedException(unresolvedMessage);
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    public void putMapping(final ResolvingType type, final String srcKey, @Nullable final UUID mapping) {
+        if (mapping == null) {
+            return;
+        }
+
+        final Key key = new Key(type, srcKey);
+        mappings.put(key, mapping);
+        if (unresolved != null) {
+            unresolved.invalidate(key);
+        }
+    }
+
+    public void putUnresolved(final ResolvingType type, final String srcKey, final String message) {
+        if (unresolved != null) {
+            unresolved.put(new Key(type, srcKey), message);
+        }
+    }
+
+    public void invalidate(final ResolvingType type, final String srcKey) {
+        final Key key = new Key(type, srcKey);
+        mappings.invalidate(key);
+        if (unresolved != null) {
+            unresolved.invalidate(key);
+        }
+        invalidationCount.incrementAndGet();
+    }
+
+    // Drops all the mappings, e.g. once the client is closed
+    public void invalidateAll() {
+        mappings.invalidateAll();
+        if (unresolved != null) {
+            unresolved.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return mappings.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    private static final class Key {
+
+        private final ResolvingType type;
+        private final String srcKey;
+
+        private Key(final ResolvingType type, final String srcKey) {
+            this.type = type;
+            this.srcKey = srcKey;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key key = (Key) o;
+
+            if (type != key.type) {
+                return false;
+            }
+            return srcKey != null ? srcKey.equals(key.srcKey) : key.srcKey == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = type != null ? type.hashCode() : 0;
+            result = 31 * result + (srcKey != null ? srcKey.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -54,7 +54,8 @@ public class RemoteResolverRequest {
     public RemoteResolverRequest resolveAccount(final org.killbill.billing.account.api.Account srcAccount, final boolean createIfMissing) throws UnresolvedException {
 
         if (srcAccount.getExternalKey() != null) {
-            requests.add(new Request(ResolvingType.ACCOUNT, srcAccount.getExternalKey(), (client, requestOptions, response) -> {
+            // The lookup may create the account, so it can only be retried or hedged if it doesn't
+            requests.add(new Request(ResolvingType.ACCOUNT, srcAccount.getExternalKey(), !createIfMissing, (client, requestOptions, response) -> {
                 Account account = client.getAccount(srcAccount.getExternalKey(), requestOptions);
                 if (createIfMissing && account == null) {
                     final Account input = new Account();
@@ -79,7 +80,7 @@ public class RemoteResolverRequest {
     public RemoteResolverRequest resolvePM(final String pmExternalKey) throws UnresolvedException {
 
         if (pmExternalKey != null) {
-            requests.add(new Request(ResolvingType.PAYMENT_METHOD, pmExternalKey, (client, requestOptions, response) -> {
+            requests.add(new Request(ResolvingType.PAYMENT_METHOD, pmExternalKey, true, (client, requestOptions, response) -> {
                 final PaymentMethod pm = client.getPaymentMethodByKey(pmExternalKey, requestOptions);
                 if (pm != null) {
                     response.setPaymentMethodIdMapping(pm.getPaymentMethodId());
@@ -94,7 +95,7 @@ public class RemoteResolverRequest {
     public RemoteResolverRequest resolvePayment(final String paymentExternalKey) throws UnresolvedException {
 
         if (paymentExternalKey != null) {
-            requests.add(new Request(ResolvingType.PAYMENT, paymentExternalKey, (client, requestOptions, response) -> {
+            requests.add(new Request(ResolvingType.PAYMENT, paymentExternalKey, true, (client, requestOptions, response) -> {
                 final Payment payment = client.getPaymentByExternalKey(paymentExternalKey, requestOptions);
                 if (payment != null) {
                     response.setPaymentIdMapping(payment.getPaymentId());
@@ -123,11 +124,18 @@ public class RemoteResolverRequest {
 
         private final ResolvingType type;
         private final String srcKey;
+        private final boolean idempotent;
         private final Resolver resolver;
 
         public Request(final ResolvingType type, final String srcKey, final Resolver resolver) {
+            this(type, srcKey, false, resolver);
+        }
+
+        // Idempotent requests are side-effect free on KB-P
+        public Request(final ResolvingType type, final String srcKey, final boolean idempotent, final Resolver resolver) {
             this.type = type;
             this.srcKey = srcKey;
+            this.idempotent = idempotent;
             this.resolver = resolver;
         }
 
@@ -143,6 +151,10 @@ public class RemoteResolverRequest {
             return srcKey;
         }
 
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+
         @Override
         public boolean equals(final Object o) {
             if (this == o) {
@@ -45,13 +45,14 @@ public class RemoteResolverResponse {
         return paymentIdMapping;
     }
 
+    // Mappings may be set concurrently by the RemoteResolver
     public static class RemoteResolverResponseBuilder {
 
 
-        private UUID accountIdMapping;
-        private UUID paymentMethodIdMapping;
-        private UUID paymentIdMapping;
-        private UUID transactionIdMapping;
+        private volatile UUID accountIdMapping;
+        private volatile UUID paymentMethodIdMapping;
+        private volatile UUID paymentIdMapping;
+        private volatile UUID transactionIdMapping;
 
 
         public void setAccountIdMapping(final UUID accountIdMapping) {
@@ -70,7 +71,22 @@ public class RemoteResolverResponse {
             this.transactionIdMapping = transactionIdMapping;
         }
 
-        // Debug
+        public void setMapping(final ResolvingType type, final UUID mapping) {
+            switch (type) {
+                case ACCOUNT:
+                    setAccountIdMapping(mapping);
+                    break;
+                case PAYMENT_METHOD:
+                    setPaymentMethodIdMapping(mapping);
+                    break;
+                case PAYMENT:
+                    setPaymentIdMapping(mapping);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown type " + type);
+            }
+        }
+
         public UUID getMapping(final ResolvingType type) {
             switch (type) {
                 case ACCOUNT:
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.Request;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+
+//
+// Coalesces concurrent resolutions of the same (type, externalKey): only one lookup (and account creation)
+// is in flight per key, the other callers wait for its result. There is one instance per KillBillClient, i.e. per tenant configuration.
+// Distinct keys aren't coalesced any further: KB-P has no bulk lookup endpoint, so a batch would still cost one GET per key.
+//
+public class RemoteResolverSingleFlight {
+
+    // Request equality is based on (type, srcKey) only
+    private final ConcurrentMap<Request, CompletableFuture<UUID>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public interface Loader {
+
+        UUID load() throws KillBillClientException, UnresolvedException;
+    }
+
+    public UUID resolve(final Request r, final Loader loader) throws KillBillClientException, UnresolvedException {
+        final CompletableFuture<UUID> future = new CompletableFuture<>();
+        final CompletableFuture<UUID> existing = inFlight.putIfAbsent(r, future);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return await(existing);
+        }
+
+        try {
+            final UUID mapping = loader.load();
+            future.complete(mapping);
+            return mapping;
+        } catch (final Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(r, future);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private static UUID await(final CompletableFuture<UUID> future) throws KillBillClientException, UnresolvedException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof KillBillClientException) {
+                throw (KillBillClientException) cause;
+            } else if (cause instanceof UnresolvedException) {
+                throw (UnresolvedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+}
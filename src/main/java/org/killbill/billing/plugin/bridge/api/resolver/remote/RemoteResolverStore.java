@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+import org.killbill.billing.plugin.bridge.core.BridgeExecutors;
+import org.killbill.billing.plugin.bridge.dao.BridgeIdMapping;
+import org.killbill.billing.plugin.bridge.dao.BridgeIdMappingDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+//
+// Durable tier behind the RemoteResolverCache: mappings survive restarts and are shared across KB-S nodes.
+// Writes are queued and inserted in batches (write-behind), so the payment path never waits on the database.
+// The store is best effort: any SQL failure is logged and the resolver falls back to KB-P.
+// Mappings are scoped by the KB-P target of the tenant (see targetKey), so that re-pointing a tenant to another
+// KB-P instance (or KB-P tenant) never serves the ids of the previous one.
+//
+public class RemoteResolverStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RemoteResolverStore.class);
+
+    private final BridgeIdMappingDao dao;
+    private final int batchSize;
+    private final BlockingQueue<BridgeIdMapping> pending;
+    private final ScheduledExecutorService flusher;
+
+    public RemoteResolverStore(final BridgeIdMappingDao dao, final int batchSize, final int maxPending, final long flushIntervalMs) {
+        this.dao = dao;
+        this.batchSize = batchSize;
+        this.pending = new LinkedBlockingQueue<BridgeIdMapping>(maxPending);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bridge-mapping-store-%d")
+                                                                                            .setDaemon(true)
+                                                                                            .build());
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Identifies the KB-P server(s) and tenant the mappings come from, without storing the credentials
+    public static String targetKey(final Iterable<String> serverUrls, @Nullable final String apiKey, @Nullable final String apiSecret) {
+        final String target = Joiner.on('\n').useForNull("").join(Joiner.on(',').join(ImmutableSortedSet.copyOf(serverUrls)), apiKey, apiSecret);
+        return Hashing.sha256().hashString(target, StandardCharsets.UTF_8).toString();
+    }
+
+    @Nullable
+    public UUID getMapping(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey) {
+        try {
+            return dao.getTargetId(kbTenantId, targetKey, type, srcKey);
+        } catch (final SQLException e) {
+            logger.warn("Failed to read mapping type='{}', srcKey='{}'", type, srcKey, e);
+            return null;
+        }
+    }
+
+    public void addMapping(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey, @Nullable final UUID targetId) {
+        if (targetId == null) {
+            return;
+        }
+
+        // The mapping can always be resolved again from KB-P, so it is fine to drop it if the database can't keep up
+        if (!pending.offer(new BridgeIdMapping(kbTenantId, targetKey, type, srcKey, targetId))) {
+            logger.warn("Mapping store queue is full, dropping mapping type='{}', srcKey='{}'", type, srcKey);
+            return;
+        }
+
+        if (pending.size() >= batchSize) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    public void invalidate(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey) {
+        try {
+            dao.removeMapping(kbTenantId, targetKey, type, srcKey);
+        } catch (final SQLException e) {
+            logger.warn("Failed to remove mapping type='{}', srcKey='{}'", type, srcKey, e);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    // Only ever called from the flusher thread (or on close, once the flusher is stopped)
+    void flush() {
+        final List<BridgeIdMapping> batch = new ArrayList<BridgeIdMapping>(batchSize);
+        while (pending.drainTo(batch, batchSize) > 0) {
+            try {
+                dao.addMappings(batch);
+            } catch (final SQLException e) {
+                logger.warn("Failed to store {} mappings", batch.size(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    public void close() {
+        BridgeExecutors.shutdown(flusher);
+        flush();
+    }
+}
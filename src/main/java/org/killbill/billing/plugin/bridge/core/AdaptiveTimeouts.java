@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+
+//
+// Adaptive timeouts of the KB-P reads: each endpoint class gets its own timeout, derived from the latencies it has recently
+// shown (the configured percentile times the factor, clamped between minTimeoutMs and maxTimeoutMs), so that a cheap lookup
+// gives up long before a gateway-backed payment call would. The static client timeouts still apply underneath.
+// Only side-effect free calls must go through it: a write we stopped waiting on may still complete in KB-P.
+// There is one instance per KillBillClient, i.e. per tenant configuration.
+//
+public class AdaptiveTimeouts {
+
+    private final double factor;
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+    private final Executor executor;
+    private final Map<EndpointClass, LatencyWindow> latencies = new EnumMap<EndpointClass, LatencyWindow>(EndpointClass.class);
+
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public AdaptiveTimeouts(final double percentile, final double factor, final long minTimeoutMs, final long maxTimeoutMs, final int windowSize, final Executor executor) {
+        this.factor = Math.max(1, factor);
+        this.minTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(minTimeoutMs);
+        this.maxTimeoutNanos = Math.max(minTimeoutNanos, TimeUnit.MILLISECONDS.toNanos(maxTimeoutMs));
+        this.executor = executor;
+        final double boundedPercentile = Math.min(100, Math.max(1, percentile));
+        for (final EndpointClass endpointClass : EndpointClass.values()) {
+            latencies.put(endpointClass, new LatencyWindow(boundedPercentile, Math.max(1, windowSize)));
+        }
+    }
+
+    // The request runs on the executor (or through the hedger, if any), while the caller waits for at most the current timeout
+    public <T> T call(final EndpointClass endpointClass, final RequestHedger.Call<T> call, @Nullable final RequestHedger hedger) throws KillBillClientException, UnresolvedException {
+        final LatencyWindow latencyWindow = latencies.get(endpointClass);
+        final long timeoutNanos = getTimeoutNanos(endpointClass);
+        // As seen by the caller, i.e. including the time spent in the executor queue (and the hedging, if any)
+        final long startNanos = System.nanoTime();
+        try {
+            final T result = hedger != null ? hedger.call(endpointClass, call, timeoutNanos) : callWithTimeout(call, timeoutNanos);
+            latencyWindow.record(System.nanoTime() - startNanos);
+            return result;
+        } catch (final KillBillClientException | UnresolvedException | RuntimeException e) {
+            latencyWindow.record(System.nanoTime() - startNanos);
+            throw e;
+        } catch (final TimeoutException e) {
+            // Recording the timeout itself lets it widen (up to maxTimeoutMs) while KB-P is slow, instead of timing out everything
+            latencyWindow.record(timeoutNanos);
+            timedOutCount.incrementAndGet();
+            throw new KillBillClientException(new TimeoutException(String.format("Timed out waiting for KB-P, endpointClass='%s', timeoutMs='%s'",
+                                                                                 endpointClass, TimeUnit.NANOSECONDS.toMillis(timeoutNanos))));
+        }
+    }
+
+    public long getTimeoutMs(final EndpointClass endpointClass) {
+        return TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos(endpointClass));
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    // Reads which ran on the caller thread, without an adaptive timeout, as the executor was saturated
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    // maxTimeoutMs until the window has enough samples
+    long getTimeoutNanos(final EndpointClass endpointClass) {
+        final long percentileNanos = latencies.get(endpointClass).getPercentileNanos();
+        if (percentileNanos < 0) {
+            return maxTimeoutNanos;
+        }
+        return Math.min(maxTimeoutNanos, Math.max(minTimeoutNanos, (long) (percentileNanos * factor)));
+    }
+
+    private <T> T callWithTimeout(final RequestHedger.Call<T> call, final long timeoutNanos) throws KillBillClientException, UnresolvedException, TimeoutException {
+        // FutureTask takes care of interrupting the thread running the request when cancelled
+        final FutureTask<T> task = new FutureTask<T>(call::call);
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            // Saturated: run the request on the caller thread instead, bounded by the static client timeouts only
+            rejectedCount.incrementAndGet();
+            return call.call();
+        }
+        try {
+            return task.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            task.cancel(true);
+            throw e;
+        } catch (final InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new KillBillClientException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof KillBillClientException) {
+                throw (KillBillClientException) cause;
+            } else if (cause instanceof UnresolvedException) {
+                throw (UnresolvedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+//
+// Admission of the operations of all tenants (one Flow each): a tenant is limited by its own token bucket, and when the
+// operations have to wait (bucket empty, or all the node-wide slots taken), they are admitted in start-time fair queueing
+// order, each tenant getting a share of the slots proportional to its weight. A tenant out of tokens doesn't hold up the
+// others, and a tenant sending a burst only delays its own operations.
+// Waits are bounded, as is the number of operations queued per tenant.
+//
+public class AdmissionScheduler {
+
+    private final int maxConcurrent;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Waiter> waiters = new TreeSet<Waiter>(Comparator.<Waiter>comparingDouble(waiter -> waiter.startTag).thenComparingLong(waiter -> waiter.sequence));
+    private double virtualTime;
+    private long sequence;
+    private int inFlight;
+
+    // maxConcurrent <= 0: no node-wide limit, only the tenant rates apply
+    public AdmissionScheduler(final int maxConcurrent, final long maxWaitMs) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    }
+
+    // Each successful acquisition must be followed by a call to release
+    public boolean tryAcquire(final Flow flow) {
+        return tryAcquire(flow, maxWaitNanos);
+    }
+
+    // The wait is bounded by the configured max wait
+    public boolean tryAcquire(final Flow flow, final long maxWaitNanos) {
+        final long startNanos = System.nanoTime();
+        long remainingNanos = Math.min(this.maxWaitNanos, maxWaitNanos);
+        lock.lock();
+        try {
+            if (flow.queued >= flow.maxQueued) {
+                flow.rejectedCount.incrementAndGet();
+                return false;
+            }
+
+            final Waiter waiter = new Waiter(flow, lock.newCondition(), Math.max(virtualTime, flow.finishTag), sequence++);
+            flow.finishTag = waiter.startTag + 1 / flow.weight;
+            flow.queued++;
+            waiters.add(waiter);
+            try {
+                while (true) {
+                    dispatch();
+                    if (waiter.admitted) {
+                        flow.onAdmitted(System.nanoTime() - startNanos);
+                        return true;
+                    }
+                    if (remainingNanos <= 0) {
+                        flow.rejectedCount.incrementAndGet();
+                        return false;
+                    }
+                    // Wake up once a token is available again, as nothing else would
+                    final long tokenWaitNanos = flow.tokenBucket != null ? flow.tokenBucket.getNanosUntilAvailable() : 0;
+                    final long waitNanos = tokenWaitNanos > 0 ? Math.min(remainingNanos, tokenWaitNanos) : remainingNanos;
+                    remainingNanos -= waitNanos - waiter.condition.awaitNanos(waitNanos);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                flow.rejectedCount.incrementAndGet();
+                return false;
+            } finally {
+                flow.queued--;
+                if (!waiter.admitted) {
+                    waiters.remove(waiter);
+                    if (flow.queued == 0) {
+                        // Don't push back the next operations of that tenant for the ones which gave up
+                        flow.finishTag = waiter.startTag;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Admits the waiters in start tag order, skipping the tenants out of tokens
+    private void dispatch() {
+        final Iterator<Waiter> iterator = waiters.iterator();
+        while (iterator.hasNext() && (maxConcurrent <= 0 || inFlight < maxConcurrent)) {
+            final Waiter waiter = iterator.next();
+            if (waiter.flow.tokenBucket != null && !waiter.flow.tokenBucket.tryTake()) {
+                continue;
+            }
+            iterator.remove();
+            waiter.admitted = true;
+            inFlight++;
+            virtualTime = Math.max(virtualTime, waiter.startTag);
+            waiter.condition.signal();
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Flow flow;
+        private final Condition condition;
+        private final double startTag;
+        private final long sequence;
+        private boolean admitted;
+
+        private Waiter(final Flow flow, final Condition condition, final double startTag, final long sequence) {
+            this.flow = flow;
+            this.condition = condition;
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+    }
+
+    // The operations of a tenant. Its scheduling state is guarded by the lock of the (single) scheduler it is used with.
+    public static class Flow {
+
+        private final String name;
+        private final double weight;
+        private final TokenBucket tokenBucket;
+        private final int maxQueued;
+
+        private double finishTag;
+        private volatile int queued;
+
+        private final AtomicLong admittedCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        public Flow(final String name, final int weight, @Nullable final TokenBucket tokenBucket, final int maxQueued) {
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.tokenBucket = tokenBucket;
+            this.maxQueued = maxQueued;
+        }
+
+        private void onAdmitted(final long waitNanos) {
+            admittedCount.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Operations currently waiting
+        public int getQueueDepth() {
+            return queued;
+        }
+
+        public long getAdmittedCount() {
+            return admittedCount.get();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        public double getAverageWaitMs() {
+            final long admitted = admittedCount.get();
+            return admitted == 0 ? 0 : (double) totalWaitNanos.get() / admitted / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getMaxWaitMs() {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class BridgeExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(BridgeExecutors.class);
+
+    private static final long KEEP_ALIVE_SEC = 60;
+    private static final long SHUTDOWN_TIMEOUT_SEC = 10;
+
+    // Virtual threads (JDK 21+) are looked up reflectively, as the plugin still targets Java 8
+    private static final Method THREAD_OF_VIRTUAL = findMethod("java.lang.Thread", "ofVirtual");
+    private static final Method OF_VIRTUAL_NAME = findMethod("java.lang.Thread$Builder$OfVirtual", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod("java.util.concurrent.Executors", "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    // Bounded pool: once all threads are busy and the queue is full, the submitting thread runs the task itself,
+    // which simply degrades to the sequential behavior instead of failing the payment
+    public static ExecutorService newBoundedExecutor(final String name, final int nbThreads, final int queueSize) {
+        return newBoundedExecutor(name, nbThreads, queueSize, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // Bulkhead: once all threads are busy and the queue is full, tasks are rejected (RejectedExecutionException),
+    // so that its tasks never use more than nbThreads threads at once
+    public static ExecutorService newRejectingExecutor(final String name, final int nbThreads, final int queueSize) {
+        return newBoundedExecutor(name, nbThreads, queueSize, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static ExecutorService newBoundedExecutor(final String name, final int nbThreads, final int queueSize, final RejectedExecutionHandler rejectedExecutionHandler) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads,
+                                                                   nbThreads,
+                                                                   KEEP_ALIVE_SEC,
+                                                                   TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(queueSize),
+                                                                   new ThreadFactoryBuilder().setNameFormat(name + "-%d")
+                                                                                             .setDaemon(true)
+                                                                                             .build(),
+                                                                   rejectedExecutionHandler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // For periodic background tasks, which must not keep the JVM alive
+    public static ScheduledExecutorService newScheduledExecutor(final String name, final int nbThreads) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(nbThreads,
+                                                                                     new ThreadFactoryBuilder().setNameFormat(name + "-%d")
+                                                                                                               .setDaemon(true)
+                                                                                                               .build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return THREAD_OF_VIRTUAL != null && OF_VIRTUAL_NAME != null && BUILDER_FACTORY != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    // One virtual thread per task, with at most maxConcurrency tasks running at once (the others park on the semaphore): this only
+    // caps the load put on KB-P, the way the pool size does for platform threads. Pinning isn't mitigated: the HTTP client may still
+    // enter synchronized sections (connection pool bookkeeping, SSL handshakes), which pin the carrier thread on JDKs prior to 24.
+    // Returns null if virtual threads aren't available on this JVM.
+    @Nullable
+    public static ExecutorService newVirtualThreadExecutor(final String name, final int maxConcurrency) {
+        if (!isVirtualThreadSupported()) {
+            return null;
+        }
+
+        try {
+            final Object builder = OF_VIRTUAL_NAME.invoke(THREAD_OF_VIRTUAL.invoke(null), name + "-", 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            return new BoundedConcurrencyExecutor((ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory), maxConcurrency);
+        } catch (final ReflectiveOperationException e) {
+            logger.warn("Unable to create virtual thread executor {}", name, e);
+            return null;
+        }
+    }
+
+    public static void shutdown(final ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Executor didn't terminate after {}s, forcing shutdown", SHUTDOWN_TIMEOUT_SEC);
+                executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    @Nullable
+    private static Method findMethod(final String className, final String methodName, final Class<?>... parameterTypes) {
+        try {
+            return Class.forName(className).getMethod(methodName, parameterTypes);
+        } catch (final ClassNotFoundException e) {
+            return null;
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class BoundedConcurrencyExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        private BoundedConcurrencyExecutor(final ExecutorService delegate, final int maxConcurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            delegate.execute(() -> {
+                // Never drop the task, callers may be waiting on its result
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.bridge.core;
 
+import java.util.EnumMap;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -26,6 +27,7 @@ import org.killbill.billing.client.RequestOptions;
 import org.killbill.billing.osgi.api.Healthcheck;
 import org.killbill.billing.plugin.bridge.KillBillClientOnOff;
 import org.killbill.billing.plugin.bridge.KillbillClientConfigurationHandler;
+import org.killbill.billing.plugin.bridge.core.CircuitBreaker.State;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.api.AuditLevel;
 import org.slf4j.Logger;
@@ -54,12 +56,22 @@ public class BridgeHealthcheck implements Healthcheck {
     public HealthStatus getHealthStatus(@Nullable final Tenant tenant, @Nullable final Map properties) {
         final KillBillClientOnOff client;
         try {
-            client = configurationHandler.getConfigurable(tenant == null ? null : tenant.getId());
+            // Doesn't keep an idle client from being evicted, nor re-creates an evicted one
+            client = configurationHandler.retainResidentConfigurable(tenant == null ? null : tenant.getId());
         } catch (final NullPointerException e) {
             return HealthStatus.healthy("Healthcheck not configured");
         }
+        if (client == null) {
+            return tenant == null ? HealthStatus.healthy("Healthcheck not configured") : HealthStatus.healthy("KB_P client not resident");
+        }
 
         try {
+            // Report tripped circuit breakers without adding load on KB-P
+            final Map<EndpointClass, State> trippedCircuitBreakers = getTrippedCircuitBreakers(client);
+            if (!trippedCircuitBreakers.isEmpty()) {
+                return HealthStatus.unHealthy("KB_P circuit breakers " + trippedCircuitBreakers);
+            }
+
             if (client.isActive()) {
                 client.getAccounts(0L, 1L, AuditLevel.NONE, RequestOptions.builder()
                                                                           .withCreatedBy("BridgeHealthcheck")
@@ -69,6 +81,20 @@ public class BridgeHealthcheck implements Healthcheck {
         } catch (final Exception exception) {
             logger.warn("Healthcheck failed", exception);
             return HealthStatus.unHealthy("KB_P " + (exception.getMessage() == null ? exception.getClass().getName() : exception.getMessage()));
+        } finally {
+            client.release();
+        }
+    }
+
+    private static Map<EndpointClass, State> getTrippedCircuitBreakers(final KillBillClientOnOff client) {
+        final Map<EndpointClass, State> tripped = new EnumMap<EndpointClass, State>(EndpointClass.class);
+        if (client.getCircuitBreakers() != null) {
+            for (final Map.Entry<EndpointClass, State> entry : client.getCircuitBreakers().getStates().entrySet()) {
+                if (entry.getValue() != State.CLOSED) {
+                    tripped.put(entry.getKey(), entry.getValue());
+                }
+            }
         }
+        return tripped;
     }
 }
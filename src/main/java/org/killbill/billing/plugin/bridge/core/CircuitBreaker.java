@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedUnresolvedException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+
+//
+// Circuit breaker for one class of KB-P endpoints, over a count-based sliding window of the last calls:
+// the circuit opens when either the failure rate or the slow call rate reaches its threshold, calls then fail fast
+// until the open duration has elapsed, after which a few probes are let through (half-open) to decide whether to close it again.
+//
+public class CircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final byte OUTCOME_FAILURE = 1;
+    private static final byte OUTCOME_SLOW = 2;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final EndpointClass endpointClass;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final int halfOpenProbes;
+    private final Ticker ticker;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Outcomes of the last calls, see OUTCOME_FAILURE and OUTCOME_SLOW
+    private final byte[] window;
+    private int windowPosition;
+    private int windowCount;
+    private int failureCount;
+    private int slowCallCount;
+
+    private volatile State state = State.CLOSED;
+    private long openedAtNanos;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong transitionCount = new AtomicLong();
+
+    // Thresholds are percentages (0 disables the corresponding check)
+    CircuitBreaker(final EndpointClass endpointClass,
+                   final int failureRateThreshold,
+                   final int slowCallRateThreshold,
+                   final long slowCallDurationMs,
+                   final int windowSize,
+                   final int minimumCalls,
+                   final long openDurationMs,
+                   final int halfOpenProbes,
+                   final Ticker ticker) {
+        this.endpointClass = endpointClass;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMs);
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        this.ticker = ticker;
+    }
+
+    // Each successful acquisition must be followed by a call to onResult
+    public boolean tryAcquirePermission() {
+        lock.lock();
+        try {
+            if (state == State.OPEN) {
+                if (ticker.read() - openedAtNanos < openDurationNanos) {
+                    rejectedCount.incrementAndGet();
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight + probeSuccesses >= halfOpenProbes) {
+                    rejectedCount.incrementAndGet();
+                    return false;
+                }
+                probesInFlight++;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether calls would currently be rejected, without taking a half-open probe
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return state == State.OPEN && ticker.read() - openedAtNanos < openDurationNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Only KB-P unavailability (transport errors, timeouts, 5xx) counts as a failure: business errors mean KB-P is up
+    public void onResult(final long durationNanos, @Nullable final Throwable error) {
+        if (error == null) {
+            onSuccess(durationNanos);
+        } else if (isFailure(error)) {
+            onFailure(durationNanos);
+        } else if (isKillBillResponse(error)) {
+            onSuccess(durationNanos);
+        } else {
+            onIgnored();
+        }
+    }
+
+    void onSuccess(final long durationNanos) {
+        record(false, durationNanos);
+    }
+
+    void onFailure(final long durationNanos) {
+        record(true, durationNanos);
+    }
+
+    // The call didn't reach KB-P (e.g. short-circuited by another breaker)
+    void onIgnored() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN && probesInFlight > 0) {
+                probesInFlight--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(final boolean failure, final long durationNanos) {
+        final boolean slow = slowCallRateThreshold > 0 && durationNanos >= slowCallDurationNanos;
+
+        lock.lock();
+        try {
+            switch (state) {
+                case CLOSED:
+                    addToWindow((byte) ((failure ? OUTCOME_FAILURE : 0) | (slow ? OUTCOME_SLOW : 0)));
+                    if (isOverThreshold()) {
+                        transitionTo(State.OPEN);
+                    }
+                    break;
+                case HALF_OPEN:
+                    if (probesInFlight > 0) {
+                        probesInFlight--;
+                    }
+                    if (failure || slow) {
+                        transitionTo(State.OPEN);
+                    } else if (++probeSuccesses >= halfOpenProbes) {
+                        transitionTo(State.CLOSED);
+                    }
+                    break;
+                case OPEN:
+                default:
+                    // Call started before the circuit opened
+                    break;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addToWindow(final byte outcome) {
+        if (windowCount == window.length) {
+            final byte evicted = window[windowPosition];
+            failureCount -= evicted & OUTCOME_FAILURE;
+            slowCallCount -= (evicted & OUTCOME_SLOW) >> 1;
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = outcome;
+        failureCount += outcome & OUTCOME_FAILURE;
+        slowCallCount += (outcome & OUTCOME_SLOW) >> 1;
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private boolean isOverThreshold() {
+        if (windowCount < minimumCalls) {
+            return false;
+        }
+        return (failureRateThreshold > 0 && failureCount * 100 >= failureRateThreshold * windowCount) ||
+               (slowCallRateThreshold > 0 && slowCallCount * 100 >= slowCallRateThreshold * windowCount);
+    }
+
+    private void transitionTo(final State newState) {
+        final State previousState = state;
+        state = newState;
+        transitionCount.incrementAndGet();
+
+        if (newState == State.OPEN) {
+            openedAtNanos = ticker.read();
+            logger.warn("CircuitBreaker endpointClass='{}': {} -> {}, failures={}, slowCalls={}, calls={}",
+                        endpointClass, previousState, newState, failureCount, slowCallCount, windowCount);
+        } else {
+            logger.info("CircuitBreaker endpointClass='{}': {} -> {}", endpointClass, previousState, newState);
+        }
+
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (newState == State.CLOSED) {
+            windowPosition = 0;
+            windowCount = 0;
+            failureCount = 0;
+            slowCallCount = 0;
+        }
+    }
+
+    public EndpointClass getEndpointClass() {
+        return endpointClass;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getTransitionCount() {
+        return transitionCount.get();
+    }
+
+    public static boolean isFailure(final Throwable error) {
+        final KillBillClientException clientException = findKillBillClientException(error);
+        if (clientException != null) {
+            if (clientException.getResponse() != null) {
+                return clientException.getResponse().getStatusCode() >= 500;
+            }
+            // No response and no error payload: KB-P couldn't be reached, or didn't answer in time
+            return clientException.getBillingException() == null;
+        }
+
+        for (final Throwable cause : Throwables.getCausalChain(error)) {
+            if (cause instanceof TimeoutException || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // KB-P answered, with an error
+    private static boolean isKillBillResponse(final Throwable error) {
+        return findKillBillClientException(error) != null ||
+               error instanceof UnresolvedException ||
+               error instanceof WrappedUnresolvedException;
+    }
+
+    @Nullable
+    private static KillBillClientException findKillBillClientException(final Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException || (cause instanceof RuntimeException && cause.getCause() instanceof KillBillClientException)) {
+            if (cause.getCause() == null) {
+                break;
+            }
+            cause = cause.getCause();
+        }
+        return cause instanceof KillBillClientException ? (KillBillClientException) cause : null;
+    }
+}
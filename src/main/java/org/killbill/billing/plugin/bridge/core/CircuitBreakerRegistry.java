@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.killbill.billing.plugin.bridge.core.CircuitBreaker.State;
+
+import com.google.common.base.Ticker;
+
+//
+// One circuit breaker per KB-P endpoint class. There is one instance per KillBillClient, i.e. per tenant configuration.
+//
+public class CircuitBreakerRegistry {
+
+    private final Map<EndpointClass, CircuitBreaker> circuitBreakers = new EnumMap<EndpointClass, CircuitBreaker>(EndpointClass.class);
+
+    public CircuitBreakerRegistry(final int failureRateThreshold,
+                                  final int slowCallRateThreshold,
+                                  final long slowCallDurationMs,
+                                  final int windowSize,
+                                  final int minimumCalls,
+                                  final long openDurationMs,
+                                  final int halfOpenProbes) {
+        this(failureRateThreshold, slowCallRateThreshold, slowCallDurationMs, windowSize, minimumCalls, openDurationMs, halfOpenProbes, Ticker.systemTicker());
+    }
+
+    CircuitBreakerRegistry(final int failureRateThreshold,
+                           final int slowCallRateThreshold,
+                           final long slowCallDurationMs,
+                           final int windowSize,
+                           final int minimumCalls,
+                           final long openDurationMs,
+                           final int halfOpenProbes,
+                           final Ticker ticker) {
+        for (final EndpointClass endpointClass : EndpointClass.values()) {
+            circuitBreakers.put(endpointClass, new CircuitBreaker(endpointClass,
+                                                                  failureRateThreshold,
+                                                                  slowCallRateThreshold,
+                                                                  slowCallDurationMs,
+                                                                  windowSize,
+                                                                  minimumCalls,
+                                                                  openDurationMs,
+                                                                  halfOpenProbes,
+                                                                  ticker));
+        }
+    }
+
+    public CircuitBreaker get(final EndpointClass endpointClass) {
+        return circuitBreakers.get(endpointClass);
+    }
+
+    public Map<EndpointClass, State> getStates() {
+        final Map<EndpointClass, State> states = new EnumMap<EndpointClass, State>(EndpointClass.class);
+        for (final CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            states.put(circuitBreaker.getEndpointClass(), circuitBreaker.getState());
+        }
+        return states;
+    }
+}
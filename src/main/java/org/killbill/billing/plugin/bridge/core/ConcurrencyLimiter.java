@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+
+//
+// AIMD limit on the number of concurrent calls to KB-P: the limit grows by one after each fast call made while it was being used,
+// and is cut (multiplicatively) after a call slower than the latency threshold or failing because of KB-P. This keeps KB-P
+// around its throughput knee instead of queueing more and more requests on its side.
+// The threshold follows the median latency of the successful calls of the same endpoint class (a payment write isn't slow
+// compared to a lookup), capped by the configured one. The limit is cut at most once per round-trip: the calls which were
+// already in flight when it was cut don't cut it again.
+// Calls over the limit wait (bounded) for a slot, or are rejected.
+//
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    // A call is slow when it takes more than twice the median latency
+    private static final int LATENCY_PERCENTILE = 50;
+    private static final long LATENCY_TOLERANCE = 2;
+    private static final int LATENCY_WINDOW_SIZE = 100;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxLatencyThresholdNanos;
+    private final long maxWaitNanos;
+    private final int maxQueued;
+    private final Ticker ticker;
+    private final Map<EndpointClass, LatencyWindow> latencies = new EnumMap<EndpointClass, LatencyWindow>(EndpointClass.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long lastDecreaseNanos;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public ConcurrencyLimiter(final String name,
+                              final int initialLimit,
+                              final int minLimit,
+                              final int maxLimit,
+                              final long latencyThresholdMs,
+                              final long maxWaitMs,
+                              final int maxQueued) {
+        this(name, initialLimit, minLimit, maxLimit, latencyThresholdMs, maxWaitMs, maxQueued, Ticker.systemTicker());
+    }
+
+    ConcurrencyLimiter(final String name,
+                       final int initialLimit,
+                       final int minLimit,
+                       final int maxLimit,
+                       final long latencyThresholdMs,
+                       final long maxWaitMs,
+                       final int maxQueued,
+                       final Ticker ticker) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.maxLatencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.maxQueued = maxQueued;
+        this.ticker = ticker;
+        this.lastDecreaseNanos = ticker.read();
+        for (final EndpointClass endpointClass : EndpointClass.values()) {
+            latencies.put(endpointClass, new LatencyWindow(LATENCY_PERCENTILE, LATENCY_WINDOW_SIZE));
+        }
+    }
+
+    // Each successful acquisition must be followed by a call to release
+    public boolean tryAcquire() {
+        return tryAcquire(maxWaitNanos);
+    }
+
+    // The wait is bounded by the configured max wait
+    public boolean tryAcquire(final long maxWaitNanos) {
+        final long waitNanos = Math.min(this.maxWaitNanos, maxWaitNanos);
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            if (waitNanos <= 0 || queued >= maxQueued) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+
+            queued++;
+            try {
+                long remainingNanos = waitNanos;
+                while (inFlight >= (int) limit) {
+                    if (remainingNanos <= 0) {
+                        rejectedCount.incrementAndGet();
+                        return false;
+                    }
+                    remainingNanos = available.awaitNanos(remainingNanos);
+                }
+                inFlight++;
+                return true;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedCount.incrementAndGet();
+                return false;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // dropped: the call failed because of KB-P (e.g. timeout)
+    public void release(final EndpointClass endpointClass, final long latencyNanos, final boolean dropped) {
+        onCall(endpointClass, latencyNanos, dropped);
+        cancel();
+    }
+
+    // Adjusts the limit after one of the KB-P calls made while holding a slot (the slot itself is handed back through cancel)
+    public void onCall(final EndpointClass endpointClass, final long latencyNanos, final boolean dropped) {
+        final long nowNanos = ticker.read();
+        final boolean slow = latencyNanos > getLatencyThresholdNanos(endpointClass);
+        if (!dropped) {
+            latencies.get(endpointClass).record(latencyNanos);
+        }
+
+        lock.lock();
+        try {
+            if (dropped || slow) {
+                // Calls started before the last cut were already accounted for by it
+                if (nowNanos - latencyNanos - lastDecreaseNanos >= 0) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    lastDecreaseNanos = nowNanos;
+                }
+            } else if (inFlight * 2 >= limit) {
+                // Only grow the limit when it is actually being used
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands back the slot without adjusting the limit: the call didn't happen, or was reported through onCall
+    public void cancel() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getLatencyThresholdNanos(final EndpointClass endpointClass) {
+        final long percentileNanos = latencies.get(endpointClass).getPercentileNanos();
+        return percentileNanos < 0 ? maxLatencyThresholdNanos : Math.min(maxLatencyThresholdNanos, percentileNanos * LATENCY_TOLERANCE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// Opens pooled connections to KB-P ahead of the first payments: the requests are sent concurrently, so that each of them
+// has to open its own connection (DNS lookup, TCP and TLS handshakes), which then goes back to the pool. The TLS sessions
+// are cached by the client, so that connections opened later on only need an abbreviated handshake.
+//
+public class ConnectionWarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+    // Returns the number of connections opened within the timeout
+    public static <T> int warmUp(final List<T> targets, final int connectionsPerTarget, final long timeoutMs, final NodeBalancer.Call<T, ?> request) {
+        final int nbConnections = targets.size() * connectionsPerTarget;
+        if (nbConnections <= 0) {
+            return 0;
+        }
+
+        final long startNanos = System.nanoTime();
+        final ExecutorService executor = BridgeExecutors.newBoundedExecutor("bridge-warmup", nbConnections, nbConnections);
+        final CountDownLatch done = new CountDownLatch(nbConnections);
+        final AtomicInteger opened = new AtomicInteger();
+        try {
+            for (final T target : targets) {
+                for (int i = 0; i < connectionsPerTarget; i++) {
+                    executor.execute(() -> {
+                        try {
+                            request.call(target);
+                            opened.incrementAndGet();
+                        } catch (final KillBillClientException | RuntimeException e) {
+                            // KB-P answered, the connection is open
+                            if (!CircuitBreaker.isFailure(e)) {
+                                opened.incrementAndGet();
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            // A cold client is better than no client: give up waiting after the timeout
+            done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+
+        logger.info("Opened {}/{} connection(s) to KB-P in {}ms", opened.get(), nbConnections, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return opened.get();
+    }
+}
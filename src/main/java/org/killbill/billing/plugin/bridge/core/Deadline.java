@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+//
+// Time budget of a bridged operation, shared by all the steps (KB-P lookups, payment call, retries) it goes through:
+// each step checks the remaining budget before starting, so that the operation gives up early instead of piling up
+// the full client timeouts of each call.
+//
+public class Deadline {
+
+    private final long budgetMs;
+    private final long deadlineNanos;
+    private final Ticker ticker;
+
+    Deadline(final long budgetMs, final Ticker ticker) {
+        this.budgetMs = budgetMs;
+        this.deadlineNanos = ticker.read() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        this.ticker = ticker;
+    }
+
+    public static Deadline after(final long budgetMs) {
+        return new Deadline(budgetMs, Ticker.systemTicker());
+    }
+
+    public long getBudgetMs() {
+        return budgetMs;
+    }
+
+    // Negative once the deadline has passed
+    public long getRemainingNanos() {
+        return deadlineNanos - ticker.read();
+    }
+
+    public boolean isExpired() {
+        return getRemainingNanos() <= 0;
+    }
+
+    public void check(final String step) {
+        if (isExpired()) {
+            throw new DeadlineExceededException(step, budgetMs);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+// Thrown instead of starting a step once the deadline of the operation has passed
+public class DeadlineExceededException extends RuntimeException {
+
+    private final String step;
+
+    public DeadlineExceededException(final String step, final long budgetMs) {
+        super(String.format("Deadline exceeded before step='%s', budgetMs='%s'", step, budgetMs));
+        this.step = step;
+    }
+
+    public String getStep() {
+        return step;
+    }
+}
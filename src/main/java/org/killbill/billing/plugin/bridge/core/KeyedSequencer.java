@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+//
+// Per-key ordering of the operations (keyed by KB-S account): operations on the same key run one at a time, in arrival order,
+// while operations on different keys run fully in parallel. Each key has a chain of completion futures, without any lock nor
+// thread of its own: the caller waits for its predecessor to be done, then runs the operation on its own thread. As KB-S calls
+// the plugin synchronously, handing the work off to single-threaded lanes would only add a thread switch, and head-of-line
+// blocking between the accounts hashed onto the same lane.
+//
+public class KeyedSequencer<K> {
+
+    private final ConcurrentMap<K, CompletableFuture<Void>> tails = new ConcurrentHashMap<K, CompletableFuture<Void>>();
+    // Keys whose turn the current thread holds: nested operations on the same key don't wait on themselves
+    private final ThreadLocal<Set<K>> heldKeys = ThreadLocal.withInitial(HashSet::new);
+
+    private final AtomicLong waitedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    // Waits for the operations on the same key which arrived before (until the deadline, if any): the turn must be released
+    public Turn acquire(final K key, @Nullable final Deadline deadline) {
+        if (!heldKeys.get().add(key)) {
+            return new Turn(key, null);
+        }
+
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        final CompletableFuture<Void> previous = tails.put(key, done);
+        final Turn turn = new Turn(key, done);
+        if (previous == null || previous.isDone()) {
+            return turn;
+        }
+
+        waitedCount.incrementAndGet();
+        try {
+            if (deadline == null) {
+                Uninterruptibles.getUninterruptibly(previous);
+            } else {
+                Uninterruptibles.getUninterruptibly(previous, Math.max(0, deadline.getRemainingNanos()), TimeUnit.NANOSECONDS);
+            }
+            return turn;
+        } catch (final TimeoutException e) {
+            timedOutCount.incrementAndGet();
+            heldKeys.get().remove(key);
+            // Our successors still have to wait for our predecessor
+            previous.whenComplete((ignored, error) -> turn.complete());
+            throw new DeadlineExceededException("ORDERING", deadline.getBudgetMs());
+        } catch (final ExecutionException e) {
+            // Can't happen, the futures are never completed exceptionally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Number of keys with an operation in progress
+    public int getActiveKeys() {
+        return tails.size();
+    }
+
+    public long getWaitedCount() {
+        return waitedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public final class Turn {
+
+        private final K key;
+        // Null when the turn was already held by the thread
+        private final CompletableFuture<Void> done;
+
+        private Turn(final K key, @Nullable final CompletableFuture<Void> done) {
+            this.key = key;
+            this.done = done;
+        }
+
+        public void release() {
+            if (done == null) {
+                return;
+            }
+            heldKeys.get().remove(key);
+            complete();
+        }
+
+        private void complete() {
+            // Only if no other operation queued up behind us in the meantime
+            tails.remove(key, done);
+            done.complete(null);
+        }
+    }
+}
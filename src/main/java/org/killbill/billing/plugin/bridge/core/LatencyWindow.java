@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Latencies of the last windowSize calls, the percentile is refreshed every windowSize / 10 calls
+final class LatencyWindow {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double percentile;
+    private final long[] samples;
+    private final int refreshInterval;
+    private int nbSamples;
+    private int nextIndex;
+    private int sinceRefresh;
+    private volatile long percentileNanos = -1;
+
+    LatencyWindow(final double percentile, final int windowSize) {
+        this.percentile = percentile;
+        this.samples = new long[windowSize];
+        this.refreshInterval = Math.max(1, windowSize / 10);
+    }
+
+    void record(final long latencyNanos) {
+        lock.lock();
+        try {
+            samples[nextIndex] = latencyNanos;
+            nextIndex = (nextIndex + 1) % samples.length;
+            nbSamples = Math.min(samples.length, nbSamples + 1);
+            if (++sinceRefresh >= refreshInterval) {
+                sinceRefresh = 0;
+                final long[] sorted = Arrays.copyOf(samples, nbSamples);
+                Arrays.sort(sorted);
+                percentileNanos = sorted[Math.max(0, (int) Math.ceil(nbSamples * percentile / 100.0) - 1)];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns -1 until the window has enough samples
+    long getPercentileNanos() {
+        return percentileNanos;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+
+//
+// Queue-time aware admission control: an operation is rejected upfront when the expected wait for admission and concurrency
+// slots, plus the recent KB-P latency of its endpoint class, exceeds what is left of its deadline. When KB-P slows down,
+// the work is then refused before it piles up (and times out anyway on the KB-S side), leaving the retry to KB-S.
+// Both estimates are moving averages, ignored once stale so that traffic resumes (and is measured again) after a quiet period.
+//
+public class LoadShedder {
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final long sampleTtlNanos;
+    private final Ticker ticker;
+    private final Map<EndpointClass, MovingAverage> latencies = new EnumMap<EndpointClass, MovingAverage>(EndpointClass.class);
+    private final MovingAverage queueWait;
+
+    private final AtomicLong shedCount = new AtomicLong();
+
+    public LoadShedder(final long sampleTtlMs) {
+        this(sampleTtlMs, Ticker.systemTicker());
+    }
+
+    LoadShedder(final long sampleTtlMs, final Ticker ticker) {
+        this.sampleTtlNanos = TimeUnit.MILLISECONDS.toNanos(sampleTtlMs);
+        this.ticker = ticker;
+        for (final EndpointClass endpointClass : EndpointClass.values()) {
+            latencies.put(endpointClass, new MovingAverage());
+        }
+        this.queueWait = new MovingAverage();
+    }
+
+    // Before queueing for admission
+    public void checkBeforeQueueing(final EndpointClass endpointClass, final Deadline deadline) {
+        check(endpointClass, deadline, queueWait.get() + latencies.get(endpointClass).get());
+    }
+
+    // Once admitted, right before calling KB-P
+    public void checkBeforeCall(final EndpointClass endpointClass, final Deadline deadline) {
+        check(endpointClass, deadline, latencies.get(endpointClass).get());
+    }
+
+    // Time spent waiting for admission and concurrency slots
+    public void onQueued(final long waitNanos) {
+        queueWait.update(waitNanos);
+    }
+
+    public void onCompleted(final EndpointClass endpointClass, final long latencyNanos) {
+        latencies.get(endpointClass).update(latencyNanos);
+    }
+
+    public long getExpectedLatencyMs(final EndpointClass endpointClass) {
+        return TimeUnit.NANOSECONDS.toMillis(latencies.get(endpointClass).get());
+    }
+
+    public long getExpectedQueueWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(queueWait.get());
+    }
+
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    private void check(final EndpointClass endpointClass, final Deadline deadline, final long expectedNanos) {
+        final long remainingNanos = deadline.getRemainingNanos();
+        if (expectedNanos > remainingNanos) {
+            shedCount.incrementAndGet();
+            throw new LoadSheddingException(endpointClass, TimeUnit.NANOSECONDS.toMillis(expectedNanos), TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+        }
+    }
+
+    private final class MovingAverage {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private double valueNanos;
+        private long lastUpdateNanos;
+        private boolean initialized;
+
+        private void update(final long sampleNanos) {
+            lock.lock();
+            try {
+                valueNanos = initialized ? valueNanos + EWMA_WEIGHT * (sampleNanos - valueNanos) : sampleNanos;
+                lastUpdateNanos = ticker.read();
+                initialized = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 0 if unknown or stale
+        private long get() {
+            lock.lock();
+            try {
+                if (!initialized || ticker.read() - lastUpdateNanos > sampleTtlNanos) {
+                    return 0;
+                }
+                return (long) valueNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+
+//
+// Spreads the KB-P calls of a tenant over several KB-P nodes, without a load balancer hop in between: each call goes to the
+// best of two randomly picked nodes, scored by their latency EWMA times their number of outstanding calls (peak EWMA).
+// A call whose connection failed is retried on another node (nothing was sent, so this is safe for writes too).
+// Nodes are ejected after consecutive connection failures or a failed health probe, until a probe succeeds or the ejection expires.
+//
+public class NodeBalancer<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeBalancer.class);
+
+    // Weight of the last response time in the latency EWMA
+    private static final double EWMA_WEIGHT = 0.2;
+
+    public interface Call<T, R> {
+
+        R call(T target) throws KillBillClientException;
+    }
+
+    private final List<Node<T>> nodes;
+    private final int ejectionConnectFailures;
+    private final long ejectionDurationNanos;
+    private final Ticker ticker;
+
+    private volatile ScheduledFuture<?> probing;
+
+    public NodeBalancer(final Map<String, T> targets, final int ejectionConnectFailures, final long ejectionDurationMs) {
+        this(targets, ejectionConnectFailures, ejectionDurationMs, Ticker.systemTicker());
+    }
+
+    NodeBalancer(final Map<String, T> targets, final int ejectionConnectFailures, final long ejectionDurationMs, final Ticker ticker) {
+        this.nodes = new ArrayList<Node<T>>(targets.size());
+        for (final Map.Entry<String, T> entry : targets.entrySet()) {
+            nodes.add(new Node<T>(entry.getKey(), entry.getValue()));
+        }
+        this.ejectionConnectFailures = ejectionConnectFailures;
+        this.ejectionDurationNanos = TimeUnit.MILLISECONDS.toNanos(ejectionDurationMs);
+        this.ticker = ticker;
+    }
+
+    public <R> R call(final Call<T, R> call) throws KillBillClientException {
+        final List<Node<T>> tried = new ArrayList<Node<T>>(nodes.size());
+        while (true) {
+            final Node<T> node = select(tried);
+            tried.add(node);
+
+            node.outstanding.incrementAndGet();
+            final long startNanos = ticker.read();
+            try {
+                final R result = call.call(node.target);
+                node.onResponse(ticker.read() - startNanos);
+                return result;
+            } catch (final KillBillClientException | RuntimeException e) {
+                if (!isConnectFailure(e)) {
+                    // Timeouts included: a slow node should lose its traffic
+                    node.onResponse(ticker.read() - startNanos);
+                    throw e;
+                }
+                onConnectFailure(node);
+                if (tried.size() == nodes.size()) {
+                    throw e;
+                }
+                logger.warn("Unable to connect to KB-P node='{}', retrying on another node", node.name);
+            } finally {
+                node.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    // Probes all the nodes, including the ejected ones: a node which answered (even with an error) is brought back
+    public void probe(final Call<T, ?> probe) {
+        for (final Node<T> node : nodes) {
+            final long startNanos = ticker.read();
+            try {
+                probe.call(node.target);
+            } catch (final KillBillClientException | RuntimeException e) {
+                if (CircuitBreaker.isFailure(e)) {
+                    eject(node, e.toString());
+                    continue;
+                }
+            }
+            node.onResponse(ticker.read() - startNanos);
+            if (node.ejected) {
+                node.ejected = false;
+                logger.info("KB-P node='{}' is back", node.name);
+            }
+        }
+    }
+
+    public void startProbing(final ScheduledExecutorService executor, final long intervalMs, final Call<T, ?> probe) {
+        probing = executor.scheduleWithFixedDelay(() -> probe(probe), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopProbing() {
+        final ScheduledFuture<?> current = probing;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    public List<T> getTargets() {
+        final List<T> targets = new ArrayList<T>(nodes.size());
+        for (final Node<T> node : nodes) {
+            targets.add(node.target);
+        }
+        return targets;
+    }
+
+    public List<String> getEjectedNodes() {
+        final long now = ticker.read();
+        final List<String> ejected = new ArrayList<String>();
+        for (final Node<T> node : nodes) {
+            if (isEjected(node, now)) {
+                ejected.add(node.name);
+            }
+        }
+        return ejected;
+    }
+
+    @VisibleForTesting
+    Node<T> select(final Collection<Node<T>> excluded) {
+        final long now = ticker.read();
+        final List<Node<T>> candidates = new ArrayList<Node<T>>(nodes.size());
+        for (final Node<T> node : nodes) {
+            if (!excluded.contains(node) && !isEjected(node, now)) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Better try an ejected node than fail the call
+            for (final Node<T> node : nodes) {
+                if (!excluded.contains(node)) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        final Node<T> a = candidates.get(first);
+        final Node<T> b = candidates.get(second);
+        return a.getScore() <= b.getScore() ? a : b;
+    }
+
+    private boolean isEjected(final Node<T> node, final long now) {
+        return node.ejected && now - node.ejectedAtNanos < ejectionDurationNanos;
+    }
+
+    private void onConnectFailure(final Node<T> node) {
+        if (node.consecutiveConnectFailures.incrementAndGet() >= ejectionConnectFailures) {
+            eject(node, "consecutiveConnectFailures=" + node.consecutiveConnectFailures.get());
+        }
+    }
+
+    private void eject(final Node<T> node, final String reason) {
+        node.ejectedAtNanos = ticker.read();
+        if (!node.ejected) {
+            node.ejected = true;
+            logger.warn("Ejecting KB-P node='{}': {}", node.name, reason);
+        }
+    }
+
+    static boolean isConnectFailure(final Throwable error) {
+        for (final Throwable cause : Throwables.getCausalChain(error)) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Node<T> {
+
+        private final String name;
+        private final T target;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveConnectFailures = new AtomicInteger();
+        // 0 until the first response
+        private final AtomicLong ewmaNanos = new AtomicLong();
+
+        private volatile boolean ejected;
+        private volatile long ejectedAtNanos;
+
+        private Node(final String name, final T target) {
+            this.name = name;
+            this.target = target;
+        }
+
+        private void onResponse(final long latencyNanos) {
+            consecutiveConnectFailures.set(0);
+            ewmaNanos.updateAndGet(current -> current == 0 ? latencyNanos : current + (long) ((latencyNanos - current) * EWMA_WEIGHT));
+        }
+
+        private double getScore() {
+            return (double) ewmaNanos.get() * (outstanding.get() + 1);
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+}
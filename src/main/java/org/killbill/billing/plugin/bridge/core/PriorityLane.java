@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+// Operations of each lane run on separate resources, so that background reads (janitor, payment method refreshes) never delay customer-facing payments
+public enum PriorityLane {
+    INTERACTIVE,
+    BACKGROUND;
+
+    private static final Set<String> BACKGROUND_TRANSACTION_TYPES = ImmutableSet.<String>of("GET", "GET_PAYMENT_METHOD", "GET_ACCOUNT_PAYMENT_METHODS");
+
+    // Anything unknown is treated as interactive
+    public static PriorityLane forTransactionType(final String transactionType) {
+        return BACKGROUND_TRANSACTION_TYPES.contains(transactionType) ? BACKGROUND : INTERACTIVE;
+    }
+}
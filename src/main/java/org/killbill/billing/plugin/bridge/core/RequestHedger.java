@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+
+//
+// Hedged KB-P reads: when a read hasn't completed after the configured latency percentile (per endpoint class), an identical
+// request is issued and the first successful response wins, the other one is cancelled. Only side-effect free calls must go
+// through it (never payment writes, nor lookups which may create the KB-P account).
+// Each call earns budgetPercent / 100 hedge token, and each hedge spends one, which caps the extra load on KB-P.
+// There is one instance per KillBillClient, i.e. per tenant configuration.
+//
+public class RequestHedger {
+
+    // Number of hedges which can be issued in a row, once the budget has been earned
+    private static final long MAX_TOKENS = 10;
+    private static final long TOKEN_UNIT = 1000;
+    private static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+    private final long minDelayNanos;
+    private final long tokensPerCall;
+    private final Executor executor;
+    private final Map<EndpointClass, LatencyWindow> latencies = new EnumMap<EndpointClass, LatencyWindow>(EndpointClass.class);
+
+    // In thousandths of a hedge
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong hedgedCount = new AtomicLong();
+    private final AtomicLong hedgeWonCount = new AtomicLong();
+    private final AtomicLong budgetExhaustedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public interface Call<T> {
+
+        T call() throws KillBillClientException, UnresolvedException;
+    }
+
+    public RequestHedger(final int percentile, final long minDelayMs, final int budgetPercent, final int windowSize, final Executor executor) {
+        final int boundedPercentile = Math.min(100, Math.max(1, percentile));
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMs);
+        this.tokensPerCall = TOKEN_UNIT * Math.max(0, budgetPercent) / 100;
+        this.executor = executor;
+        for (final EndpointClass endpointClass : EndpointClass.values()) {
+            latencies.put(endpointClass, new LatencyWindow(boundedPercentile, Math.max(1, windowSize)));
+        }
+    }
+
+    public <T> T call(final EndpointClass endpointClass, final Call<T> call) throws KillBillClientException, UnresolvedException {
+        try {
+            return call(endpointClass, call, NO_TIMEOUT);
+        } catch (final TimeoutException e) {
+            // Can't happen without a timeout
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Gives up (cancelling the in-flight requests) once timeoutNanos have elapsed
+    public <T> T call(final EndpointClass endpointClass, final Call<T> call, final long timeoutNanos) throws KillBillClientException, UnresolvedException, TimeoutException {
+        final long startNanos = System.nanoTime();
+        final LatencyWindow latencyWindow = latencies.get(endpointClass);
+        depositToken();
+
+        final long hedgeDelayNanos = getHedgeDelayNanos(endpointClass);
+        final Attempt<T> primary = submit(call, latencyWindow);
+        if (primary == null) {
+            // Saturated: run the request on the caller thread instead, bounded by the static client timeouts only, and never hedge it
+            return callDirectly(call, latencyWindow);
+        }
+        try {
+            if (hedgeDelayNanos < 0 || hedgeDelayNanos >= timeoutNanos) {
+                // Not enough samples yet, or the request would time out before being hedged
+                return await(primary.getResult(), startNanos, timeoutNanos);
+            }
+
+            try {
+                primary.getResult().get(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                return await(primary.getResult());
+            } catch (final TimeoutException e) {
+                // Slow primary, hedge it below
+            } catch (final ExecutionException | CancellationException e) {
+                return await(primary.getResult());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return await(primary.getResult());
+            }
+
+            if (!withdrawToken()) {
+                budgetExhaustedCount.incrementAndGet();
+                return await(primary.getResult(), startNanos, timeoutNanos);
+            }
+        } catch (final TimeoutException e) {
+            primary.cancel(true);
+            throw e;
+        }
+
+        final Attempt<T> hedge = submit(call, latencyWindow);
+        if (hedge == null) {
+            // Saturated: keep waiting on the primary only
+            try {
+                return await(primary.getResult(), startNanos, timeoutNanos);
+            } catch (final TimeoutException e) {
+                primary.cancel(true);
+                throw e;
+            }
+        }
+        hedgedCount.incrementAndGet();
+        try {
+            return await(firstSuccessful(primary.getResult(), hedge.getResult()), startNanos, timeoutNanos);
+        } finally {
+            // Stop waiting on the losing request
+            primary.cancel(true);
+            hedge.cancel(true);
+        }
+    }
+
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    public long getHedgeWonCount() {
+        return hedgeWonCount.get();
+    }
+
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    // Requests which ran on the caller thread, or hedges which were skipped, as the executor was saturated
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    // Returns -1 until the window has enough samples
+    long getHedgeDelayNanos(final EndpointClass endpointClass) {
+        final long percentileNanos = latencies.get(endpointClass).getPercentileNanos();
+        return percentileNanos < 0 ? -1 : Math.max(minDelayNanos, percentileNanos);
+    }
+
+    // Returns null if the executor rejected the request
+    @Nullable
+    private <T> Attempt<T> submit(final Call<T> call, final LatencyWindow latencyWindow) {
+        final Attempt<T> attempt = new Attempt<T>(call, latencyWindow);
+        try {
+            executor.execute(attempt);
+        } catch (final RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        return attempt;
+    }
+
+    private static <T> T callDirectly(final Call<T> call, final LatencyWindow latencyWindow) throws KillBillClientException, UnresolvedException {
+        final long startNanos = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            latencyWindow.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    // Completes with the first successful result, or with the failure of the primary if both fail
+    private <T> CompletableFuture<T> firstSuccessful(final CompletableFuture<T> primary, final CompletableFuture<T> hedge) {
+        final CompletableFuture<T> first = new CompletableFuture<T>();
+        final AtomicInteger remaining = new AtomicInteger(2);
+        primary.whenComplete((result, e) -> {
+            if (e == null) {
+                first.complete(result);
+            } else if (remaining.decrementAndGet() == 0) {
+                first.completeExceptionally(e);
+            }
+        });
+        hedge.whenComplete((result, e) -> {
+            if (e == null) {
+                if (first.complete(result)) {
+                    hedgeWonCount.incrementAndGet();
+                }
+            } else if (remaining.decrementAndGet() == 0) {
+                primary.whenComplete((ignored, primaryError) -> first.completeExceptionally(primaryError != null ? primaryError : e));
+            }
+        });
+        return first;
+    }
+
+    private void depositToken() {
+        while (true) {
+            final long current = tokens.get();
+            final long updated = Math.min(MAX_TOKENS * TOKEN_UNIT, current + tokensPerCall);
+            if (current == updated || tokens.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdrawToken() {
+        while (true) {
+            final long current = tokens.get();
+            if (current < TOKEN_UNIT) {
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN_UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    private static <T> T await(final CompletableFuture<T> future, final long startNanos, final long timeoutNanos) throws KillBillClientException, UnresolvedException, TimeoutException {
+        if (timeoutNanos == NO_TIMEOUT) {
+            return await(future);
+        }
+
+        try {
+            future.get(Math.max(0, timeoutNanos - (System.nanoTime() - startNanos)), TimeUnit.NANOSECONDS);
+        } catch (final ExecutionException | CancellationException e) {
+            // Unwrapped below
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KillBillClientException(e);
+        }
+        return await(future);
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) throws KillBillClientException, UnresolvedException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof KillBillClientException) {
+                throw (KillBillClientException) cause;
+            } else if (cause instanceof UnresolvedException) {
+                throw (UnresolvedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    // FutureTask takes care of interrupting (only) the thread running the request when cancelled
+    private static final class Attempt<T> extends FutureTask<T> {
+
+        private final LatencyWindow latencyWindow;
+        private final CompletableFuture<T> result = new CompletableFuture<T>();
+        private volatile long startNanos;
+
+        private Attempt(final Call<T> call, final LatencyWindow latencyWindow) {
+            super(call::call);
+            this.latencyWindow = latencyWindow;
+        }
+
+        @Override
+        public void run() {
+            startNanos = System.nanoTime();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                // The latency of the losing request isn't known
+                result.cancel(false);
+                return;
+            }
+            latencyWindow.record(System.nanoTime() - startNanos);
+            try {
+                result.complete(get());
+            } catch (final ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (final InterruptedException e) {
+                // Can't happen, the task is done
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+            }
+        }
+
+        private CompletableFuture<T> getResult() {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+//
+// Exponential backoff with full jitter: the n-th retry (starting at 0) waits a random duration between 0 and
+// min(maxBackoff, initialBackoff * 2^n), which spreads the retries of the calls which failed together.
+//
+public class RetryPolicy {
+
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 0);
+
+    // Caps the exponent, the max backoff kicks in way before anyway
+    private static final int MAX_SHIFT = 20;
+
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    public RetryPolicy(final int maxRetries, final long initialBackoffMs, final long maxBackoffMs) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialBackoffMs = Math.max(0, initialBackoffMs);
+        this.maxBackoffMs = Math.max(this.initialBackoffMs, maxBackoffMs);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getBackoffMs(final int retry) {
+        final long ceilingMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(retry, MAX_SHIFT));
+        return ceilingMs > 0 ? ThreadLocalRandom.current().nextLong(ceilingMs + 1) : 0;
+    }
+
+    // Returns false if interrupted, in which case the caller should give up
+    public boolean backoff(final int retry) {
+        return backoff(retry, null);
+    }
+
+    // Also returns false (without waiting) if the backoff would go past the deadline
+    public boolean backoff(final int retry, @Nullable final Deadline deadline) {
+        final long backoffMs = getBackoffMs(retry);
+        if (deadline != null && deadline.getRemainingNanos() <= TimeUnit.MILLISECONDS.toNanos(backoffMs)) {
+            return false;
+        }
+
+        try {
+            Thread.sleep(backoffMs);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+//
+// Rate limit allowing bursts: the bucket holds up to burst tokens (it starts full), refilled at ratePerSec.
+// Not thread-safe: guarded by the AdmissionScheduler lock.
+//
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final Ticker ticker;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(final double ratePerSec, final int burst) {
+        this(ratePerSec, burst, Ticker.systemTicker());
+    }
+
+    TokenBucket(final double ratePerSec, final int burst, final Ticker ticker) {
+        this.tokensPerNano = ratePerSec / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.ticker = ticker;
+        this.tokens = this.burst;
+        this.lastRefillNanos = ticker.read();
+    }
+
+    public boolean tryTake() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    // 0 if a token is available
+    public long getNanosUntilAvailable() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    private void refill() {
+        final long now = ticker.read();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.dao;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+
+// KB-S externalKey -> KB-P id mapping, per tenant and KB-P target (see RemoteResolverStore#targetKey)
+public class BridgeIdMapping {
+
+    private final UUID kbTenantId;
+    private final String targetKey;
+    private final ResolvingType type;
+    private final String srcKey;
+    private final UUID targetId;
+
+    public BridgeIdMapping(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey, final UUID targetId) {
+        this.kbTenantId = kbTenantId;
+        this.targetKey = targetKey;
+        this.type = type;
+        this.srcKey = srcKey;
+        this.targetId = targetId;
+    }
+
+    public UUID getKbTenantId() {
+        return kbTenantId;
+    }
+
+    public String getTargetKey() {
+        return targetKey;
+    }
+
+    public ResolvingType getType() {
+        return type;
+    }
+
+    public String getSrcKey() {
+        return srcKey;
+    }
+
+    public UUID getTargetId() {
+        return targetId;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.JDBCUtils;
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+
+public class BridgeIdMappingDao {
+
+    private static final Table<Record> BRIDGE_ID_MAPPINGS = DSL.table("bridge_id_mappings");
+    private static final Field<String> KB_TENANT_ID = DSL.field("kb_tenant_id", String.class);
+    private static final Field<String> TARGET_KEY = DSL.field("target_key", String.class);
+    private static final Field<String> RESOLVING_TYPE = DSL.field("resolving_type", String.class);
+    private static final Field<String> SRC_KEY = DSL.field("src_key", String.class);
+    private static final Field<String> TARGET_ID = DSL.field("target_id", String.class);
+    private static final Field<Timestamp> CREATED_DATE = DSL.field("created_date", Timestamp.class);
+
+    private final DataSource dataSource;
+    private final SQLDialect dialect;
+
+    public BridgeIdMappingDao(final DataSource dataSource) throws SQLException {
+        this.dataSource = dataSource;
+        try (final Connection connection = dataSource.getConnection()) {
+            this.dialect = JDBCUtils.dialect(connection);
+        }
+    }
+
+    @Nullable
+    public UUID getTargetId(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey) throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            final String targetId = DSL.using(connection, dialect)
+                                       .select(TARGET_ID)
+                                       .from(BRIDGE_ID_MAPPINGS)
+                                       .where(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                       .and(TARGET_KEY.equal(targetKey))
+                                       .and(RESOLVING_TYPE.equal(type.name()))
+                                       .and(SRC_KEY.equal(srcKey))
+                                       .fetchOne(TARGET_ID);
+            return targetId == null ? null : UUID.fromString(targetId);
+        }
+    }
+
+    // Mappings never change once they exist, so concurrent inserts of the same key (e.g. from other nodes) are simply ignored
+    public void addMappings(final Collection<BridgeIdMapping> mappings) throws SQLException {
+        if (mappings.isEmpty()) {
+            return;
+        }
+
+        try (final Connection connection = dataSource.getConnection()) {
+            final DSLContext context = DSL.using(connection, dialect);
+            final Timestamp now = new Timestamp(System.currentTimeMillis());
+
+            final List<Query> queries = new ArrayList<>(mappings.size());
+            for (final BridgeIdMapping mapping : mappings) {
+                queries.add(context.insertInto(BRIDGE_ID_MAPPINGS, KB_TENANT_ID, TARGET_KEY, RESOLVING_TYPE, SRC_KEY, TARGET_ID, CREATED_DATE)
+                                   .values(mapping.getKbTenantId().toString(), mapping.getTargetKey(), mapping.getType().name(), mapping.getSrcKey(), mapping.getTargetId().toString(), now)
+                                   .onDuplicateKeyIgnore());
+            }
+            context.batch(queries.toArray(new Query[queries.size()])).execute();
+        }
+    }
+
+    public void removeMapping(final UUID kbTenantId, final String targetKey, final ResolvingType type, final String srcKey) throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            DSL.using(connection, dialect)
+               .deleteFrom(BRIDGE_ID_MAPPINGS)
+               .where(KB_TENANT_ID.equal(kbTenantId.toString()))
+               .and(TARGET_KEY.equal(targetKey))
+               .and(RESOLVING_TYPE.equal(type.name()))
+               .and(SRC_KEY.equal(srcKey))
+               .execute();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/*! SET default_storage_engine=INNODB */;
+
+drop table if exists bridge_id_mappings;
+create table bridge_id_mappings (
+  record_id serial
+, kb_tenant_id char(36) not null
+, target_key char(64) not null
+, resolving_type varchar(32) not null
+, src_key varchar(255) not null
+, target_id char(36) not null
+, created_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index bridge_id_mappings_key on bridge_id_mappings(kb_tenant_id, target_key, resolving_type, src_key);
@@ -18,6 +18,7 @@
 package org.killbill.billing.plugin.bridge;
 
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -28,6 +29,8 @@ import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+
 public class TestKillbillClientConfigurationHandler {
 
     @Test(groups = "fast")
@@ -37,13 +40,196 @@ public class TestKillbillClientConfigurationHandler {
         Assert.assertNotNull(killBillClient);
     }
 
+    @Test(groups = "fast")
+    public void testReplacedClientIsClosedOnceReleased() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local");
+        final UUID tenantId = UUID.randomUUID();
+
+        killbillClientConfigurationHandler.configure(tenantId);
+        final KillBillClientOnOff first = killbillClientConfigurationHandler.acquireConfigurable(tenantId);
+        // Clients are re-used across calls
+        Assert.assertSame(killbillClientConfigurationHandler.getConfigurable(tenantId), first);
+
+        // New tenant configuration while a call is in-flight
+        killbillClientConfigurationHandler.configure(tenantId);
+        final KillBillClientOnOff second = killbillClientConfigurationHandler.acquireConfigurable(tenantId);
+        Assert.assertNotSame(second, first);
+        Assert.assertFalse(first.isClosed());
+
+        first.release();
+        Assert.assertTrue(first.isClosed());
+        Assert.assertFalse(first.retain());
+
+        second.release();
+        Assert.assertFalse(second.isClosed());
+        killbillClientConfigurationHandler.closeAll();
+        Assert.assertTrue(second.isClosed());
+    }
+
+    @Test(groups = "fast")
+    public void testSnapshots() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local");
+        final UUID tenantId = UUID.randomUUID();
+
+        killbillClientConfigurationHandler.configure(tenantId);
+        final TenantSnapshot first = killbillClientConfigurationHandler.acquireSnapshot(tenantId);
+        // Parsed from the same configuration as the client
+        Assert.assertEquals(first.getPaymentConfig().getProxyModel(), PaymentProxyModel.PROXY_SIMPLE);
+
+        killbillClientConfigurationHandler.configure(tenantId);
+        final TenantSnapshot second = killbillClientConfigurationHandler.acquireSnapshot(tenantId);
+        Assert.assertTrue(second.getVersion() > first.getVersion());
+        Assert.assertNotSame(second.getPaymentConfig(), first.getPaymentConfig());
+        Assert.assertSame(killbillClientConfigurationHandler.getConfigurable(tenantId), second.getClient());
+
+        // The in-flight call keeps using the previous snapshot, until it's done
+        Assert.assertFalse(first.getClient().isClosed());
+        first.release();
+        Assert.assertTrue(first.getClient().isClosed());
+        Assert.assertFalse(first.retain());
+
+        second.release();
+        killbillClientConfigurationHandler.closeAll();
+    }
+
+    @Test(groups = "fast")
+    public void testMultipleNodes() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local",
+                                                                                                                                   "    serverUrls:\n" +
+                                                                                                                                   "      - http://127.0.0.2:8080\n" +
+                                                                                                                                   "      - http://127.0.0.1:8080\n");
+        final KillBillClientOnOff client = killbillClientConfigurationHandler.getConfigurable(UUID.randomUUID());
+        Assert.assertNotNull(client.getNodes());
+        // serverUrl is listed twice
+        Assert.assertEquals(client.getNodes().getTargets().size(), 2);
+        Assert.assertTrue(client.getNodes().getEjectedNodes().isEmpty());
+
+        // A single node doesn't need balancing
+        Assert.assertNull(new KillbillClientConfigurationHandlerForTest("local").getConfigurable(UUID.randomUUID()).getNodes());
+    }
+
+    @Test(groups = "fast")
+    public void testSharedTransport() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local",
+                                                                                                                                   "    sharedTransportMaxConnections: 10\n",
+                                                                                                                                   true);
+        final KillBillClientOnOff first = killbillClientConfigurationHandler.getConfigurable(UUID.randomUUID());
+        final KillBillClientOnOff second = killbillClientConfigurationHandler.getConfigurable(UUID.randomUUID());
+        Assert.assertNotSame(second, first);
+        Assert.assertEquals((int) first.getTenantTransport().getAvailableConnections(), 10);
+        // Same server and settings
+        Assert.assertEquals(killbillClientConfigurationHandler.getSharedTransports().size(), 1);
+
+        killbillClientConfigurationHandler.closeAll();
+        Assert.assertEquals(killbillClientConfigurationHandler.getSharedTransports().size(), 0);
+
+        Assert.assertNull(new KillbillClientConfigurationHandlerForTest("local").getSharedTransports());
+    }
+
+    @Test(groups = "fast")
+    public void testIdleClientEviction() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local", "", false, 1);
+        final UUID tenantId = UUID.randomUUID();
+
+        final KillBillClientOnOff first = killbillClientConfigurationHandler.acquireConfigurable(tenantId);
+        Assert.assertEquals(killbillClientConfigurationHandler.getResidentTenants(), 1);
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(killbillClientConfigurationHandler.evictIdleClients(), 1);
+        Assert.assertEquals(killbillClientConfigurationHandler.getResidentTenants(), 0);
+        Assert.assertEquals(killbillClientConfigurationHandler.getEvictedTenants(), 1);
+        // Closed once the in-flight call is done
+        Assert.assertFalse(first.isClosed());
+        first.release();
+        Assert.assertTrue(first.isClosed());
+
+        // Re-created on the next call
+        final KillBillClientOnOff second = killbillClientConfigurationHandler.acquireConfigurable(tenantId);
+        Assert.assertNotSame(second, first);
+        Assert.assertFalse(second.isClosed());
+        Assert.assertEquals(killbillClientConfigurationHandler.getResidentTenants(), 1);
+        Assert.assertEquals(killbillClientConfigurationHandler.getEvictedTenants(), 0);
+        Assert.assertEquals(killbillClientConfigurationHandler.getEvictionCount(), 1);
+        Assert.assertEquals(killbillClientConfigurationHandler.getRecreationCount(), 1);
+
+        second.release();
+        killbillClientConfigurationHandler.closeAll();
+    }
+
+    @Test(groups = "fast")
+    public void testResidentClientRetention() {
+        final KillbillClientConfigurationHandler killbillClientConfigurationHandler = new KillbillClientConfigurationHandlerForTest("local", "", false, 1);
+        final UUID tenantId = UUID.randomUUID();
+
+        // Not configured yet
+        Assert.assertNull(killbillClientConfigurationHandler.retainResidentConfigurable(tenantId));
+        Assert.assertEquals(killbillClientConfigurationHandler.getResidentTenants(), 0);
+
+        final KillBillClientOnOff client = killbillClientConfigurationHandler.acquireConfigurable(tenantId);
+        client.release();
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+
+        // Doesn't count as a use
+        final KillBillClientOnOff retained = killbillClientConfigurationHandler.retainResidentConfigurable(tenantId);
+        Assert.assertSame(retained, client);
+        retained.release();
+        Assert.assertEquals(killbillClientConfigurationHandler.evictIdleClients(), 1);
+        Assert.assertTrue(client.isClosed());
+
+        // Not re-created
+        Assert.assertNull(killbillClientConfigurationHandler.retainResidentConfigurable(tenantId));
+        Assert.assertEquals(killbillClientConfigurationHandler.getResidentTenants(), 0);
+        Assert.assertEquals(killbillClientConfigurationHandler.getEvictedTenants(), 1);
+        Assert.assertEquals(killbillClientConfigurationHandler.getRecreationCount(), 0);
+
+        killbillClientConfigurationHandler.closeAll();
+    }
+
+    @Test(groups = "fast")
+    public void testAdmissionFlow() {
+        // Nothing to admit against
+        Assert.assertNull(new KillbillClientConfigurationHandlerForTest("local").getConfigurable(UUID.randomUUID()).getAdmissionFlow());
+
+        // Tenant rate
+        final KillBillClientOnOff rateLimited = new KillbillClientConfigurationHandlerForTest("local", "    admissionRatePerSec: 10\n").getConfigurable(UUID.randomUUID());
+        Assert.assertNotNull(rateLimited.getAdmissionFlow());
+
+        // Share of the node-wide slots
+        final KillBillClientOnOff weighted = new KillbillClientConfigurationHandlerForTest("local", "", false, 0, 10).getConfigurable(UUID.randomUUID());
+        Assert.assertNotNull(weighted.getAdmissionFlow());
+    }
+
     private static final class KillbillClientConfigurationHandlerForTest extends KillbillClientConfigurationHandler {
 
+        private final String extraClientConfig;
+
         public KillbillClientConfigurationHandlerForTest(final String region) {
+            this(region, "");
+        }
+
+        public KillbillClientConfigurationHandlerForTest(final String region, final String extraClientConfig) {
+            this(region, extraClientConfig, false);
+        }
+
+        public KillbillClientConfigurationHandlerForTest(final String region, final String extraClientConfig, final boolean sharedTransport) {
+            this(region, extraClientConfig, sharedTransport, 0);
+        }
+
+        public KillbillClientConfigurationHandlerForTest(final String region, final String extraClientConfig, final boolean sharedTransport, final long clientIdleTimeoutMs) {
+            this(region, extraClientConfig, sharedTransport, clientIdleTimeoutMs, 0);
+        }
+
+        public KillbillClientConfigurationHandlerForTest(final String region, final String extraClientConfig, final boolean sharedTransport, final long clientIdleTimeoutMs, final int admissionMaxConcurrent) {
             super(BridgeActivator.PLUGIN_NAME,
                   Mockito.mock(OSGIKillbillAPI.class),
                   Mockito.mock(OSGIKillbillLogService.class),
-                  region);
+                  region,
+                  null,
+                  null,
+                  sharedTransport,
+                  clientIdleTimeoutMs,
+                  admissionMaxConcurrent);
+            this.extraClientConfig = extraClientConfig;
         }
 
         @Override
@@ -55,6 +241,7 @@ public class TestKillbillClientConfigurationHandler {
                    "    apiKey: bob\n" +
                    "    apiSecret: lazar\n" +
                    "    serverUrl: http://127.0.0.1:8080\n" +
+                   extraClientConfig +
                    "  paymentConfig:\n" +
                    "    proxyModel: PROXY_SIMPLE";
         }
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.bridge;
 
+import org.killbill.billing.payment.api.TransactionType;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -43,4 +44,18 @@ public class TestPaymentConfig {
         Assert.assertEquals(paymentConfig.getPluginProperties().get(1).getKey(), "e");
         Assert.assertEquals(paymentConfig.getPluginProperties().get(1).getValue(), "{\"value\": \"New\", \"onclick\": \"CreateNewDoc()\"}");
     }
+
+    @Test(groups = "fast")
+    public void testWriteRetryPolicy() {
+        final PaymentConfig paymentConfig = new PaymentConfig();
+        Assert.assertEquals(paymentConfig.getWriteRetryPolicy(TransactionType.PURCHASE).getMaxRetries(), 0);
+
+        // As parsed from the YAML configuration
+        paymentConfig.writeRetries = ImmutableMap.<String, Object>of("PURCHASE", 2, "REFUND", "1");
+        paymentConfig.writeRetryInitialBackoffMs = 10;
+        Assert.assertEquals(paymentConfig.getWriteRetryPolicy(TransactionType.PURCHASE).getMaxRetries(), 2);
+        Assert.assertTrue(paymentConfig.getWriteRetryPolicy(TransactionType.PURCHASE).getBackoffMs(0) <= 10);
+        Assert.assertEquals(paymentConfig.getWriteRetryPolicy(TransactionType.REFUND).getMaxRetries(), 1);
+        Assert.assertEquals(paymentConfig.getWriteRetryPolicy(TransactionType.VOID).getMaxRetries(), 0);
+    }
 }
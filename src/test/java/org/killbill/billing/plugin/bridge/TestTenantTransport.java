@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge;
+
+import java.io.IOException;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.RequestOptions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTenantTransport {
+
+    @Test(groups = "fast")
+    public void testWithCredentials() {
+        final TenantTransport tenantTransport = new TenantTransport("admin", "password", "bob", "lazar", 0, 0);
+        final RequestOptions options = tenantTransport.withCredentials(RequestOptions.builder()
+                                                                                     .withCreatedBy("Bridge")
+                                                                                     .withTenantApiKey("alice")
+                                                                                     .build());
+        Assert.assertEquals(options.getCreatedBy(), "Bridge");
+        Assert.assertEquals(options.getUser(), "admin");
+        Assert.assertEquals(options.getPassword(), "password");
+        // Set by the caller
+        Assert.assertEquals(options.getTenantApiKey(), "alice");
+        Assert.assertEquals(options.getTenantApiSecret(), "lazar");
+    }
+
+    @Test(groups = "fast")
+    public void testMaxConnections() throws KillBillClientException {
+        final TenantTransport tenantTransport = new TenantTransport("admin", "password", "bob", "lazar", 1, 10);
+        tenantTransport.acquireConnection();
+        Assert.assertEquals((int) tenantTransport.getAvailableConnections(), 0);
+
+        // Nested call on the same thread
+        tenantTransport.acquireConnection();
+        tenantTransport.releaseConnection();
+        Assert.assertEquals((int) tenantTransport.getAvailableConnections(), 0);
+
+        final KillBillClientException[] failure = new KillBillClientException[1];
+        final Thread other = new Thread(() -> {
+            try {
+                tenantTransport.acquireConnection();
+            } catch (final KillBillClientException e) {
+                failure[0] = e;
+            }
+        });
+        other.start();
+        try {
+            other.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Assert.assertNotNull(failure[0]);
+        Assert.assertTrue(failure[0].getCause() instanceof IOException);
+
+        tenantTransport.releaseConnection();
+        Assert.assertEquals((int) tenantTransport.getAvailableConnections(), 1);
+
+        Assert.assertNull(new TenantTransport("admin", "password", "bob", "lazar", 0, 0).getAvailableConnections());
+    }
+}
@@ -20,8 +20,14 @@ package org.killbill.billing.plugin.bridge.api;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.ServerSocket;
+import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nullable;
 
@@ -29,6 +35,7 @@ import org.joda.time.DateTime;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.client.KillBillClientException;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.payment.api.Payment;
@@ -46,10 +53,16 @@ import org.killbill.billing.plugin.api.PluginCallContext;
 import org.killbill.billing.plugin.bridge.BridgeActivator;
 import org.killbill.billing.plugin.bridge.KillbillClientConfigurationHandler;
 import org.killbill.billing.plugin.bridge.PaymentConfigurationHandler;
+import org.killbill.billing.plugin.bridge.core.BridgeExecutors;
+import org.killbill.billing.plugin.bridge.core.ConcurrencyLimiter;
+import org.killbill.billing.plugin.bridge.core.KeyedSequencer;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -63,8 +76,12 @@ import com.google.common.collect.ImmutableList;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
 import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 
 public class TestBridgePaymentPluginApi {
@@ -81,6 +98,13 @@ public class TestBridgePaymentPluginApi {
                                                           "    internalPaymentMethodIdName: paymentInstrumentId\n";
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    private static final int BENCHMARK_NB_CALLS = 500;
+    private static final int BENCHMARK_CALLERS = 100;
+    private static final int BENCHMARK_LATENCY_MS = 20;
+    private static final int SET_DEFAULT_LATENCY_MS = 500;
+
+    private static final Logger logger = LoggerFactory.getLogger(TestBridgePaymentPluginApi.class);
+
     private Account account;
     private OSGIKillbillAPI killbillAPI;
     private BridgePaymentPluginApi pluginApi;
@@ -124,52 +148,149 @@ public class TestBridgePaymentPluginApi {
 
     @Test(groups = "slow")
     public void testWithAbortedPayment() throws Exception {
-        final PaymentTransactionInfoPlugin result = WireMockHelper.doWithWireMock(new WithWireMock<PaymentTransactionInfoPlugin>() {
+        final PaymentTransactionInfoPlugin result = authorizeAbortedPayment(pluginApi);
+        Assert.assertEquals(result.getStatus(), PaymentPluginStatus.CANCELED);
+    }
+
+    @Test(groups = "slow")
+    public void testWithAbortedPaymentAsync() throws Exception {
+        final ExecutorService asyncExecutor = Executors.newFixedThreadPool(2);
+        try {
+            final PaymentTransactionInfoPlugin result = authorizeAbortedPayment(buildAsyncPluginApi(asyncExecutor));
+            Assert.assertEquals(result.getStatus(), PaymentPluginStatus.CANCELED);
+        } finally {
+            asyncExecutor.shutdownNow();
+        }
+    }
+
+    // Not a strict benchmark: compares the throughput of authorizePayment for a given KB-P latency, between the default bounded
+    // pool of platform threads and virtual threads
+    @Test(groups = "slow")
+    public void testPlatformVsVirtualThreadsThroughput() throws Exception {
+        if (!BridgeExecutors.isVirtualThreadSupported()) {
+            throw new SkipException("Virtual threads aren't supported by this JVM");
+        }
+
+        final List<PaymentTransaction> transactions = new LinkedList<PaymentTransaction>();
+        for (int i = 0; i < BENCHMARK_NB_CALLS; i++) {
+            transactions.add(TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD));
+        }
+
+        WireMockHelper.doWithWireMock(BENCHMARK_CALLERS, new WithWireMock<Void>() {
             @Override
-            public PaymentTransactionInfoPlugin execute(final WireMockServer server) throws PaymentPluginApiException, JsonProcessingException {
-                stubFor(get(urlPathEqualTo("/1.0/kb/accounts")).willReturn(aResponse().withBody(OBJECT_MAPPER.writeValueAsBytes(new org.killbill.billing.client.model.Account(account.getId(),
-                                                                                                                                                                              account.getName(),
-                                                                                                                                                                              account.getFirstNameLength(),
-                                                                                                                                                                              account.getExternalKey(),
-                                                                                                                                                                              account.getEmail(),
-                                                                                                                                                                              account.getBillCycleDayLocal(),
-                                                                                                                                                                              account.getCurrency().toString(),
-                                                                                                                                                                              account.getParentAccountId(),
-                                                                                                                                                                              account.isPaymentDelegatedToParent(),
-                                                                                                                                                                              account.getPaymentMethodId(),
-                                                                                                                                                                              account.getTimeZone().toString(),
-                                                                                                                                                                              account.getAddress1(),
-                                                                                                                                                                              account.getAddress2(),
-                                                                                                                                                                              account.getPostalCode(),
-                                                                                                                                                                              account.getCompanyName(),
-                                                                                                                                                                              account.getCity(),
-                                                                                                                                                                              account.getStateOrProvince(),
-                                                                                                                                                                              account.getCountry(),
-                                                                                                                                                                              account.getLocale(),
-                                                                                                                                                                              account.getPhone(),
-                                                                                                                                                                              account.getNotes(),
-                                                                                                                                                                              account.isMigrated(),
-                                                                                                                                                                              false,
-                                                                                                                                                                              null,
-                                                                                                                                                                              null)))
-                                                                                      .withStatus(200)));
+            public Void execute(final WireMockServer server) throws Exception {
+                stubAbortedPayment(BENCHMARK_LATENCY_MS);
+
+                final ExecutorService platformExecutor = BridgeExecutors.newBoundedExecutor("bench-platform", 16, 1000);
+                final ExecutorService virtualExecutor = BridgeExecutors.newVirtualThreadExecutor("bench-virtual", 1000);
+                try {
+                    final double platformThroughput = benchmark(buildAsyncPluginApi(platformExecutor), transactions);
+                    final double virtualThroughput = benchmark(buildAsyncPluginApi(virtualExecutor), transactions);
+                    logger.info("authorizePayment throughput with {}ms latency: platform threads={} calls/s, virtual threads={} calls/s",
+                                BENCHMARK_LATENCY_MS, String.format("%.1f", platformThroughput), String.format("%.1f", virtualThroughput));
+                } finally {
+                    BridgeExecutors.shutdown(platformExecutor);
+                    BridgeExecutors.shutdown(virtualExecutor);
+                }
+                return null;
+            }
+        });
+    }
 
-                // Aborted payment
-                stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + account.getId() + "/payments")).willReturn(aResponse().withBody("{\"code\":7106}").withStatus(422)));
+    private double benchmark(final BridgePaymentPluginApi api, final Iterable<PaymentTransaction> transactions) throws Exception {
+        // Simulate the KB-S payment threads
+        final ExecutorService callers = Executors.newFixedThreadPool(BENCHMARK_CALLERS);
+        try {
+            final List<Future<PaymentTransactionInfoPlugin>> results = new LinkedList<Future<PaymentTransactionInfoPlugin>>();
+            final long startNanos = System.nanoTime();
+            for (final PaymentTransaction transaction : transactions) {
+                results.add(callers.submit(() -> authorizePayment(api, transaction)));
+            }
+            for (final Future<PaymentTransactionInfoPlugin> result : results) {
+                Assert.assertEquals(result.get().getStatus(), PaymentPluginStatus.CANCELED);
+            }
+            return results.size() * 1e9 / (System.nanoTime() - startNanos);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
 
-                final PaymentTransaction authorizationTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD);
+    private BridgePaymentPluginApi buildAsyncPluginApi(final ExecutorService asyncExecutor) {
+        final OSGIKillbillLogService logService = TestUtils.buildLogService();
+        final KillbillClientConfigurationHandler configurationHandler = new KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                            killbillAPI,
+                                                                                                                                            logService,
+                                                                                                                                            "local");
+        final PaymentConfigurationHandler paymentConfigurationHandler = new PaymentConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                     killbillAPI,
+                                                                                                                                     logService,
+                                                                                                                                     "local",
+                                                                                                                                     DEFAULT_WIREMOCK_CONFIG + "    asyncExecution: true\n");
+        return new BridgePaymentPluginApi(killbillAPI,
+                                          logService,
+                                          configurationHandler,
+                                          paymentConfigurationHandler,
+                                          null,
+                                          null,
+                                          asyncExecutor,
+                                          null,
+                                          null,
+                                          null,
+                                          null);
+    }
 
-                return pluginApi.authorizePayment(account.getId(),
-                                                  payment.getId(),
-                                                  authorizationTransaction.getId(),
-                                                  paymentMethod.getId(),
-                                                  authorizationTransaction.getAmount(),
-                                                  authorizationTransaction.getCurrency(),
-                                                  ImmutableList.<PluginProperty>of(),
-                                                  callContext);
+    private PaymentTransactionInfoPlugin authorizeAbortedPayment(final BridgePaymentPluginApi api) throws Exception {
+        return WireMockHelper.doWithWireMock(new WithWireMock<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin execute(final WireMockServer server) throws PaymentPluginApiException, JsonProcessingException {
+                stubAbortedPayment(0);
+                return authorizePayment(api, TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD));
             }
         });
-        Assert.assertEquals(result.getStatus(), PaymentPluginStatus.CANCELED);
+    }
+
+    private void stubAbortedPayment(final int delayMs) throws JsonProcessingException {
+        stubFor(get(urlPathEqualTo("/1.0/kb/accounts")).willReturn(aResponse().withBody(OBJECT_MAPPER.writeValueAsBytes(new org.killbill.billing.client.model.Account(account.getId(),
+                                                                                                                                                                      account.getName(),
+                                                                                                                                                                      account.getFirstNameLength(),
+                                                                                                                                                                      account.getExternalKey(),
+                                                                                                                                                                      account.getEmail(),
+                                                                                                                                                                      account.getBillCycleDayLocal(),
+                                                                                                                                                                      account.getCurrency().toString(),
+                                                                                                                                                                      account.getParentAccountId(),
+                                                                                                                                                                      account.isPaymentDelegatedToParent(),
+                                                                                                                                                                      account.getPaymentMethodId(),
+                                                                                                                                                                      account.getTimeZone().toString(),
+                                                                                                                                                                      account.getAddress1(),
+                                                                                                                                                                      account.getAddress2(),
+                                                                                                                                                                      account.getPostalCode(),
+                                                                                                                                                                      account.getCompanyName(),
+                                                                                                                                                                      account.getCity(),
+                                                                                                                                                                      account.getStateOrProvince(),
+                                                                                                                                                                      account.getCountry(),
+                                                                                                                                                                      account.getLocale(),
+                                                                                                                                                                      account.getPhone(),
+                                                                                                                                                                      account.getNotes(),
+                                                                                                                                                                      account.isMigrated(),
+                                                                                                                                                                      false,
+                                                                                                                                                                      null,
+                                                                                                                                                                      null)))
+                                                                              .withStatus(200)
+                                                                              .withFixedDelay(delayMs)));
+
+        // Aborted payment
+        stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + account.getId() + "/payments")).willReturn(aResponse().withBody("{\"code\":7106}").withStatus(422).withFixedDelay(delayMs)));
+    }
+
+    private PaymentTransactionInfoPlugin authorizePayment(final BridgePaymentPluginApi api, final PaymentTransaction authorizationTransaction) throws PaymentPluginApiException {
+        return api.authorizePayment(account.getId(),
+                                    payment.getId(),
+                                    authorizationTransaction.getId(),
+                                    paymentMethod.getId(),
+                                    authorizationTransaction.getAmount(),
+                                    authorizationTransaction.getCurrency(),
+                                    ImmutableList.<PluginProperty>of(),
+                                    callContext);
     }
 
     @Test(groups = "slow")
@@ -546,6 +667,287 @@ public class TestBridgePaymentPluginApi {
         Assert.assertEquals(result.getAmount().compareTo(BigDecimal.TEN), 0);
     }
 
+    @Test(groups = "slow")
+    public void testRetryPurchaseAfterTransientError() throws Exception {
+        final PaymentTransaction purchaseTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD);
+        final UUID kbPAccountId = UUID.randomUUID();
+        final UUID kbPPaymentId = UUID.randomUUID();
+        final String paymentResponse = buildPurchasedPaymentResponse(kbPAccountId, kbPPaymentId, purchaseTransaction);
+        final BridgePaymentPluginApi api = buildWriteRetryPluginApi();
+
+        final PaymentTransactionInfoPlugin result = WireMockHelper.doWithWireMock(new WithWireMock<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin execute(final WireMockServer server) throws PaymentPluginApiException {
+                stubFor(get(urlPathEqualTo("/1.0/kb/accounts"))
+                                .willReturn(aResponse().withBody("{\"accountId\":\"" + kbPAccountId.toString() + "\"," +
+                                                                 "\"externalKey\":\"" + account.getExternalKey() + "\"}")
+                                                       .withStatus(200)));
+
+                // The first attempt fails, and never made it to KB-P
+                stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs(STARTED)
+                                .willReturn(aResponse().withStatus(503))
+                                .willSetStateTo("Failed"));
+                stubFor(get(urlPathEqualTo("/1.0/kb/payments"))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs("Failed")
+                                .willReturn(aResponse().withStatus(404)));
+
+                // The retry succeeds
+                stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs("Failed")
+                                .willReturn(aResponse()
+                                                    .withHeader("Location", "/1.0/kb/payments/" + kbPPaymentId)
+                                                    .withStatus(201))
+                                .willSetStateTo("Purchased"));
+                stubFor(get(urlPathEqualTo("/1.0/kb/payments/" + kbPPaymentId))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs("Purchased")
+                                .willReturn(aResponse().withBody(paymentResponse).withStatus(200)));
+
+                final PaymentTransactionInfoPlugin result = purchasePayment(api, purchaseTransaction);
+                WireMock.verify(2, postRequestedFor(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments")));
+                return result;
+            }
+        });
+        Assert.assertEquals(result.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(result.getKbTransactionPaymentId(), purchaseTransaction.getId());
+    }
+
+    @Test(groups = "slow")
+    public void testNoDuplicatePurchaseAfterTransientError() throws Exception {
+        final PaymentTransaction purchaseTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD);
+        final UUID kbPAccountId = UUID.randomUUID();
+        final UUID kbPPaymentId = UUID.randomUUID();
+        final String paymentResponse = buildPurchasedPaymentResponse(kbPAccountId, kbPPaymentId, purchaseTransaction);
+        final BridgePaymentPluginApi api = buildWriteRetryPluginApi();
+
+        final PaymentTransactionInfoPlugin result = WireMockHelper.doWithWireMock(new WithWireMock<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin execute(final WireMockServer server) throws PaymentPluginApiException {
+                stubFor(get(urlPathEqualTo("/1.0/kb/accounts"))
+                                .willReturn(aResponse().withBody("{\"accountId\":\"" + kbPAccountId.toString() + "\"," +
+                                                                 "\"externalKey\":\"" + account.getExternalKey() + "\"}")
+                                                       .withStatus(200)));
+
+                // The payment went through on KB-P, but the response was lost
+                stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs(STARTED)
+                                .willReturn(aResponse().withStatus(503))
+                                .willSetStateTo("Purchased"));
+                stubFor(get(urlPathEqualTo("/1.0/kb/payments"))
+                                .inScenario("RETRY")
+                                .whenScenarioStateIs("Purchased")
+                                .willReturn(aResponse().withBody(paymentResponse).withStatus(200)));
+
+                final PaymentTransactionInfoPlugin result = purchasePayment(api, purchaseTransaction);
+                WireMock.verify(1, postRequestedFor(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments")));
+                return result;
+            }
+        });
+        Assert.assertEquals(result.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(result.getKbTransactionPaymentId(), purchaseTransaction.getId());
+    }
+
+    @Test(groups = "slow")
+    public void testNoPluginFailureOnceAttemptSent() throws Exception {
+        final PaymentTransaction purchaseTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD);
+        final UUID kbPAccountId = UUID.randomUUID();
+        // The first attempt alone opens the circuit breaker
+        final BridgePaymentPluginApi api = buildWriteRetryPluginApi("    requestTimeout: 500\n" +
+                                                                    "    circuitBreakerFailureRateThreshold: 50\n" +
+                                                                    "    circuitBreakerWindowSize: 1\n" +
+                                                                    "    circuitBreakerMinimumCalls: 1\n");
+
+        final PaymentPluginApiException exception = WireMockHelper.doWithWireMock(new WithWireMock<PaymentPluginApiException>() {
+            @Override
+            public PaymentPluginApiException execute(final WireMockServer server) {
+                stubFor(get(urlPathEqualTo("/1.0/kb/accounts"))
+                                .willReturn(aResponse().withBody("{\"accountId\":\"" + kbPAccountId.toString() + "\"," +
+                                                                 "\"externalKey\":\"" + account.getExternalKey() + "\"}")
+                                                       .withStatus(200)));
+
+                // The first attempt times out: it may or may not have gone through
+                stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))
+                                .willReturn(aResponse().withStatus(201).withFixedDelay(2000)));
+                stubFor(get(urlPathEqualTo("/1.0/kb/payments"))
+                                .willReturn(aResponse().withStatus(404)));
+
+                try {
+                    purchasePayment(api, purchaseTransaction);
+                    Assert.fail("The outcome of the purchase is unknown");
+                    return null;
+                } catch (final PaymentPluginApiException e) {
+                    // The retry failed fast, without being sent
+                    WireMock.verify(1, postRequestedFor(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments")));
+                    return e;
+                }
+            }
+        });
+        // The error of the first attempt, rather than a PLUGIN_FAILURE transaction
+        Assert.assertTrue(exception.getCause() instanceof KillBillClientException);
+    }
+
+    @Test(groups = "slow")
+    public void testSetDefaultPaymentMethodThenPurchaseInArrivalOrder() throws Exception {
+        final PaymentTransaction purchaseTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD);
+        final UUID kbPAccountId = UUID.randomUUID();
+        final UUID kbPPaymentId = UUID.randomUUID();
+        final UUID kbPPaymentMethodId = UUID.randomUUID();
+        final String paymentResponse = buildPurchasedPaymentResponse(kbPAccountId, kbPPaymentId, purchaseTransaction);
+        final KeyedSequencer<UUID> accountSequencer = new KeyedSequencer<UUID>();
+        final BridgePaymentPluginApi api = new BridgePaymentPluginApi(killbillAPI,
+                                                                      TestUtils.buildLogService(),
+                                                                      new KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                          killbillAPI,
+                                                                                                                                          TestUtils.buildLogService(),
+                                                                                                                                          "local"),
+                                                                      new PaymentConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                   killbillAPI,
+                                                                                                                                   TestUtils.buildLogService(),
+                                                                                                                                   "local"),
+                                                                      null,
+                                                                      null,
+                                                                      null,
+                                                                      null,
+                                                                      null,
+                                                                      null,
+                                                                      accountSequencer);
+        final ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            final PaymentTransactionInfoPlugin result = WireMockHelper.doWithWireMock(new WithWireMock<PaymentTransactionInfoPlugin>() {
+                @Override
+                public PaymentTransactionInfoPlugin execute(final WireMockServer server) throws Exception {
+                    stubFor(get(urlPathEqualTo("/1.0/kb/accounts"))
+                                    .willReturn(aResponse().withBody("{\"accountId\":\"" + kbPAccountId.toString() + "\"," +
+                                                                     "\"externalKey\":\"" + account.getExternalKey() + "\"}")
+                                                           .withStatus(200)));
+                    stubFor(get(urlPathEqualTo("/1.0/kb/paymentMethods"))
+                                    .willReturn(aResponse().withBody("{\"paymentMethodId\":\"" + kbPPaymentMethodId + "\"," +
+                                                                     "\"accountId\":\"" + kbPAccountId + "\"}")
+                                                           .withStatus(200)));
+                    stubFor(put(urlPathMatching("/1.0/kb/accounts/" + kbPAccountId + "/paymentMethods/.*/setDefault"))
+                                    .willReturn(aResponse().withStatus(204).withFixedDelay(SET_DEFAULT_LATENCY_MS)));
+                    stubFor(post(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))
+                                    .willReturn(aResponse()
+                                                        .withHeader("Location", "/1.0/kb/payments/" + kbPPaymentId)
+                                                        .withStatus(201)));
+                    stubFor(get(urlPathEqualTo("/1.0/kb/payments/" + kbPPaymentId))
+                                    .willReturn(aResponse().withBody(paymentResponse).withStatus(200)));
+
+                    final Future<?> setDefault = callers.submit(() -> {
+                        api.setDefaultPaymentMethod(account.getId(), paymentMethod.getId(), ImmutableList.<PluginProperty>of(), callContext);
+                        return null;
+                    });
+                    // The purchase arrives while the default payment method is being changed
+                    while (accountSequencer.getActiveKeys() == 0 && !setDefault.isDone()) {
+                        Thread.sleep(1);
+                    }
+                    final PaymentTransactionInfoPlugin result = purchasePayment(api, purchaseTransaction);
+                    setDefault.get();
+
+                    // ... and only reaches KB-P once it has been changed
+                    final Date setDefaultDate = server.findAll(putRequestedFor(urlPathMatching("/1.0/kb/accounts/" + kbPAccountId + "/paymentMethods/.*/setDefault"))).get(0).getLoggedDate();
+                    final Date purchaseDate = server.findAll(postRequestedFor(urlPathEqualTo("/1.0/kb/accounts/" + kbPAccountId + "/payments"))).get(0).getLoggedDate();
+                    Assert.assertTrue(purchaseDate.getTime() - setDefaultDate.getTime() >= SET_DEFAULT_LATENCY_MS);
+                    return result;
+                }
+            });
+            Assert.assertEquals(result.getStatus(), PaymentPluginStatus.PROCESSED);
+            Assert.assertEquals(accountSequencer.getWaitedCount(), 1);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSaturatedBackgroundLane() throws Exception {
+        final ConcurrencyLimiter globalConcurrencyLimiter = new ConcurrencyLimiter("global", 1, 1, 2, 1000, 0, 0);
+        final BridgePaymentPluginApi api = new BridgePaymentPluginApi(killbillAPI,
+                                                                      TestUtils.buildLogService(),
+                                                                      new KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                          killbillAPI,
+                                                                                                                                          TestUtils.buildLogService(),
+                                                                                                                                          "local"),
+                                                                      new PaymentConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                   killbillAPI,
+                                                                                                                                   TestUtils.buildLogService(),
+                                                                                                                                   "local"),
+                                                                      null,
+                                                                      null,
+                                                                      null,
+                                                                      globalConcurrencyLimiter,
+                                                                      null,
+                                                                      command -> {
+                                                                          throw new RejectedExecutionException("saturated");
+                                                                      },
+                                                                      null);
+        try {
+            api.getPaymentInfo(account.getId(), payment.getId(), ImmutableList.<PluginProperty>of(), callContext);
+            Assert.fail("Background lane should be saturated");
+        } catch (final PaymentPluginApiException e) {
+            Assert.assertTrue(e.getMessage().contains("Too many BACKGROUND operations in progress"));
+        }
+
+        // The slot is handed back as if the call never happened
+        Assert.assertEquals(globalConcurrencyLimiter.getInFlight(), 0);
+        Assert.assertEquals(globalConcurrencyLimiter.getLimit(), 1);
+    }
+
+    private BridgePaymentPluginApi buildWriteRetryPluginApi() {
+        return buildWriteRetryPluginApi("");
+    }
+
+    private BridgePaymentPluginApi buildWriteRetryPluginApi(final String extraClientConfig) {
+        final OSGIKillbillLogService logService = TestUtils.buildLogService();
+        final KillbillClientConfigurationHandler configurationHandler = new KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                            killbillAPI,
+                                                                                                                                            logService,
+                                                                                                                                            "local",
+                                                                                                                                            extraClientConfig);
+        final PaymentConfigurationHandler paymentConfigurationHandler = new PaymentConfigurationHandlerForTestBridgePaymentPluginApi(BridgeActivator.PLUGIN_NAME,
+                                                                                                                                     killbillAPI,
+                                                                                                                                     logService,
+                                                                                                                                     "local",
+                                                                                                                                     DEFAULT_WIREMOCK_CONFIG +
+                                                                                                                                     "    writeRetries:\n" +
+                                                                                                                                     "      PURCHASE: 2\n" +
+                                                                                                                                     "    writeRetryInitialBackoffMs: 10\n");
+        return new BridgePaymentPluginApi(killbillAPI, logService, configurationHandler, paymentConfigurationHandler);
+    }
+
+    private String buildPurchasedPaymentResponse(final UUID kbPAccountId, final UUID kbPPaymentId, final PaymentTransaction purchaseTransaction) {
+        return "{\"accountId\":\"" + kbPAccountId + "\"," +
+               "\"paymentId\":\"" + kbPPaymentId + "\"," +
+               "\"paymentExternalKey\":\"" + payment.getExternalKey() + "\"," +
+               "\"currency\":\"USD\"," +
+               "\"transactions\":[{\"transactionId\":\"" + UUID.randomUUID() + "\"," +
+               "\"transactionExternalKey\":\"" + purchaseTransaction.getExternalKey() + "\"," +
+               "\"paymentId\":\"" + kbPPaymentId + "\"," +
+               "\"paymentExternalKey\":\"" + payment.getExternalKey() + "\"," +
+               "\"transactionType\":\"PURCHASE\"," +
+               "\"amount\":10.00," +
+               "\"currency\":\"USD\"," +
+               "\"effectiveDate\":\"2018-06-11T15:47:00.000Z\"," +
+               "\"processedAmount\":10.00," +
+               "\"processedCurrency\":\"USD\"," +
+               "\"status\":\"SUCCESS\"}]}";
+    }
+
+    private PaymentTransactionInfoPlugin purchasePayment(final BridgePaymentPluginApi api, final PaymentTransaction purchaseTransaction) throws PaymentPluginApiException {
+        return api.purchasePayment(account.getId(),
+                                   payment.getId(),
+                                   purchaseTransaction.getId(),
+                                   paymentMethod.getId(),
+                                   purchaseTransaction.getAmount(),
+                                   purchaseTransaction.getCurrency(),
+                                   ImmutableList.<PluginProperty>of(),
+                                   callContext);
+    }
+
     @Test(groups = "slow")
     public void testRefund() throws Exception {
         final UUID kbSPaymentId = payment.getId();
@@ -661,31 +1063,54 @@ public class TestBridgePaymentPluginApi {
 
     private static final class PaymentConfigurationHandlerForTestBridgePaymentPluginApi extends PaymentConfigurationHandler {
 
+        private final String config;
+
         public PaymentConfigurationHandlerForTestBridgePaymentPluginApi(final String pluginName,
                                                                         final OSGIKillbillAPI osgiKillbillAPI,
                                                                         final OSGIKillbillLogService osgiKillbillLogService,
                                                                         final String region) {
+            this(pluginName, osgiKillbillAPI, osgiKillbillLogService, region, DEFAULT_WIREMOCK_CONFIG);
+        }
+
+        public PaymentConfigurationHandlerForTestBridgePaymentPluginApi(final String pluginName,
+                                                                        final OSGIKillbillAPI osgiKillbillAPI,
+                                                                        final OSGIKillbillLogService osgiKillbillLogService,
+                                                                        final String region,
+                                                                        final String config) {
             super(pluginName, osgiKillbillAPI, osgiKillbillLogService, region);
+            this.config = config;
         }
 
         @Override
         public String getTenantConfigurationAsString(@Nullable final UUID kbTenantId) {
-            return DEFAULT_WIREMOCK_CONFIG;
+            return config;
         }
     }
 
     private static final class KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi extends KillbillClientConfigurationHandler {
 
+        private final String extraClientConfig;
+
         public KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(final String pluginName,
                                                                                final OSGIKillbillAPI osgiKillbillAPI,
                                                                                final OSGIKillbillLogService osgiKillbillLogService,
                                                                                final String region) {
+            this(pluginName, osgiKillbillAPI, osgiKillbillLogService, region, "");
+        }
+
+        public KillbillClientConfigurationHandlerForTestBridgePaymentPluginApi(final String pluginName,
+                                                                               final OSGIKillbillAPI osgiKillbillAPI,
+                                                                               final OSGIKillbillLogService osgiKillbillLogService,
+                                                                               final String region,
+                                                                               final String extraClientConfig) {
             super(pluginName, osgiKillbillAPI, osgiKillbillLogService, region);
+            this.extraClientConfig = extraClientConfig;
         }
 
+        // The extra settings go at the end of the killbillClientConfig section
         @Override
         public String getTenantConfigurationAsString(@Nullable final UUID kbTenantId) {
-            return DEFAULT_WIREMOCK_CONFIG;
+            return DEFAULT_WIREMOCK_CONFIG.replace("  paymentConfig:\n", extraClientConfig + "  paymentConfig:\n");
         }
     }
 
@@ -707,8 +1132,16 @@ public class TestBridgePaymentPluginApi {
         }
 
         public static <T> T doWithWireMock(final WithWireMock<T> command) throws Exception {
+            return doWithWireMock(null, command);
+        }
+
+        public static <T> T doWithWireMock(@Nullable final Integer containerThreads, final WithWireMock<T> command) throws Exception {
             final int wireMockPort = WireMockHelper.instance().getFreePort();
-            final WireMockServer wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().port(wireMockPort));
+            final WireMockConfiguration config = WireMockConfiguration.wireMockConfig().port(wireMockPort);
+            if (containerThreads != null) {
+                config.containerThreads(containerThreads);
+            }
+            final WireMockServer wireMockServer = new WireMockServer(config);
             wireMockServer.start();
             WireMock.configureFor("localhost", wireMockPort);
             try {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.local;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLocalResolver {
+
+    private OSGIKillbillAPI killbillAPI;
+    private PaymentApi paymentApi;
+    private AccountUserApi accountUserApi;
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        paymentApi = Mockito.mock(PaymentApi.class);
+        accountUserApi = Mockito.mock(AccountUserApi.class);
+        killbillAPI = Mockito.mock(OSGIKillbillAPI.class);
+        Mockito.when(killbillAPI.getPaymentApi()).thenReturn(paymentApi);
+        Mockito.when(killbillAPI.getAccountUserApi()).thenReturn(accountUserApi);
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testPrefetch() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+
+        final Account account = Mockito.mock(Account.class);
+        Mockito.when(account.getExternalKey()).thenReturn("account");
+        Mockito.when(accountUserApi.getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any())).thenReturn(account);
+        final Payment payment = Mockito.mock(Payment.class);
+        Mockito.when(payment.getExternalKey()).thenReturn("payment");
+        Mockito.when(paymentApi.getPayment(Mockito.eq(kbPaymentId), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any())).thenReturn(payment);
+        final PaymentMethod paymentMethod = Mockito.mock(PaymentMethod.class);
+        Mockito.when(paymentMethod.getExternalKey()).thenReturn("paymentMethod");
+        Mockito.when(paymentApi.getPaymentMethodById(Mockito.eq(kbPaymentMethodId), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any())).thenReturn(paymentMethod);
+
+        final LocalResolver localResolver = new LocalResolver(killbillAPI, Mockito.mock(TenantContext.class), executor).prefetch(kbAccountId, kbPaymentId, kbPaymentMethodId);
+        Assert.assertEquals(localResolver.getPaymentExternalKey(kbPaymentId), "payment");
+        Assert.assertEquals(localResolver.getPaymentMethodExternalKey(kbPaymentMethodId), "paymentMethod");
+        Assert.assertEquals(localResolver.getAccountExternalKey(kbAccountId), "account");
+
+        Mockito.verify(accountUserApi, Mockito.times(1)).getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any());
+        Mockito.verify(paymentApi, Mockito.times(1)).getPayment(Mockito.eq(kbPaymentId), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testPrefetchFailure() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        Mockito.when(accountUserApi.getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any())).thenThrow(new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, kbAccountId));
+
+        final LocalResolver localResolver = new LocalResolver(killbillAPI, Mockito.mock(TenantContext.class), executor).prefetch(kbAccountId, null, null);
+        try {
+            localResolver.getAccount(kbAccountId);
+            Assert.fail("Call should not succeed");
+        } catch (final PaymentPluginApiException e) {
+            Assert.assertTrue(e.getCause() instanceof AccountApiException);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTransientPrefetchFailure() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final Account account = Mockito.mock(Account.class);
+        Mockito.when(accountUserApi.getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any()))
+               .thenThrow(new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, kbAccountId))
+               .thenReturn(account);
+
+        // The failed prefetch isn't memoized, the lookup is retried
+        final LocalResolver localResolver = new LocalResolver(killbillAPI, Mockito.mock(TenantContext.class), executor).prefetch(kbAccountId, null, null);
+        Assert.assertEquals(localResolver.getAccountAsync(kbAccountId).get(), account);
+        Assert.assertEquals(localResolver.getAccount(kbAccountId), account);
+        Mockito.verify(accountUserApi, Mockito.times(2)).getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testMemoization() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        final Payment payment = Mockito.mock(Payment.class);
+        Mockito.when(payment.getExternalKey()).thenReturn("payment");
+        Mockito.when(paymentApi.getPayment(Mockito.eq(kbPaymentId), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any())).thenReturn(payment);
+
+        final LocalResolver localResolver = new LocalResolver(killbillAPI, Mockito.mock(TenantContext.class));
+        Assert.assertEquals(localResolver.getPayment(kbPaymentId), payment);
+        Assert.assertEquals(localResolver.getPaymentExternalKey(kbPaymentId), "payment");
+        Mockito.verify(paymentApi, Mockito.times(1)).getPayment(Mockito.eq(kbPaymentId), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any());
+
+        // Failures aren't memoized
+        final UUID kbAccountId = UUID.randomUUID();
+        Mockito.when(accountUserApi.getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any())).thenThrow(new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, kbAccountId));
+        for (int i = 0; i < 2; i++) {
+            try {
+                localResolver.getAccount(kbAccountId);
+                Assert.fail("Call should not succeed");
+            } catch (final PaymentPluginApiException e) {
+                Assert.assertTrue(e.getCause() instanceof AccountApiException);
+            }
+        }
+        Mockito.verify(accountUserApi, Mockito.times(2)).getAccountById(Mockito.eq(kbAccountId), Mockito.<TenantContext>any());
+    }
+}
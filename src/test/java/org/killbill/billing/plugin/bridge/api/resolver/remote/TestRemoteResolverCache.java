@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.util.UUID;
+
+import org.killbill.billing.client.KillBillClient;
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.client.model.PaymentMethod;
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedUnresolvedException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRemoteResolverCache {
+
+    @Test(groups = "fast")
+    public void testHitAndMiss() throws UnresolvedException {
+        final RemoteResolverCache cache = new RemoteResolverCache(10, 3600, 0);
+
+        Assert.assertNull(cache.getMapping(ResolvingType.ACCOUNT, "coin coin"));
+        Assert.assertEquals(cache.getMissCount(), 1);
+
+        final UUID accountId = UUID.randomUUID();
+        cache.putMapping(ResolvingType.ACCOUNT, "coin coin", accountId);
+        Assert.assertEquals(cache.getMapping(ResolvingType.ACCOUNT, "coin coin"), accountId);
+        Assert.assertEquals(cache.getHitCount(), 1);
+
+        // Mappings are scoped by type
+        Assert.assertNull(cache.getMapping(ResolvingType.PAYMENT, "coin coin"));
+        Assert.assertEquals(cache.getMissCount(), 2);
+
+        cache.invalidate(ResolvingType.ACCOUNT, "coin coin");
+        Assert.assertNull(cache.getMapping(ResolvingType.ACCOUNT, "coin coin"));
+        Assert.assertEquals(cache.getInvalidationCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testResolveFromCache() throws KillBillClientException, UnresolvedException {
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final PaymentMethod paymentMethod = new PaymentMethod();
+        final UUID pmId = UUID.randomUUID();
+        paymentMethod.setPaymentMethodId(pmId);
+        Mockito.when(client.getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(paymentMethod);
+
+        final RemoteResolverCache cache = new RemoteResolverCache(10, 3600, 0);
+        for (int i = 0; i < 3; i++) {
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withCache(cache).build();
+            Assert.assertEquals(resolver.resolve(new RemoteResolverRequest().resolvePM("couac couac")).getPaymentMethodIdMapping(), pmId);
+        }
+        Mockito.verify(client, Mockito.times(1)).getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any());
+        Assert.assertEquals(cache.getHitCount(), 2);
+
+        // KB-P came back with a 404 for the cached id
+        final RemoteResolver resolver = RemoteResolver.builder(client, null).withCache(cache).build();
+        resolver.resolve(new RemoteResolverRequest().resolvePM("couac couac"));
+        resolver.invalidateCachedMappings();
+        Assert.assertNull(cache.getMapping(ResolvingType.PAYMENT_METHOD, "couac couac"));
+    }
+
+    @Test(groups = "fast")
+    public void testNegativeCaching() throws KillBillClientException, UnresolvedException {
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        Mockito.when(client.getPaymentByExternalKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(null);
+
+        final RemoteResolverCache cache = new RemoteResolverCache(10, 3600, 60);
+        for (int i = 0; i < 2; i++) {
+            try {
+                RemoteResolver.builder(client, null).withCache(cache).build().resolve(new RemoteResolverRequest().resolvePayment("foin foin"));
+                Assert.fail("Call should not succeed");
+            } catch (final WrappedUnresolvedException e) {
+                Assert.assertEquals(e.getMessage(), "Failed to resolve payment externalKey='foin foin'");
+            }
+        }
+        Mockito.verify(client, Mockito.times(1)).getPaymentByExternalKey(Mockito.anyString(), Mockito.<RequestOptions>any());
+        Assert.assertEquals(cache.getNegativeHitCount(), 1);
+
+        // Once the payment exists, the positive mapping takes over
+        final UUID paymentId = UUID.randomUUID();
+        cache.putMapping(ResolvingType.PAYMENT, "foin foin", paymentId);
+        Assert.assertEquals(RemoteResolver.builder(client, null).withCache(cache).build().resolve(new RemoteResolverRequest().resolvePayment("foin foin")).getPaymentIdMapping(), paymentId);
+    }
+}
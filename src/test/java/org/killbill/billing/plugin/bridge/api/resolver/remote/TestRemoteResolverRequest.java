@@ -18,6 +18,8 @@
 package org.killbill.billing.plugin.bridge.api.resolver.remote;
 
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.client.KillBillClient;
@@ -29,6 +31,8 @@ import org.killbill.billing.client.model.PaymentMethod;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedKillBillClientException;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedUnresolvedException;
 import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.killbill.billing.plugin.bridge.core.Deadline;
+import org.killbill.billing.plugin.bridge.core.DeadlineExceededException;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -220,6 +224,82 @@ public class TestRemoteResolverRequest {
 
 
 
+    @Test(groups = "fast")
+    public void testResolveAfterDeadline() throws KillBillClientException, UnresolvedException {
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final RemoteResolver resolver = RemoteResolver.builder(client, null).withDeadline(Deadline.after(0)).build();
+        try {
+            resolver.resolve(new RemoteResolverRequest().resolvePayment("foin foin"));
+            Assert.fail("Call should not succeed");
+        } catch (final DeadlineExceededException e) {
+            Assert.assertEquals(e.getStep(), "PAYMENT");
+        }
+        Mockito.verify(client, Mockito.never()).getPaymentByExternalKey(Mockito.anyString(), Mockito.<RequestOptions>any());
+    }
+
+    @Test(groups = "fast")
+    public void testResolveConcurrently() throws KillBillClientException, UnresolvedException {
+
+        final String accountExternalKey = "coin coin";
+        final org.killbill.billing.account.api.Account srcAccount = createAccount(accountExternalKey, "Vatican", "it_IT", Currency.EUR);
+        final RemoteResolverRequest remoteResolverRequest = new RemoteResolverRequest().resolveAccount(srcAccount, true)
+                                                                                       .resolvePM("couac couac")
+                                                                                       .resolvePayment("foin foin");
+
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final Account account = new Account();
+        final UUID accountId = UUID.randomUUID();
+        account.setAccountId(accountId);
+        Mockito.when(client.getAccount(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(account);
+        final PaymentMethod paymentMethod = new PaymentMethod();
+        final UUID pmId = UUID.randomUUID();
+        paymentMethod.setPaymentMethodId(pmId);
+        Mockito.when(client.getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(paymentMethod);
+        final Payment payment = new Payment();
+        final UUID paymentId = UUID.randomUUID();
+        payment.setPaymentId(paymentId);
+        Mockito.when(client.getPaymentByExternalKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(payment);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withExecutor(executor).build();
+            final RemoteResolverResponse resolverResp = resolver.resolve(remoteResolverRequest);
+            Assert.assertEquals(resolverResp.getAccountIdMapping(), accountId);
+            Assert.assertEquals(resolverResp.getPaymentMethodIdMapping(), pmId);
+            Assert.assertEquals(resolverResp.getPaymentIdMapping(), paymentId);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testResolveConcurrentlyWithUnresolvedPayment() throws KillBillClientException, UnresolvedException {
+
+        final String accountExternalKey = "coin coin";
+        final org.killbill.billing.account.api.Account srcAccount = createAccount(accountExternalKey, "Vatican", "it_IT", Currency.EUR);
+        final RemoteResolverRequest remoteResolverRequest = new RemoteResolverRequest().resolveAccount(srcAccount, true)
+                                                                                       .resolvePayment("foin foin");
+
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final Account account = new Account();
+        account.setAccountId(UUID.randomUUID());
+        Mockito.when(client.getAccount(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(account);
+        Mockito.when(client.getPaymentByExternalKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(null);
+
+        boolean gotUnresolved = false;
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withExecutor(executor).build();
+            resolver.resolve(remoteResolverRequest);
+            Assert.fail("Call should not succeed");
+        } catch (final WrappedUnresolvedException e) {
+            gotUnresolved = true;
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(gotUnresolved);
+    }
+
     private org.killbill.billing.account.api.Account createAccount(final String externalKey, final String country, final String locale, final Currency currency) {
         final org.killbill.billing.account.api.Account result = Mockito.mock(org.killbill.billing.account.api.Account.class);
         Mockito.when(result.getExternalKey()).thenReturn(externalKey);
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.client.KillBillClient;
+import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.client.model.Account;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRemoteResolverSingleFlight {
+
+    @Test(groups = "fast")
+    public void testConcurrentAccountCreation() throws Exception {
+        final int nbThreads = 5;
+        final UUID accountId = UUID.randomUUID();
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch allWaiting = new CountDownLatch(1);
+
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        Mockito.when(client.getAccount(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(null);
+        Mockito.when(client.createAccount(Mockito.<Account>any(), Mockito.<RequestOptions>any())).thenAnswer(new Answer<Account>() {
+            @Override
+            public Account answer(final InvocationOnMock invocation) throws Throwable {
+                creating.countDown();
+                allWaiting.await(10, TimeUnit.SECONDS);
+                final Account account = new Account();
+                account.setAccountId(accountId);
+                return account;
+            }
+        });
+
+        final org.killbill.billing.account.api.Account srcAccount = Mockito.mock(org.killbill.billing.account.api.Account.class);
+        Mockito.when(srcAccount.getExternalKey()).thenReturn("plouf plouf");
+
+        final RemoteResolverSingleFlight singleFlight = new RemoteResolverSingleFlight();
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final Future<?>[] futures = new Future<?>[nbThreads];
+            for (int i = 0; i < nbThreads; i++) {
+                futures[i] = executor.submit(() -> RemoteResolver.builder(client, null).withSingleFlight(singleFlight).build().resolve(new RemoteResolverRequest().resolveAccount(srcAccount, true)).getAccountIdMapping());
+            }
+
+            // Wait for the leader to be creating the account and for all the other callers to be coalesced
+            Assert.assertTrue(creating.await(10, TimeUnit.SECONDS));
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (singleFlight.getCoalescedCount() < nbThreads - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            allWaiting.countDown();
+
+            for (final Future<?> future : futures) {
+                Assert.assertEquals(future.get(10, TimeUnit.SECONDS), accountId);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(singleFlight.getCoalescedCount(), nbThreads - 1);
+        Assert.assertEquals(singleFlight.getInFlightCount(), 0);
+        Mockito.verify(client, Mockito.times(1)).createAccount(Mockito.<Account>any(), Mockito.<RequestOptions>any());
+    }
+}
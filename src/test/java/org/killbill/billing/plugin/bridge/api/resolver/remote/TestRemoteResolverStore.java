@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.api.resolver.remote;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.UUID;
+
+import org.killbill.billing.client.KillBillClient;
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.client.model.PaymentMethod;
+import org.killbill.billing.plugin.bridge.api.resolver.ResolvingType;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.killbill.billing.plugin.bridge.core.Deadline;
+import org.killbill.billing.plugin.bridge.core.DeadlineExceededException;
+import org.killbill.billing.plugin.bridge.dao.BridgeIdMapping;
+import org.killbill.billing.plugin.bridge.dao.BridgeIdMappingDao;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRemoteResolverStore {
+
+    private static final String TARGET_KEY = RemoteResolverStore.targetKey(ImmutableList.<String>of("http://127.0.0.1:8080"), "bob", "lazar");
+
+    @Test(groups = "fast")
+    public void testBatchedWrites() throws SQLException {
+        final BridgeIdMappingDao dao = Mockito.mock(BridgeIdMappingDao.class);
+        // Large interval: only flush explicitly
+        final RemoteResolverStore store = new RemoteResolverStore(dao, 2, 10, 3600 * 1000);
+        try {
+            final UUID tenantId = UUID.randomUUID();
+            for (int i = 0; i < 3; i++) {
+                store.addMapping(tenantId, TARGET_KEY, ResolvingType.PAYMENT, "key-" + i, UUID.randomUUID());
+            }
+            // Unresolved mappings are never stored
+            store.addMapping(tenantId, TARGET_KEY, ResolvingType.PAYMENT, "key-3", null);
+        } finally {
+            store.close();
+        }
+
+        Assert.assertEquals(store.getPendingCount(), 0);
+        Mockito.verify(dao, Mockito.atLeast(2)).addMappings(Mockito.<Collection<BridgeIdMapping>>any());
+    }
+
+    @Test(groups = "fast")
+    public void testResolveFromStore() throws KillBillClientException, SQLException, UnresolvedException {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID pmId = UUID.randomUUID();
+
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final BridgeIdMappingDao dao = Mockito.mock(BridgeIdMappingDao.class);
+        Mockito.when(dao.getTargetId(tenantId, TARGET_KEY, ResolvingType.PAYMENT_METHOD, "couac couac")).thenReturn(pmId);
+
+        final RemoteResolverStore store = new RemoteResolverStore(dao, 10, 10, 3600 * 1000);
+        try {
+            final RemoteResolverCache cache = new RemoteResolverCache(10, 3600, 0);
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withCache(cache).withStore(tenantId, TARGET_KEY, store).build();
+            Assert.assertEquals(resolver.resolve(new RemoteResolverRequest().resolvePM("couac couac")).getPaymentMethodIdMapping(), pmId);
+            Mockito.verify(client, Mockito.never()).getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any());
+
+            // The store populates the cache
+            Assert.assertEquals(RemoteResolver.builder(client, null).withCache(cache).withStore(tenantId, TARGET_KEY, store).build().resolve(new RemoteResolverRequest().resolvePM("couac couac")).getPaymentMethodIdMapping(), pmId);
+            Mockito.verify(dao, Mockito.times(1)).getTargetId(tenantId, TARGET_KEY, ResolvingType.PAYMENT_METHOD, "couac couac");
+
+            // Stale mapping
+            resolver.invalidateCachedMappings();
+            Mockito.verify(dao, Mockito.times(1)).removeMapping(tenantId, TARGET_KEY, ResolvingType.PAYMENT_METHOD, "couac couac");
+            Assert.assertEquals(cache.getInvalidationCount(), 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testResolveFromKillBillWhenStoreIsDown() throws KillBillClientException, SQLException, UnresolvedException {
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentMethod paymentMethod = new PaymentMethod();
+        final UUID pmId = UUID.randomUUID();
+        paymentMethod.setPaymentMethodId(pmId);
+
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        Mockito.when(client.getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenReturn(paymentMethod);
+        final BridgeIdMappingDao dao = Mockito.mock(BridgeIdMappingDao.class);
+        Mockito.when(dao.getTargetId(Mockito.<UUID>any(), Mockito.anyString(), Mockito.<ResolvingType>any(), Mockito.anyString())).thenThrow(new SQLException("Database is down"));
+
+        final RemoteResolverStore store = new RemoteResolverStore(dao, 10, 10, 3600 * 1000);
+        try {
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withStore(tenantId, TARGET_KEY, store).build();
+            Assert.assertEquals(resolver.resolve(new RemoteResolverRequest().resolvePM("couac couac")).getPaymentMethodIdMapping(), pmId);
+            Assert.assertEquals(store.getPendingCount(), 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNoStoreReadAfterDeadline() throws KillBillClientException, SQLException, UnresolvedException {
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        final BridgeIdMappingDao dao = Mockito.mock(BridgeIdMappingDao.class);
+        final RemoteResolverStore store = new RemoteResolverStore(dao, 10, 10, 3600 * 1000);
+        try {
+            final RemoteResolver resolver = RemoteResolver.builder(client, null).withStore(UUID.randomUUID(), TARGET_KEY, store).withDeadline(Deadline.after(0)).build();
+            resolver.resolve(new RemoteResolverRequest().resolvePM("couac couac"));
+            Assert.fail("Call should not succeed");
+        } catch (final DeadlineExceededException e) {
+            Assert.assertEquals(e.getStep(), "PAYMENT_METHOD");
+        } finally {
+            store.close();
+        }
+        Mockito.verify(dao, Mockito.never()).getTargetId(Mockito.<UUID>any(), Mockito.anyString(), Mockito.<ResolvingType>any(), Mockito.anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testTargetKey() {
+        Assert.assertEquals(RemoteResolverStore.targetKey(ImmutableList.<String>of("http://a:8080", "http://b:8080"), "bob", "lazar"),
+                            RemoteResolverStore.targetKey(ImmutableList.<String>of("http://b:8080", "http://a:8080"), "bob", "lazar"));
+        // Another KB-P instance, or another KB-P tenant, doesn't share the mappings
+        Assert.assertNotEquals(RemoteResolverStore.targetKey(ImmutableList.<String>of("http://c:8080"), "bob", "lazar"), TARGET_KEY);
+        Assert.assertNotEquals(RemoteResolverStore.targetKey(ImmutableList.<String>of("http://127.0.0.1:8080"), "alice", "lazar"), TARGET_KEY);
+        Assert.assertNotEquals(RemoteResolverStore.targetKey(ImmutableList.<String>of("http://127.0.0.1:8080"), "bob", null), TARGET_KEY);
+        Assert.assertEquals(TARGET_KEY.length(), 64);
+    }
+}
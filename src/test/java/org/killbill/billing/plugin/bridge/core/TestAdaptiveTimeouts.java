@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAdaptiveTimeouts {
+
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testTimeoutFollowsLatencies() throws Exception {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(99.9, 3, 50, 5000, 10, executor);
+
+        // The upper bound applies until we know what a slow call is
+        Assert.assertEquals(timeouts.getTimeoutMs(EndpointClass.ACCOUNT), 5000);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(timeouts.call(EndpointClass.ACCOUNT, () -> "fast", null), "fast");
+        }
+        Assert.assertEquals(timeouts.getTimeoutMs(EndpointClass.ACCOUNT), 50);
+        // Each endpoint class has its own timeout
+        Assert.assertEquals(timeouts.getTimeoutMs(EndpointClass.PAYMENT_READ), 5000);
+
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        try {
+            timeouts.call(EndpointClass.ACCOUNT, () -> {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (final InterruptedException e) {
+                    cancelled.countDown();
+                }
+                return "slow";
+            }, null);
+            Assert.fail("Call should time out");
+        } catch (final KillBillClientException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            Assert.assertEquals(e.getCause().getMessage(), "Timed out waiting for KB-P, endpointClass='ACCOUNT', timeoutMs='50'");
+        }
+        Assert.assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(timeouts.getTimedOutCount(), 1);
+        // The timeout is recorded as a sample, which widens the next ones
+        Assert.assertEquals(timeouts.getTimeoutMs(EndpointClass.ACCOUNT), 150);
+    }
+
+    @Test(groups = "fast")
+    public void testHedgedTimeout() throws Exception {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(99.9, 3, 100, 5000, 10, executor);
+        final RequestHedger hedger = new RequestHedger(50, 10, 100, 10, executor);
+        for (int i = 0; i < 10; i++) {
+            timeouts.call(EndpointClass.PAYMENT_METHOD, () -> "fast", hedger);
+        }
+
+        // Both the primary and the hedge hang: we stop waiting on both of them
+        final CountDownLatch cancelled = new CountDownLatch(2);
+        try {
+            timeouts.call(EndpointClass.PAYMENT_METHOD, () -> {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (final InterruptedException e) {
+                    cancelled.countDown();
+                }
+                return "slow";
+            }, hedger);
+            Assert.fail("Call should time out");
+        } catch (final KillBillClientException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(hedger.getHedgedCount(), 1);
+        Assert.assertEquals(timeouts.getTimedOutCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailuresArePropagated() throws Exception {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(99.9, 3, 50, 5000, 10, executor);
+        try {
+            timeouts.call(EndpointClass.PAYMENT_READ, () -> {
+                throw new KillBillClientException(new RuntimeException("boom"));
+            }, null);
+            Assert.fail("Call should not succeed");
+        } catch (final KillBillClientException e) {
+            Assert.assertEquals(e.getCause().getMessage(), "boom");
+        }
+        Assert.assertEquals(timeouts.getTimedOutCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCallerRunsWhenSaturated() throws Exception {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(99.9, 3, 50, 5000, 10, command -> {
+            throw new RejectedExecutionException();
+        });
+        final Thread caller = Thread.currentThread();
+        Assert.assertEquals(timeouts.call(EndpointClass.ACCOUNT, () -> Thread.currentThread() == caller ? "direct" : "executor", null), "direct");
+        Assert.assertEquals(timeouts.getRejectedCount(), 1);
+        Assert.assertEquals(timeouts.getTimedOutCount(), 0);
+    }
+}
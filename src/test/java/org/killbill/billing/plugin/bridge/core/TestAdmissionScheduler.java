@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.bridge.core.AdmissionScheduler.Flow;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class TestAdmissionScheduler {
+
+    private final long[] nowNanos = {0};
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos[0];
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testTokenBucket() {
+        final TokenBucket tokenBucket = new TokenBucket(1, 2, ticker);
+        // Burst
+        Assert.assertTrue(tokenBucket.tryTake());
+        Assert.assertTrue(tokenBucket.tryTake());
+        Assert.assertFalse(tokenBucket.tryTake());
+        Assert.assertEquals(tokenBucket.getNanosUntilAvailable(), TimeUnit.SECONDS.toNanos(1));
+
+        nowNanos[0] += TimeUnit.MILLISECONDS.toNanos(500);
+        Assert.assertFalse(tokenBucket.tryTake());
+        nowNanos[0] += TimeUnit.MILLISECONDS.toNanos(500);
+        Assert.assertTrue(tokenBucket.tryTake());
+
+        // Never more than the burst
+        nowNanos[0] += TimeUnit.SECONDS.toNanos(10);
+        Assert.assertTrue(tokenBucket.tryTake());
+        Assert.assertTrue(tokenBucket.tryTake());
+        Assert.assertFalse(tokenBucket.tryTake());
+    }
+
+    @Test(groups = "fast")
+    public void testRateLimit() {
+        final AdmissionScheduler admissionScheduler = new AdmissionScheduler(0, 0);
+        final Flow limited = new Flow("limited", 1, new TokenBucket(1, 1, ticker), 10);
+        final Flow other = new Flow("other", 1, null, 10);
+
+        Assert.assertTrue(admissionScheduler.tryAcquire(limited));
+        admissionScheduler.release();
+        Assert.assertFalse(admissionScheduler.tryAcquire(limited));
+        Assert.assertEquals(limited.getRejectedCount(), 1);
+        Assert.assertEquals(limited.getQueueDepth(), 0);
+
+        // Other tenants aren't affected
+        Assert.assertTrue(admissionScheduler.tryAcquire(other));
+        admissionScheduler.release();
+
+        nowNanos[0] += TimeUnit.SECONDS.toNanos(1);
+        Assert.assertTrue(admissionScheduler.tryAcquire(limited));
+        admissionScheduler.release();
+        Assert.assertEquals(limited.getAdmittedCount(), 2);
+        Assert.assertEquals(admissionScheduler.getInFlight(), 0);
+
+        // Bounded queue
+        final Flow unqueued = new Flow("unqueued", 1, null, 0);
+        Assert.assertFalse(admissionScheduler.tryAcquire(unqueued));
+    }
+
+    @Test(groups = "fast")
+    public void testWeightedFairness() {
+        final AdmissionScheduler admissionScheduler = new AdmissionScheduler(1, 10000);
+        final Flow batch = new Flow("batch", 1, null, 10);
+        final Flow interactive = new Flow("interactive", 1, null, 10);
+
+        // Hold the only slot while the operations queue up
+        Assert.assertTrue(admissionScheduler.tryAcquire(new Flow("holder", 1, null, 10)));
+
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final Flow flow : ImmutableList.<Flow>of(batch, batch, batch, interactive)) {
+            final Thread thread = new Thread(() -> {
+                if (admissionScheduler.tryAcquire(flow)) {
+                    admitted.add(flow.getName());
+                    admissionScheduler.release();
+                }
+            });
+            threads.add(thread);
+            final int queued = admissionScheduler.getQueuedCount();
+            thread.start();
+            while (admissionScheduler.getQueuedCount() == queued) {
+                Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+            }
+        }
+        Assert.assertEquals(batch.getQueueDepth(), 3);
+
+        admissionScheduler.release();
+        for (final Thread thread : threads) {
+            Uninterruptibles.joinUninterruptibly(thread);
+        }
+
+        // The interactive operation doesn't wait behind the whole batch
+        Assert.assertEquals(admitted, ImmutableList.<String>of("batch", "interactive", "batch", "batch"));
+        Assert.assertEquals(admissionScheduler.getInFlight(), 0);
+        Assert.assertEquals(interactive.getAdmittedCount(), 1);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.client.KillBillClient;
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.RequestOptions;
+import org.killbill.billing.client.model.BillingException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolver.WrappedKillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.killbill.billing.plugin.bridge.core.CircuitBreaker.State;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestCircuitBreaker {
+
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test(groups = "fast")
+    public void testOpensOnFailureRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(EndpointClass.PAYMENT_WRITE, 50, 0, 100, 10, 4, 1000, 1, new FakeTicker());
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.onFailure(0);
+        }
+        // Not enough calls yet
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onSuccess(0);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+        Assert.assertEquals(circuitBreaker.getRejectedCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testOpensOnSlowCallRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(EndpointClass.PAYMENT_READ, 0, 50, 100, 4, 4, 1000, 1, new FakeTicker());
+
+        circuitBreaker.onSuccess(SLOW_NANOS);
+        circuitBreaker.onSuccess(0);
+        circuitBreaker.onSuccess(0);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        circuitBreaker.onSuccess(SLOW_NANOS);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testHalfOpenProbes() {
+        final FakeTicker ticker = new FakeTicker();
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(EndpointClass.ACCOUNT, 50, 0, 100, 2, 2, 1000, 2, ticker);
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onFailure(0);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        ticker.advance(999);
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        // Only two probes are let through
+        ticker.advance(1);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        // A single failed probe re-opens the circuit
+        circuitBreaker.onSuccess(0);
+        circuitBreaker.onFailure(0);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        ticker.advance(1000);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.onSuccess(0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getTransitionCount(), 5);
+
+        // The window was reset
+        circuitBreaker.onFailure(0);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+    }
+
+    @Test(groups = "fast")
+    public void testFailureClassification() {
+        // KB-P unreachable or timing out
+        Assert.assertTrue(CircuitBreaker.isFailure(new KillBillClientException(new IOException("Connection refused"))));
+        Assert.assertTrue(CircuitBreaker.isFailure(new WrappedKillBillClientException(new KillBillClientException(new RuntimeException("timeout")))));
+
+        // KB-P is up, but returned a business error
+        final BillingException billingException = new BillingException();
+        billingException.setCode(7106);
+        Assert.assertFalse(CircuitBreaker.isFailure(new KillBillClientException(billingException)));
+        Assert.assertFalse(CircuitBreaker.isFailure(new UnresolvedException("Failed to resolve")));
+
+        // Not related to KB-P
+        Assert.assertFalse(CircuitBreaker.isFailure(new IllegalStateException()));
+    }
+
+    @Test(groups = "fast")
+    public void testResolverFailsFast() throws KillBillClientException, UnresolvedException {
+        final KillBillClient client = Mockito.mock(KillBillClient.class);
+        Mockito.when(client.getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any())).thenThrow(new KillBillClientException(new IOException("Connection refused")));
+
+        final CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry(50, 0, 1000, 10, 2, 60000, 1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                newResolver(client, circuitBreakers).resolve(new RemoteResolverRequest().resolvePM("couac couac"));
+                Assert.fail("Call should not succeed");
+            } catch (final WrappedKillBillClientException e) {
+                Assert.assertTrue(e.getCause() instanceof KillBillClientException);
+            }
+        }
+        Assert.assertEquals(circuitBreakers.getStates().get(EndpointClass.PAYMENT_METHOD), State.OPEN);
+        Assert.assertEquals(circuitBreakers.getStates().get(EndpointClass.ACCOUNT), State.CLOSED);
+
+        try {
+            newResolver(client, circuitBreakers).resolve(new RemoteResolverRequest().resolvePM("couac couac"));
+            Assert.fail("Call should not succeed");
+        } catch (final CircuitBreakerOpenException e) {
+            Assert.assertEquals(e.getEndpointClass(), EndpointClass.PAYMENT_METHOD);
+        }
+        Mockito.verify(client, Mockito.times(2)).getPaymentMethodByKey(Mockito.anyString(), Mockito.<RequestOptions>any());
+    }
+
+    @Test(groups = "fast")
+    public void testEachCallIsRecorded() throws KillBillClientException, UnresolvedException {
+        final CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry(50, 0, 1000, 10, 2, 60000, 1);
+        final ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test", 10, 1, 10, 1000, 0, 0);
+        // Held by the operation, across all its KB-P calls
+        Assert.assertTrue(concurrencyLimiter.tryAcquire());
+        final RemoteResolver resolver = RemoteResolver.builder(null, null)
+                                                      .withCircuitBreakers(circuitBreakers)
+                                                      .withConcurrencyLimiters(concurrencyLimiter, null)
+                                                      .build();
+
+        final AtomicLong writes = new AtomicLong();
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.write(EndpointClass.PAYMENT_WRITE, () -> {
+                    writes.incrementAndGet();
+                    throw new KillBillClientException(new IOException("Connection refused"));
+                });
+                Assert.fail("Call should not succeed");
+            } catch (final KillBillClientException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        // Two outcomes (e.g. a retried write), not one for the whole operation
+        Assert.assertEquals(circuitBreakers.getStates().get(EndpointClass.PAYMENT_WRITE), State.OPEN);
+        Assert.assertEquals(concurrencyLimiter.getLimit(), 8);
+        Assert.assertEquals(concurrencyLimiter.getInFlight(), 1);
+
+        try {
+            resolver.write(EndpointClass.PAYMENT_WRITE, writes::incrementAndGet);
+            Assert.fail("Call should not succeed");
+        } catch (final CircuitBreakerOpenException e) {
+            Assert.assertEquals(e.getEndpointClass(), EndpointClass.PAYMENT_WRITE);
+        }
+        Assert.assertEquals(writes.get(), 2);
+
+        // Other endpoint classes are unaffected
+        Assert.assertEquals(resolver.read(EndpointClass.PAYMENT_READ, () -> "read"), "read");
+        Assert.assertEquals(circuitBreakers.getStates().get(EndpointClass.PAYMENT_READ), State.CLOSED);
+    }
+
+    private static RemoteResolver newResolver(final KillBillClient client, final CircuitBreakerRegistry circuitBreakers) {
+        return RemoteResolver.builder(client, null).withCircuitBreakers(circuitBreakers).build();
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(final long millis) {
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
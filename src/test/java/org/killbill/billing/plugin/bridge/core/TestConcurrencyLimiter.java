@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestConcurrencyLimiter {
+
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final long[] nowNanos = {0};
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos[0];
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 3, 100, 0, 0, ticker);
+
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertEquals(limiter.getRejectedCount(), 1);
+
+        // Fast calls while the limit is used: the limit grows, up to the max
+        complete(limiter, FAST_NANOS, false);
+        Assert.assertEquals(limiter.getLimit(), 3);
+        Assert.assertTrue(limiter.tryAcquire());
+        complete(limiter, FAST_NANOS, false);
+        Assert.assertEquals(limiter.getLimit(), 3);
+
+        // Slow or failed calls cut it
+        complete(limiter, SLOW_NANOS, false);
+        Assert.assertEquals(limiter.getLimit(), 2);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        complete(limiter, FAST_NANOS, true);
+        complete(limiter, FAST_NANOS, true);
+        Assert.assertEquals(limiter.getLimit(), 2);
+        Assert.assertEquals(limiter.getInFlight(), 0);
+
+        // Never below the min
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, SLOW_NANOS, true);
+        }
+        Assert.assertEquals(limiter.getLimit(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDecreaseOncePerRoundTrip() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 1, 10, 100, 0, 0, ticker);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+        }
+
+        // All in-flight calls time out together: only the first one cuts the limit
+        nowNanos[0] += SLOW_NANOS;
+        for (int i = 0; i < 10; i++) {
+            limiter.release(EndpointClass.PAYMENT_READ, SLOW_NANOS, true);
+        }
+        Assert.assertEquals(limiter.getLimit(), 9);
+
+        // A call started after the cut cuts it again
+        Assert.assertTrue(limiter.tryAcquire());
+        complete(limiter, SLOW_NANOS, true);
+        Assert.assertEquals(limiter.getLimit(), 8);
+    }
+
+    @Test(groups = "fast")
+    public void testLatencyThreshold() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 1, 10, 100, 0, 0, ticker);
+        // Configured threshold until the latencies are known
+        Assert.assertEquals(limiter.getLatencyThresholdNanos(EndpointClass.PAYMENT_READ), TimeUnit.MILLISECONDS.toNanos(100));
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, FAST_NANOS, false);
+        }
+        Assert.assertEquals(limiter.getLatencyThresholdNanos(EndpointClass.PAYMENT_READ), 2 * FAST_NANOS);
+
+        // Well under the configured threshold, but slow for this KB-P
+        Assert.assertTrue(limiter.tryAcquire());
+        complete(limiter, 5 * FAST_NANOS, false);
+        Assert.assertEquals(limiter.getLimit(), 9);
+
+        // The configured threshold remains the cap
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, SLOW_NANOS, false);
+        }
+        Assert.assertEquals(limiter.getLatencyThresholdNanos(EndpointClass.PAYMENT_READ), TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test(groups = "fast")
+    public void testLatencyThresholdPerEndpointClass() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 1, 10, 100, 0, 0, ticker);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, EndpointClass.PAYMENT_READ, FAST_NANOS, false);
+        }
+
+        // Much slower than the reads, but not slow for a write
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, EndpointClass.PAYMENT_WRITE, 5 * FAST_NANOS, false);
+            Assert.assertTrue(limiter.tryAcquire());
+            complete(limiter, EndpointClass.PAYMENT_READ, FAST_NANOS, false);
+        }
+        Assert.assertEquals(limiter.getLimit(), 10);
+        Assert.assertEquals(limiter.getLatencyThresholdNanos(EndpointClass.PAYMENT_READ), 2 * FAST_NANOS);
+        Assert.assertEquals(limiter.getLatencyThresholdNanos(EndpointClass.PAYMENT_WRITE), 10 * FAST_NANOS);
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedWait() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 1, 100, 5000, 1);
+        Assert.assertTrue(limiter.tryAcquire());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CompletableFuture<Boolean> waiter = CompletableFuture.supplyAsync(() -> {
+            started.countDown();
+            return limiter.tryAcquire();
+        });
+        started.await();
+        // Wait for the waiter to be queued: further callers are rejected right away
+        while (limiter.getQueuedCount() == 0) {
+            Thread.sleep(1);
+        }
+        Assert.assertFalse(limiter.tryAcquire());
+
+        limiter.release(EndpointClass.PAYMENT_READ, FAST_NANOS, false);
+        Assert.assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(limiter.getInFlight(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testWaitTimeout() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 1, 100, 10, 10);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+
+        limiter.cancel();
+        Assert.assertTrue(limiter.tryAcquire());
+    }
+
+    private void complete(final ConcurrencyLimiter limiter, final long latencyNanos, final boolean dropped) {
+        complete(limiter, EndpointClass.PAYMENT_READ, latencyNanos, dropped);
+    }
+
+    // The call took latencyNanos
+    private void complete(final ConcurrencyLimiter limiter, final EndpointClass endpointClass, final long latencyNanos, final boolean dropped) {
+        nowNanos[0] += latencyNanos;
+        limiter.release(endpointClass, latencyNanos, dropped);
+    }
+}
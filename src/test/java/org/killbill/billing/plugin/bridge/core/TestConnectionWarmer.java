@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.net.ConnectException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.client.model.BillingException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class TestConnectionWarmer {
+
+    @Test(groups = "fast")
+    public void testConcurrentRequests() {
+        final CountDownLatch allStarted = new CountDownLatch(6);
+        final AtomicInteger calls = new AtomicInteger();
+        final int opened = ConnectionWarmer.warmUp(ImmutableList.of("a", "b"), 3, 5000, target -> {
+            calls.incrementAndGet();
+            // Each request holds its connection until all of them have been sent
+            allStarted.countDown();
+            Assert.assertTrue(Uninterruptibles.awaitUninterruptibly(allStarted, 5, TimeUnit.SECONDS));
+            return target;
+        });
+        Assert.assertEquals(opened, 6);
+        Assert.assertEquals(calls.get(), 6);
+    }
+
+    @Test(groups = "fast")
+    public void testFailures() {
+        // KB-P errors still open a connection
+        Assert.assertEquals(ConnectionWarmer.warmUp(ImmutableList.of("a"), 2, 5000, target -> {
+            throw new KillBillClientException(new BillingException());
+        }), 2);
+        Assert.assertEquals(ConnectionWarmer.warmUp(ImmutableList.of("a"), 2, 5000, target -> {
+            throw new KillBillClientException(new ConnectException("Connection refused"));
+        }), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTimeout() {
+        final CountDownLatch release = new CountDownLatch(1);
+        final long startNanos = System.nanoTime();
+        try {
+            Assert.assertEquals(ConnectionWarmer.warmUp(ImmutableList.of("a"), 2, 100, target -> {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return target;
+            }), 0);
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 5000);
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestDeadline {
+
+    @Test(groups = "fast")
+    public void testCheck() {
+        final long[] nowNanos = {0};
+        final Deadline deadline = new Deadline(100, new Ticker() {
+            @Override
+            public long read() {
+                return nowNanos[0];
+            }
+        });
+        Assert.assertEquals(deadline.getRemainingNanos(), TimeUnit.MILLISECONDS.toNanos(100));
+        deadline.check("PURCHASE");
+
+        nowNanos[0] = TimeUnit.MILLISECONDS.toNanos(100);
+        Assert.assertTrue(deadline.isExpired());
+        try {
+            deadline.check("PURCHASE");
+            Assert.fail("Deadline should be exceeded");
+        } catch (final DeadlineExceededException e) {
+            Assert.assertEquals(e.getStep(), "PURCHASE");
+            Assert.assertEquals(e.getMessage(), "Deadline exceeded before step='PURCHASE', budgetMs='100'");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNoRetryPastDeadline() {
+        final RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+        Assert.assertFalse(retryPolicy.backoff(0, Deadline.after(0)));
+        Assert.assertTrue(retryPolicy.backoff(0, Deadline.after(10000)));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class TestKeyedSequencer {
+
+    private static final int BENCHMARK_NB_CALLS = 1000;
+    private static final int BENCHMARK_CALLERS = 32;
+    private static final int BENCHMARK_NB_ACCOUNTS = 64;
+    private static final int BENCHMARK_LATENCY_MS = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(TestKeyedSequencer.class);
+
+    @Test(groups = "fast")
+    public void testSameKeyInArrivalOrder() throws Exception {
+        final KeyedSequencer<String> sequencer = new KeyedSequencer<String>();
+        final List<String> executed = new ArrayList<String>();
+        final ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            final KeyedSequencer<String>.Turn authorize = sequencer.acquire("account-1", null);
+
+            final Future<?> capture = callers.submit(() -> run(sequencer, "account-1", "capture", executed));
+            awaitWaiters(sequencer, 1);
+            final Future<?> refund = callers.submit(() -> run(sequencer, "account-1", "refund", executed));
+            awaitWaiters(sequencer, 2);
+
+            // Other accounts don't wait
+            run(sequencer, "account-2", "purchase", executed);
+            Assert.assertEquals(executed, ImmutableList.<String>of("purchase"));
+
+            authorize.release();
+            capture.get(5, TimeUnit.SECONDS);
+            refund.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(executed, ImmutableList.<String>of("purchase", "capture", "refund"));
+            Assert.assertEquals(sequencer.getActiveKeys(), 0);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDeadline() throws Exception {
+        final KeyedSequencer<String> sequencer = new KeyedSequencer<String>();
+        final KeyedSequencer<String>.Turn authorize = sequencer.acquire("account-1", null);
+        final ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            try {
+                callers.submit(() -> sequencer.acquire("account-1", Deadline.after(10))).get(5, TimeUnit.SECONDS);
+                Assert.fail("Operation should have given up");
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof DeadlineExceededException);
+                Assert.assertEquals(((DeadlineExceededException) e.getCause()).getStep(), "ORDERING");
+            }
+            Assert.assertEquals(sequencer.getTimedOutCount(), 1);
+
+            // The operation which gave up doesn't let the next one overtake the one in progress
+            final Future<KeyedSequencer<String>.Turn> capture = callers.submit(() -> sequencer.acquire("account-1", null));
+            Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+            Assert.assertFalse(capture.isDone());
+
+            authorize.release();
+            capture.get(5, TimeUnit.SECONDS).release();
+            Assert.assertEquals(sequencer.getActiveKeys(), 0);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNestedOperation() {
+        final KeyedSequencer<String> sequencer = new KeyedSequencer<String>();
+        final KeyedSequencer<String>.Turn outer = sequencer.acquire("account-1", null);
+        // Doesn't wait on itself
+        sequencer.acquire("account-1", Deadline.after(10)).release();
+        Assert.assertEquals(sequencer.getActiveKeys(), 1);
+        outer.release();
+        Assert.assertEquals(sequencer.getActiveKeys(), 0);
+        Assert.assertEquals(sequencer.getWaitedCount(), 0);
+    }
+
+    // Not a strict benchmark: compares the throughput of operations spread across accounts, for a given KB-P latency, between
+    // per-account ordering and a single global lock (both guarantee that operations on the same account don't overlap)
+    @Test(groups = "slow")
+    public void testKeyedVsGlobalLockThroughput() throws Exception {
+        final ReentrantLock globalLock = new ReentrantLock(true);
+        final double globalLockThroughput = benchmark(account -> {
+            globalLock.lock();
+            return globalLock::unlock;
+        });
+
+        final KeyedSequencer<Integer> sequencer = new KeyedSequencer<Integer>();
+        final double keyedThroughput = benchmark(account -> {
+            final KeyedSequencer<Integer>.Turn turn = sequencer.acquire(account, null);
+            return turn::release;
+        });
+
+        logger.info("Throughput with {}ms latency across {} accounts: global lock={} calls/s, per-account ordering={} calls/s",
+                    BENCHMARK_LATENCY_MS, BENCHMARK_NB_ACCOUNTS, String.format("%.1f", globalLockThroughput), String.format("%.1f", keyedThroughput));
+        Assert.assertTrue(keyedThroughput > 2 * globalLockThroughput);
+    }
+
+    private interface Ordering {
+
+        Runnable acquire(Integer account);
+    }
+
+    private double benchmark(final Ordering ordering) throws Exception {
+        final AtomicInteger[] inProgress = new AtomicInteger[BENCHMARK_NB_ACCOUNTS];
+        for (int i = 0; i < BENCHMARK_NB_ACCOUNTS; i++) {
+            inProgress[i] = new AtomicInteger();
+        }
+
+        // Simulate the KB-S payment threads
+        final ExecutorService callers = Executors.newFixedThreadPool(BENCHMARK_CALLERS);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            final long startNanos = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_NB_CALLS; i++) {
+                final int account = i % BENCHMARK_NB_ACCOUNTS;
+                results.add(callers.submit(() -> {
+                    final Runnable release = ordering.acquire(account);
+                    try {
+                        final int concurrent = inProgress[account].incrementAndGet();
+                        Uninterruptibles.sleepUninterruptibly(BENCHMARK_LATENCY_MS, TimeUnit.MILLISECONDS);
+                        inProgress[account].decrementAndGet();
+                        return concurrent;
+                    } finally {
+                        release.run();
+                    }
+                }));
+            }
+            for (final Future<Integer> result : results) {
+                Assert.assertEquals((int) result.get(), 1);
+            }
+            return results.size() * 1e9 / (System.nanoTime() - startNanos);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private static Void run(final KeyedSequencer<String> sequencer, final String key, final String operation, final List<String> executed) {
+        final KeyedSequencer<String>.Turn turn = sequencer.acquire(key, null);
+        try {
+            synchronized (executed) {
+                executed.add(operation);
+            }
+        } finally {
+            turn.release();
+        }
+        return null;
+    }
+
+    private static void awaitWaiters(final KeyedSequencer<String> sequencer, final long nbWaiters) {
+        final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sequencer.getWaitedCount() < nbWaiters && System.nanoTime() < deadlineNanos) {
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(sequencer.getWaitedCount(), nbWaiters);
+    }
+}
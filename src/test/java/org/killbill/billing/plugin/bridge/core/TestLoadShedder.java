@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestLoadShedder {
+
+    private final long[] nowNanos = {0};
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos[0];
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testShedding() {
+        final LoadShedder loadShedder = new LoadShedder(5000, ticker);
+        final Deadline deadline = new Deadline(1000, ticker);
+
+        // Nothing known yet
+        loadShedder.checkBeforeQueueing(EndpointClass.PAYMENT_WRITE, deadline);
+
+        loadShedder.onCompleted(EndpointClass.PAYMENT_WRITE, TimeUnit.MILLISECONDS.toNanos(600));
+        loadShedder.onQueued(TimeUnit.MILLISECONDS.toNanos(600));
+        Assert.assertEquals(loadShedder.getExpectedLatencyMs(EndpointClass.PAYMENT_WRITE), 600);
+        Assert.assertEquals(loadShedder.getExpectedQueueWaitMs(), 600);
+
+        // 600ms of queueing plus 600ms of KB-P latency don't fit in 1s
+        try {
+            loadShedder.checkBeforeQueueing(EndpointClass.PAYMENT_WRITE, deadline);
+            Assert.fail("The operation should have been shed");
+        } catch (final LoadSheddingException e) {
+            Assert.assertEquals(e.getEndpointClass(), EndpointClass.PAYMENT_WRITE);
+        }
+        // Once admitted, only the call itself remains
+        loadShedder.checkBeforeCall(EndpointClass.PAYMENT_WRITE, deadline);
+        // Latencies are tracked per endpoint class
+        loadShedder.checkBeforeQueueing(EndpointClass.PAYMENT_READ, deadline);
+
+        nowNanos[0] += TimeUnit.MILLISECONDS.toNanos(500);
+        try {
+            loadShedder.checkBeforeCall(EndpointClass.PAYMENT_WRITE, deadline);
+            Assert.fail("The operation should have been shed");
+        } catch (final LoadSheddingException e) {
+            Assert.assertEquals(loadShedder.getShedCount(), 2);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStaleSamplesAreIgnored() {
+        final LoadShedder loadShedder = new LoadShedder(5000, ticker);
+        loadShedder.onCompleted(EndpointClass.PAYMENT_WRITE, TimeUnit.SECONDS.toNanos(3));
+        try {
+            loadShedder.checkBeforeCall(EndpointClass.PAYMENT_WRITE, new Deadline(1000, ticker));
+            Assert.fail("The operation should have been shed");
+        } catch (final LoadSheddingException e) {
+            Assert.assertEquals(loadShedder.getShedCount(), 1);
+        }
+
+        // Without recent calls, the next one goes through (and measures KB-P again)
+        nowNanos[0] += TimeUnit.SECONDS.toNanos(6);
+        loadShedder.checkBeforeCall(EndpointClass.PAYMENT_WRITE, new Deadline(1000, ticker));
+        Assert.assertEquals(loadShedder.getExpectedLatencyMs(EndpointClass.PAYMENT_WRITE), 0);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.net.ConnectException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class TestNodeBalancer {
+
+    private final long[] nowNanos = {0};
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos[0];
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testPreferFastestNode() throws KillBillClientException {
+        final NodeBalancer<String> balancer = new NodeBalancer<String>(nodes("fast", "slow"), 3, 30000, ticker);
+        final Map<String, AtomicInteger> calls = new LinkedHashMap<String, AtomicInteger>();
+        for (int i = 0; i < 20; i++) {
+            final String target = balancer.call(node -> {
+                nowNanos[0] += TimeUnit.MILLISECONDS.toNanos("fast".equals(node) ? 5 : 50);
+                return node;
+            });
+            calls.computeIfAbsent(target, k -> new AtomicInteger()).incrementAndGet();
+        }
+        // Only to get its first measurement
+        Assert.assertEquals(calls.get("slow").get(), 1);
+        Assert.assertEquals(calls.get("fast").get(), 19);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryOnConnectFailure() throws KillBillClientException {
+        final NodeBalancer<String> balancer = new NodeBalancer<String>(nodes("down", "up"), 3, 30000, ticker);
+        final AtomicInteger downCalls = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(balancer.call(node -> {
+                if ("down".equals(node)) {
+                    downCalls.incrementAndGet();
+                    throw new KillBillClientException(new ConnectException("Connection refused"));
+                }
+                return node;
+            }), "up");
+        }
+        // Ejected after 3 consecutive connection failures
+        Assert.assertEquals(downCalls.get(), 3);
+        Assert.assertEquals(balancer.getEjectedNodes(), ImmutableList.<String>of("down"));
+
+        // Brought back by a successful probe
+        balancer.probe(node -> node);
+        Assert.assertTrue(balancer.getEjectedNodes().isEmpty());
+
+        // ...or once the ejection expired
+        balancer.probe(node -> {
+            throw new KillBillClientException(new ConnectException("Connection refused"));
+        });
+        Assert.assertEquals(balancer.getEjectedNodes().size(), 2);
+        nowNanos[0] += TimeUnit.SECONDS.toNanos(30);
+        Assert.assertTrue(balancer.getEjectedNodes().isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testAllNodesDown() throws KillBillClientException {
+        final NodeBalancer<String> balancer = new NodeBalancer<String>(nodes("a", "b"), 1, 30000, ticker);
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            balancer.call(node -> {
+                calls.incrementAndGet();
+                throw new KillBillClientException(new ConnectException("Connection refused"));
+            });
+            Assert.fail("Call should not succeed");
+        } catch (final KillBillClientException e) {
+            Assert.assertTrue(NodeBalancer.isConnectFailure(e));
+        }
+        Assert.assertEquals(calls.get(), 2);
+
+        // Other errors aren't retried
+        calls.set(0);
+        try {
+            balancer.call(node -> {
+                calls.incrementAndGet();
+                throw new IllegalStateException("Boom");
+            });
+            Assert.fail("Call should not succeed");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(calls.get(), 1);
+        }
+    }
+
+    private static Map<String, String> nodes(final String... names) {
+        final Map<String, String> nodes = new LinkedHashMap<String, String>();
+        for (final String name : names) {
+            nodes.put(name, name);
+        }
+        return nodes;
+    }
+}
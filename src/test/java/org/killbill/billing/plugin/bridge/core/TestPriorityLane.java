@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.killbill.billing.payment.api.TransactionType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class TestPriorityLane {
+
+    @Test(groups = "fast")
+    public void testForTransactionType() {
+        Assert.assertEquals(PriorityLane.forTransactionType(TransactionType.AUTHORIZE.name()), PriorityLane.INTERACTIVE);
+        Assert.assertEquals(PriorityLane.forTransactionType(TransactionType.PURCHASE.name()), PriorityLane.INTERACTIVE);
+        Assert.assertEquals(PriorityLane.forTransactionType(TransactionType.CAPTURE.name()), PriorityLane.INTERACTIVE);
+        Assert.assertEquals(PriorityLane.forTransactionType("ADD_PAYMENT_METHOD"), PriorityLane.INTERACTIVE);
+
+        Assert.assertEquals(PriorityLane.forTransactionType("GET"), PriorityLane.BACKGROUND);
+        Assert.assertEquals(PriorityLane.forTransactionType("GET_PAYMENT_METHOD"), PriorityLane.BACKGROUND);
+        Assert.assertEquals(PriorityLane.forTransactionType("GET_ACCOUNT_PAYMENT_METHODS"), PriorityLane.BACKGROUND);
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundPoolIsBounded() {
+        final ExecutorService executor = BridgeExecutors.newRejectingExecutor("test-background", 1, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            // One running, one queued
+            executor.execute(() -> Uninterruptibles.awaitUninterruptibly(latch));
+            executor.execute(() -> Uninterruptibles.awaitUninterruptibly(latch));
+            try {
+                executor.execute(() -> Uninterruptibles.awaitUninterruptibly(latch));
+                Assert.fail("The task should have been rejected");
+            } catch (final RejectedExecutionException e) {
+                // The caller doesn't run it either
+            }
+        } finally {
+            latch.countDown();
+            BridgeExecutors.shutdown(executor);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.client.KillBillClientException;
+import org.killbill.billing.plugin.bridge.api.resolver.remote.RemoteResolverRequest.UnresolvedException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestRequestHedger {
+
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testHedgeSlowRead() throws Exception {
+        final RequestHedger hedger = new RequestHedger(50, 50, 100, 10, executor);
+
+        // No hedging until we know what a slow call is
+        Assert.assertEquals(hedger.getHedgeDelayNanos(EndpointClass.PAYMENT_READ), -1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(hedger.call(EndpointClass.PAYMENT_READ, () -> "fast"), "fast");
+        }
+        Assert.assertTrue(hedger.getHedgeDelayNanos(EndpointClass.PAYMENT_READ) >= 0);
+        Assert.assertEquals(hedger.getHedgeDelayNanos(EndpointClass.PAYMENT_METHOD), -1);
+        Assert.assertEquals(hedger.getHedgedCount(), 0);
+
+        // The first request hangs, the hedged one returns right away
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch primaryCancelled = new CountDownLatch(1);
+        final String result = hedger.call(EndpointClass.PAYMENT_READ, () -> {
+            if (attempts.incrementAndGet() > 1) {
+                return "hedged";
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (final InterruptedException e) {
+                primaryCancelled.countDown();
+            }
+            return "primary";
+        });
+
+        Assert.assertEquals(result, "hedged");
+        Assert.assertEquals(attempts.get(), 2);
+        Assert.assertEquals(hedger.getHedgedCount(), 1);
+        Assert.assertEquals(hedger.getHedgeWonCount(), 1);
+        Assert.assertTrue(primaryCancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testHedgeBudget() throws Exception {
+        // No budget: the hedging never kicks in
+        final RequestHedger hedger = new RequestHedger(50, 50, 0, 10, executor);
+        for (int i = 0; i < 10; i++) {
+            hedger.call(EndpointClass.PAYMENT_METHOD, () -> "fast");
+        }
+
+        final AtomicInteger attempts = new AtomicInteger();
+        Assert.assertEquals(hedger.call(EndpointClass.PAYMENT_METHOD, () -> {
+            attempts.incrementAndGet();
+            sleep(200);
+            return "primary";
+        }), "primary");
+        Assert.assertEquals(attempts.get(), 1);
+        Assert.assertEquals(hedger.getHedgedCount(), 0);
+        Assert.assertEquals(hedger.getBudgetExhaustedCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailures() throws Exception {
+        final RequestHedger hedger = new RequestHedger(50, 50, 100, 10, executor);
+        for (int i = 0; i < 10; i++) {
+            hedger.call(EndpointClass.ACCOUNT, () -> "fast");
+        }
+
+        // A failing hedge doesn't hide the slow (successful) primary
+        final AtomicInteger attempts = new AtomicInteger();
+        Assert.assertEquals(hedger.call(EndpointClass.ACCOUNT, () -> {
+            if (attempts.incrementAndGet() > 1) {
+                throw new KillBillClientException(new RuntimeException("hedge"));
+            }
+            sleep(200);
+            return "primary";
+        }), "primary");
+        Assert.assertEquals(hedger.getHedgedCount(), 1);
+        Assert.assertEquals(hedger.getHedgeWonCount(), 0);
+
+        // When both fail, the error of the primary is returned
+        try {
+            hedger.call(EndpointClass.ACCOUNT, () -> {
+                sleep(200);
+                throw new UnresolvedException("primary");
+            });
+            Assert.fail("Call should not succeed");
+        } catch (final UnresolvedException e) {
+            Assert.assertEquals(e.getMessage(), "primary");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSaturatedExecutor() throws Exception {
+        final RequestHedger hedger = new RequestHedger(50, 50, 100, 10, command -> {
+            throw new RejectedExecutionException("saturated");
+        });
+
+        // The request runs on the caller thread, without timeout
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(hedger.call(EndpointClass.PAYMENT_READ, () -> {
+                attempts.incrementAndGet();
+                Assert.assertEquals(Thread.currentThread(), caller);
+                return "direct";
+            }, TimeUnit.MILLISECONDS.toNanos(1)), "direct");
+        }
+        Assert.assertEquals(attempts.get(), 10);
+        Assert.assertEquals(hedger.getRejectedCount(), 10);
+        Assert.assertEquals(hedger.getHedgedCount(), 0);
+        // Latencies are still recorded
+        Assert.assertTrue(hedger.getHedgeDelayNanos(EndpointClass.PAYMENT_READ) >= 0);
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bridge.core;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRetryPolicy {
+
+    @Test(groups = "fast")
+    public void testJitteredExponentialBackoff() {
+        final RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+        Assert.assertEquals(retryPolicy.getMaxRetries(), 3);
+
+        boolean jittered = false;
+        for (int i = 0; i < 100; i++) {
+            final long firstBackoffMs = retryPolicy.getBackoffMs(0);
+            Assert.assertTrue(firstBackoffMs >= 0 && firstBackoffMs <= 100);
+            final long thirdBackoffMs = retryPolicy.getBackoffMs(2);
+            Assert.assertTrue(thirdBackoffMs >= 0 && thirdBackoffMs <= 400);
+            // Capped
+            final long lastBackoffMs = retryPolicy.getBackoffMs(40);
+            Assert.assertTrue(lastBackoffMs >= 0 && lastBackoffMs <= 1000);
+
+            jittered = jittered || firstBackoffMs != retryPolicy.getBackoffMs(0);
+        }
+        Assert.assertTrue(jittered);
+
+        Assert.assertEquals(RetryPolicy.NO_RETRY.getMaxRetries(), 0);
+        Assert.assertEquals(RetryPolicy.NO_RETRY.getBackoffMs(0), 0);
+    }
+}